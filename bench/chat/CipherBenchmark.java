@@ -0,0 +1,81 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a line of text into a ciphered frame, and back,
+ * for every CipherEngine. This is the path that used to be cipher(String).
+ *
+ * @author Amedeo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+
+    @Param({"caesar", "none", "aes"})
+    public String cipher;
+
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    private String line;
+    private CipherEngine sender;
+    private CipherEngine receiver;
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final FrameDecoder decoder = new FrameDecoder(Frame.MAX_PAYLOAD);
+    private final Frame frame = new Frame();
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        System.setProperty("chat.cipher", this.cipher);
+        System.setProperty("chat.key", "benchmark");
+        this.sender = CipherEngine.configured(true);
+        this.receiver = CipherEngine.configured(false);
+        if (this.sender.seed() != null) {   //come all'apertura di una connessione
+            this.receiver.seeded(this.sender.seed());
+            this.sender.seeded(this.receiver.seed());
+        }
+
+        char[] text = new char[this.length];
+        Arrays.fill(text, 'a');
+        this.line = new String(text);
+        this.buffer = ByteBuffer.allocate(FrameEncoder.size(this.line) + this.sender.overhead());
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        this.buffer.clear();
+        FrameEncoder.seal(this.buffer, this.encoder.text(this.buffer, Frame.TEXT, this.line), this.sender);
+        return this.buffer.position();
+    }
+
+    @Benchmark
+    public int encodeDecode() throws IOException {
+        this.buffer.clear();
+        FrameEncoder.seal(this.buffer, this.encoder.text(this.buffer, Frame.TEXT, this.line), this.sender);
+        this.buffer.flip();
+        this.decoder.decode(this.buffer, this.frame);
+        this.receiver.decrypt(this.frame.header, this.frame.payload);
+        return this.frame.payload.remaining();
+    }
+
+}
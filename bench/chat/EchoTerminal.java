@@ -0,0 +1,33 @@
+package chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class is a Terminal for benchmarks: whatever the Chat shows is
+ * typed back, without its prompt, as the next line to send.
+ *
+ * @author Amedeo
+ */
+final class EchoTerminal implements Terminal {
+
+    private static final String RESET_COLOR = "\u001B[0m"; //fine del prompt
+
+    private final ArrayBlockingQueue<String> lines = new ArrayBlockingQueue<>(1024);
+
+    @Override
+    public String readLine(String prompt) {
+        try {
+            return this.lines.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public void show(String line) {
+        int end = line.lastIndexOf(RESET_COLOR);
+        this.lines.offer(end == -1 ? line : line.substring(end + RESET_COLOR.length()));
+    }
+
+}
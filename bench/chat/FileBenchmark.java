@@ -0,0 +1,149 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to move a whole file the way a chat does, from Uploads to Downloads,
+ * from a file on disk to another one, through a pipe: chunks leave only
+ * as credits arrive, and are written by the thread of the transfer.
+ * The answers and the credits go straight back to Uploads, as the reader
+ * of a chat would hand them over. Divide size by the score to get bytes/s.
+ *
+ * @author Amedeo
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileBenchmark {
+
+    private static final int PIPE = 1024 * 1024;    //buffer del pipe
+
+    @Param({"1024", "1048576", "1073741824"})
+    public long size;
+
+    private File source;
+    private File target;    //cartella di destinazione
+    private FrameWriter out;
+    private Uploads uploads;
+    private Thread receiver;
+    private final Semaphore wake = new Semaphore(0);    //sveglia il writer, cioe' il benchmark
+    private final LinkedBlockingQueue<Long> received = new LinkedBlockingQueue<>();
+    private String error;   //esito dell'invio (null se e' andato bene)
+    private boolean sent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.source = File.createTempFile("bench", ".src");
+        this.target = File.createTempFile("bench", ".dst");
+        this.target.delete();
+        this.target.mkdir();
+
+        //contenuto casuale, per non favorire nessuna cifratura
+        byte[] chunk = new byte[FileTransfer.CHUNK];
+        new Random(42).nextBytes(chunk);
+        try (RandomAccessFile file = new RandomAccessFile(this.source, "rw")) {
+            for (long written = 0; written < this.size; written += chunk.length) {
+                file.write(chunk, 0, (int) Math.min(chunk.length, this.size - written));
+            }
+        }
+
+        PipedInputStream in = new PipedInputStream(PIPE);
+        this.out = new FrameWriter(new PipedOutputStream(in), CipherEngine.configured(false));
+        FrameReader reader = new FrameReader(in, CipherEngine.configured(true));
+
+        this.uploads = new Uploads(null, this.wake::release, (path, bytes, reused, started, error) -> {
+            this.error = error;
+            this.sent = true;
+        });
+        Downloads downloads = new Downloads(this.target, null, null, control -> {   //come il reader del mittente
+            if (FileTransfer.isAnswer(control) || Delta.isBlocks(control)) {
+                this.uploads.answer(control);
+            } else if (FileTransfer.isCredit(control)) {
+                this.uploads.grant(control);
+            }
+        }, (file, error) -> {
+            if (file != null) {
+                file.file().delete();   //ogni iterazione riceve il file da zero
+            }
+            this.received.add(file != null ? file.received() : -1);
+        });
+
+        this.receiver = new Thread(() -> {
+            Frame frame = new Frame();
+            try {
+                while (reader.read(frame)) {
+                    if (frame.type == Frame.COMMAND) {  //il nome del file, come "/file NAME"
+                        downloads.announced(this.source.getName());
+                    } else if (frame.type == Frame.FILE_CHUNK) {
+                        downloads.chunk(frame);
+                    }
+                }
+            } catch (IOException ioe) {
+                //fine del benchmark
+            } finally {
+                downloads.close();
+            }
+        }, "bench-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.out.close();
+        this.receiver.interrupt();
+        this.source.delete();
+        this.target.delete();
+    }
+
+    @Benchmark
+    public long transfer() throws IOException, InterruptedException {
+        this.out.text(Frame.COMMAND, "/file " + this.source.getName());
+        this.sent = false;
+        this.uploads.start(this.source);
+        while (!this.sent) {    //come il writer di una chat: un blocco per volta, quando ci sono i crediti
+            this.uploads.update(this.out);
+            if (this.uploads.ready()) {
+                this.uploads.next(this.out);
+            } else {
+                this.out.flush();
+                this.wake.tryAcquire(1, TimeUnit.SECONDS);
+            }
+        }
+        this.out.flush();
+        if (this.error != null) {
+            throw new ProtocolException("Couldn't send file (" + this.error + ")");
+        }
+        long bytes = this.received.take();
+        if (bytes != this.size) {
+            throw new ProtocolException("Received " + bytes + " bytes of " + this.size);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,407 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator and soak test for the multi-client servers: BOTS bots
+ * connect to a server already listening on loopback ("Server nio" or
+ * "Server threads") and chat for SECONDS seconds, speaking the same
+ * protocol as Chat, without terminals.
+ * Every bot sends texts at a fixed rate, now and then changes its status
+ * or its name, and can upload files through Uploads, like Chat: one chunk
+ * at a time, as the server grants credits, in between the texts. Texts carry the instant they were
+ * sent, so the bots receiving them from the server measure the end-to-end
+ * latency (sender, server, fan-out, receiver) on the same clock.
+ * Every "chat.load.report" seconds it prints what happened in the last
+ * interval; at the end, the totals.
+ *
+ * Usage: LoadGenerator [BOTS [SECONDS]]
+ *
+ * System properties (besides the chat.* ones of the protocol, which must
+ * match the server):
+ *   chat.load.host      server address (127.0.0.1)
+ *   chat.load.port      server port (Server.PORT)
+ *   chat.load.rate      texts per second per bot (1)
+ *   chat.load.size      characters per text (64)
+ *   chat.load.rooms     rooms to spread the bots over (1: all in the lobby)
+ *   chat.load.status    fraction of the sends that change the status (0.05)
+ *   chat.load.name      fraction of the sends that change the name (0.01)
+ *   chat.load.files     file uploads per minute per bot (0: none)
+ *   chat.load.filesize  bytes per uploaded file (65536); the server saves them
+ *   chat.load.report    seconds between two reports (10)
+ *
+ * @author Amedeo
+ */
+public final class LoadGenerator {
+
+    private static final String MARK = "#LOAD ";    //inizio dei testi dei bot, seguito dall'istante di invio
+    private static final int ANSWER_TIMEOUT = 30;   //secondi di attesa della risposta ad un /join, e dei file in corso alla fine
+
+    private static final String HOST = System.getProperty("chat.load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("chat.load.port", Server.PORT);
+    private static final double RATE = Double.parseDouble(System.getProperty("chat.load.rate", "1"));
+    private static final int SIZE = Integer.getInteger("chat.load.size", 64);
+    private static final int ROOMS = Integer.getInteger("chat.load.rooms", 1);
+    private static final double STATUS = Double.parseDouble(System.getProperty("chat.load.status", "0.05"));
+    private static final double NAME = Double.parseDouble(System.getProperty("chat.load.name", "0.01"));
+    private static final double FILES = Double.parseDouble(System.getProperty("chat.load.files", "0"));
+    private static final int FILE_SIZE = Integer.getInteger("chat.load.filesize", 64 * 1024);
+    private static final int REPORT = Integer.getInteger("chat.load.report", 10);
+
+    //misure dell'intervallo corrente, azzerate ad ogni report, e totali
+    private final Measures interval = new Measures();
+    private final Measures total = new Measures();
+
+    private final AtomicLong failed = new AtomicLong(); //bot che non si sono collegati o sono caduti
+    private volatile boolean over;  //se i bot devono smettere di inviare, settato a true
+
+    //misure raccolte dai bot
+    private static final class Measures {
+
+        private final LatencyHistogram connect = new LatencyHistogram("connect");
+        private final LatencyHistogram latency = new LatencyHistogram("end-to-end");
+        private final LatencyHistogram upload = new LatencyHistogram("file upload");
+        private final AtomicLong sent = new AtomicLong();   //frame inviati (testi, status, nomi)
+        private final AtomicLong received = new AtomicLong();   //testi dei bot ricevuti
+        private final AtomicLong bytes = new AtomicLong();  //byte dei file inviati
+
+        private void reset() {
+            this.connect.reset();
+            this.latency.reset();
+            this.upload.reset();
+            this.sent.set(0);
+            this.received.set(0);
+            this.bytes.set(0);
+        }
+
+        private String report(double seconds) {
+            return String.format("sent %.1f frames/s, received %.1f texts/s, uploaded %.2f MB/s%n%s%n%s%n%s",
+                    this.sent.get() / seconds, this.received.get() / seconds, this.bytes.get() / seconds / 1e6,
+                    this.connect, this.latency, this.upload);
+        }
+    }
+
+    /**
+     * @param args the number of bots and the seconds of the test
+     * @throws Exception if the test can't be run
+     */
+    public static void main(String[] args) throws Exception {
+        int bots = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        new LoadGenerator().run(bots, seconds);
+    }
+
+    private void run(int bots, int seconds) throws Exception {
+        File file = null;
+        if (LoadGenerator.FILES > 0) {  //un solo file, inviato da tutti
+            file = File.createTempFile("load", ".dat");
+            file.deleteOnExit();
+            byte[] data = new byte[LoadGenerator.FILE_SIZE];
+            new Random(42).nextBytes(data);
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.write(data);
+            }
+        }
+
+        System.out.println("Loading " + HOST + ":" + PORT + " with " + bots + " bots for " + seconds + " s...");
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2 * Runtime.getRuntime().availableProcessors());
+        List<Bot> connected = new ArrayList<>();
+        for (int i = 0; i < bots; i++) {
+            Bot bot = new Bot(i, file, scheduler);
+            if (bot.connect()) {
+                connected.add(bot);
+                bot.start();
+            } else {
+                this.failed.incrementAndGet();
+            }
+        }
+
+        long start = System.nanoTime();
+        long last = start;
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() - end < 0) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(REPORT), TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+            long now = System.nanoTime();
+            System.out.println("--- " + TimeUnit.NANOSECONDS.toSeconds(now - start) + " s, "
+                    + (bots - this.failed.get()) + " bots connected");
+            System.out.println(this.interval.report((now - last) / 1e9));
+            this.interval.reset();
+            last = now;
+        }
+
+        //smetto di inviare, e lascio arrivare quanto e' in viaggio
+        this.over = true;
+        scheduler.shutdown();
+        scheduler.awaitTermination(ANSWER_TIMEOUT, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(ANSWER_TIMEOUT);
+        for (Bot bot : connected) { //i file gia' iniziati finiscono
+            bot.finish(deadline);
+        }
+        Thread.sleep(1000);
+        for (Bot bot : connected) {
+            bot.close();
+        }
+
+        System.out.println("=== total, " + this.failed.get() + " bots failed");
+        System.out.println(this.total.report((System.nanoTime() - start) / 1e9));
+    }
+
+    //un client senza terminale
+    private final class Bot {
+
+        private final int id;
+        private final File file;    //file da inviare (null se non se ne inviano)
+        private final String padding;   //testo dopo l'istante di invio
+        private final ArrayBlockingQueue<Boolean> ready;    //aperto quando il bot e' nella sua stanza
+        private final ScheduledExecutorService scheduler;   //thread che inviano per il bot
+        private final Uploads uploads;  //file in uscita, di chi tiene il lock del bot
+
+        private Socket sock;
+        private FrameReader in;
+        private FrameWriter out;
+        private boolean busy;   //status attuale
+        private int names;  //nomi cambiati finora
+
+        private Bot(int id, File file, ScheduledExecutorService scheduler) {
+            this.id = id;
+            this.file = file;
+            this.scheduler = scheduler;
+            StringBuilder padding = new StringBuilder(LoadGenerator.SIZE);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (padding.length() < LoadGenerator.SIZE) {
+                padding.append((char) ('a' + random.nextInt(26)));
+            }
+            this.padding = padding.toString();
+            this.ready = new ArrayBlockingQueue<>(1);
+            this.uploads = new Uploads(null, this::wake, this::uploaded);   //tutto sulla connessione, come dietro un server
+        }
+
+        //si collega, entra nella sua stanza e attende la conferma (tempo di setup)
+        private boolean connect() {
+            long start = System.nanoTime();
+            try {
+                this.sock = new Socket(LoadGenerator.HOST, LoadGenerator.PORT);
+                this.sock.setTcpNoDelay(true);
+                CipherEngine cipher = CipherEngine.configured(false);
+                Compression compression = Compression.configured();
+                this.in = new FrameReader(this.sock.getInputStream(), cipher, compression);
+                this.out = new FrameWriter(this.sock.getOutputStream(), cipher, compression);
+                this.out.seed();
+
+                Thread reader = new Thread(this::read, "load-bot-" + this.id);
+                reader.setDaemon(true);
+                reader.start();
+
+                if (compression != null) {
+                    this.out.text(Frame.CONTROL, Compression.HELLO);
+                }
+                this.out.text(Frame.COMMAND, "/name bot" + this.id);
+                this.out.text(Frame.COMMAND, "/join room" + (this.id % Math.max(1, LoadGenerator.ROOMS)));
+                this.out.flush();
+                if (this.ready.poll(ANSWER_TIMEOUT, TimeUnit.SECONDS) == null) {
+                    throw new IOException("No answer to /join");
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Couldn't connect bot " + this.id + " (" + e + ")");
+                this.close();
+                return false;
+            }
+            long elapsed = System.nanoTime() - start;
+            LoadGenerator.this.interval.connect.record(elapsed);
+            LoadGenerator.this.total.connect.record(elapsed);
+            return true;
+        }
+
+        private void start() {
+            long period = (long) (1e9 / LoadGenerator.RATE);
+            long delay = ThreadLocalRandom.current().nextLong(period); //i bot non inviano tutti insieme
+            this.scheduler.scheduleAtFixedRate(this::send, delay, period, TimeUnit.NANOSECONDS);
+            if (this.file != null) {
+                long every = (long) (60e9 / LoadGenerator.FILES);
+                this.scheduler.scheduleAtFixedRate(this::upload, ThreadLocalRandom.current().nextLong(every), every, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void send() {
+            if (LoadGenerator.this.over) {
+                return;
+            }
+            double dice = ThreadLocalRandom.current().nextDouble();
+            try {
+                if (dice < LoadGenerator.STATUS) {
+                    this.busy = !this.busy;
+                    this.out.text(Frame.STATUS, this.busy ? "BUSY" : "AVAILABLE");
+                } else if (dice < LoadGenerator.STATUS + LoadGenerator.NAME) {
+                    this.out.text(Frame.COMMAND, "/name bot" + this.id + "-" + ++this.names);
+                } else {
+                    this.out.text(Frame.TEXT, LoadGenerator.MARK + System.nanoTime() + " " + this.padding);
+                }
+                this.transfer();    //e i file attendono il loro turno, come nel writer di Chat
+            } catch (IOException ioe) {
+                this.fail(ioe);
+                return;
+            }
+            LoadGenerator.this.interval.sent.incrementAndGet();
+            LoadGenerator.this.total.sent.incrementAndGet();
+        }
+
+        //come Chat: il comando, poi l'offerta e i blocchi man mano che il server concede crediti
+        private synchronized void upload() {
+            if (LoadGenerator.this.over) {
+                return;
+            }
+            try {
+                this.out.text(Frame.COMMAND, "/file " + this.file.getPath());   //come Chat: il server tiene il nome
+                this.uploads.start(this.file);
+                this.transfer();
+            } catch (IOException ioe) {
+                this.fail(ioe);
+            }
+        }
+
+        //invia offerte e blocchi finche' ci sono crediti (chi chiama tiene il lock)
+        private void transfer() throws IOException {
+            this.uploads.update(this.out);
+            while (this.uploads.ready()) {
+                this.uploads.next(this.out);
+            }
+            this.out.flush();
+        }
+
+        //un file ha novita' (risposta, crediti o digest): non da qui, che puo' essere il reader
+        private void wake() {
+            try {
+                this.scheduler.execute(() -> {
+                    synchronized (this) {
+                        try {
+                            this.transfer();
+                        } catch (IOException ioe) {
+                            this.fail(ioe);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {  //test finito: ci pensa finish()
+            }
+        }
+
+        //esito di un file, sul thread che tiene il lock
+        private void uploaded(File path, long bytes, long reused, long started, String error) {
+            if (error != null) {
+                this.fail(new IOException("Couldn't send file (" + error + ")"));
+                return;
+            }
+            long elapsed = System.nanoTime() - started;
+            LoadGenerator.this.interval.upload.record(elapsed);
+            LoadGenerator.this.total.upload.record(elapsed);
+            LoadGenerator.this.interval.bytes.addAndGet(bytes + reused);
+            LoadGenerator.this.total.bytes.addAndGet(bytes + reused);
+        }
+
+        //finisce i file in corso, entro la scadenza
+        private void finish(long deadline) throws InterruptedException {
+            while (System.nanoTime() - deadline < 0) {
+                synchronized (this) {
+                    if (!this.uploads.waiting() || this.sock.isClosed()) {
+                        return;
+                    }
+                    try {
+                        this.transfer();
+                    } catch (IOException ioe) {
+                        this.fail(ioe);
+                        return;
+                    }
+                }
+                Thread.sleep(10);
+            }
+        }
+
+        //come Chat: il server chiude chi tace troppo a lungo
+        private synchronized void pong() {
+            if (LoadGenerator.this.over) {
+                return;
+            }
+            try {
+                this.out.text(Frame.CONTROL, Heartbeat.PONG);
+                this.out.flush();
+            } catch (IOException ioe) {
+                this.fail(ioe);
+            }
+        }
+
+        //riceve i frame, misurando la latenza dei testi degli altri bot
+        private void read() {
+            Frame frame = new Frame();
+            try {
+                while (this.in.read(frame)) {
+                    if (frame.type == Frame.TEXT) {
+                        String text = Chat.text(frame.payload);
+                        int mark = text.indexOf(LoadGenerator.MARK);
+                        if (mark >= 0) {
+                            int from = mark + LoadGenerator.MARK.length();
+                            long sent = Long.parseLong(text.substring(from, text.indexOf(' ', from)));
+                            long elapsed = System.nanoTime() - sent;
+                            LoadGenerator.this.interval.latency.record(elapsed);
+                            LoadGenerator.this.total.latency.record(elapsed);
+                            LoadGenerator.this.interval.received.incrementAndGet();
+                            LoadGenerator.this.total.received.incrementAndGet();
+                        } else if (text.startsWith("You are in ")) {    //risposta a /join
+                            this.ready.offer(Boolean.TRUE);
+                        }
+                    } else if (frame.type == Frame.CONTROL) {
+                        String control = Chat.text(frame.payload);
+                        if (FileTransfer.isAnswer(control) || Delta.isBlocks(control)) {   //come il reader di Chat: li attende chi invia
+                            this.uploads.answer(control);
+                        } else if (FileTransfer.isCredit(control)) {
+                            this.uploads.grant(control);
+                        } else if (control.equals(Heartbeat.PING) && !LoadGenerator.this.over) {
+                            this.scheduler.execute(this::pong); //non da qui: il reader non attende mai il lock, che tiene chi invia
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                this.fail(ioe);
+            }
+        }
+
+        private void fail(IOException cause) {
+            if (!LoadGenerator.this.over && !this.sock.isClosed()) {
+                System.err.println("Bot " + this.id + " dropped (" + cause + ")");
+                LoadGenerator.this.failed.incrementAndGet();
+                this.close();
+            }
+        }
+
+        private synchronized void close() {
+            if (this.sock == null || this.sock.isClosed()) {
+                return;
+            }
+            try {
+                if (this.out == null) {  //caduto prima di iniziare
+                    throw new IOException("Not connected");
+                }
+                this.out.text(Frame.COMMAND, "/close");
+                this.out.flush();
+            } catch (IOException ioe) {    //e' gia' caduto
+            }
+            try {
+                this.sock.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close socket");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package chat;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips through a real Chat, driven over piped streams.
+ * The benchmark plays the remote peer: it sends a frame and waits for the
+ * Chat to answer, either because its EchoTerminal types the text back or
+ * because the frame is a command (/help) or a burst (/smile, /like).
+ *
+ * @author Amedeo
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    private static final int PIPE = 1024 * 1024;    //buffer dei pipe
+
+    private FrameWriter out;
+    private FrameReader in;
+    private PipedOutputStream chatOut;
+    private final Frame frame = new Frame();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PipedInputStream chatIn = new PipedInputStream(PIPE);
+        PipedOutputStream benchOut = new PipedOutputStream(chatIn);
+        PipedInputStream benchIn = new PipedInputStream(PIPE);
+        this.chatOut = new PipedOutputStream(benchIn);
+
+        EchoTerminal terminal = new EchoTerminal();
+        Thread chat = new Thread(() -> new Chat(chatIn, this.chatOut, false, terminal), "bench-chat");
+        chat.setDaemon(true);
+        chat.start();
+
+        //il benchmark fa la parte del server
+        CipherEngine cipher = CipherEngine.configured(true);    //uno solo per connessione, come i peer
+        this.out = new FrameWriter(benchOut, cipher);
+        this.in = new FrameReader(benchIn, cipher);
+        this.out.seed();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.out.text(Frame.COMMAND, "/close");
+        this.out.flush();
+    }
+
+    @Benchmark
+    public int text() throws IOException {
+        return this.exchange(Frame.TEXT, "hello, how are you?");
+    }
+
+    @Benchmark
+    public int help() throws IOException {
+        return this.exchange(Frame.COMMAND, "/help");
+    }
+
+    @Benchmark
+    public int smile() throws IOException {
+        return this.exchange(Frame.TEXT, "/smile");
+    }
+
+    @Benchmark
+    public int like() throws IOException {
+        return this.exchange(Frame.TEXT, "/like");
+    }
+
+    //invia un frame e attende la risposta testuale della Chat
+    private int exchange(byte type, String text) throws IOException {
+        this.out.text(type, text);
+        this.out.flush();
+        do {
+            if (!this.in.read(this.frame)) {
+                throw new IOException("Chat closed");
+            }
+        } while (this.frame.type != Frame.TEXT);
+        return this.frame.payload.remaining();
+    }
+
+}
@@ -0,0 +1,203 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class encrypts every payload with AES-GCM, using the JDK provider
+ * (and therefore its AES and GHASH intrinsics).
+ * A master key is derived from a passphrase shared by the two peers, but
+ * it never encrypts a frame: every direction of every connection has its
+ * own key, derived from the master key and from fresh random bytes of
+ * both peers, that each one sends in clear as soon as the connection is
+ * open (see seed()). Since the receiver's bytes are part of the key, a
+ * direction recorded from an earlier connection can't be replayed on a
+ * new one: it doesn't decrypt anymore.
+ * Every frame has its own nonce: the side of the sender followed by a
+ * counter, so the two directions never reuse a nonce and a frame can't be
+ * replayed, dropped or reordered without being noticed. The header of the
+ * frame is authenticated too, so its type, flags and channel can't be
+ * changed either; its length can't, since the tag would be cut.
+ *
+ * @author Amedeo
+ */
+final class AesGcmCipher implements CipherEngine {
+
+    private static final int TAG = 16;  //byte del tag di autenticazione
+    private static final int NONCE = 12;    //byte del nonce
+    private static final int SEED = 32; //byte casuali di ciascun lato, da cui si derivano le chiavi
+    private static final int WAIT = 30; //secondi di attesa dei byte casuali del remoto, prima di cifrare
+
+    private static final byte[] SALT = "Chat-Advanced".getBytes(StandardCharsets.US_ASCII);
+    private static final int ITERATIONS = 65536;
+
+    private static String lastPassphrase;   //la derivazione e' lenta: la faccio una volta sola
+    private static SecretKey lastKey;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey master; //derivato dalla passphrase, solo per derivare le chiavi
+    private final byte[] seed;  //byte casuali di questo lato
+    private final CountDownLatch seeded;    //aperto quando sono arrivati quelli del remoto
+    private volatile SecretKey sending; //chiave dei frame cifrati (null fino ai byte del remoto)
+    private volatile SecretKey receiving;   //chiave dei frame decifrati (idem)
+    private final Cipher encryption;
+    private final Cipher decryption;
+    private final byte[] nonce; //riutilizzato per ogni frame
+    private final byte[] aad;   //header autenticato, riutilizzato per ogni frame
+
+    private final int localSide; //lato di chi cifra
+    private final int remoteSide;  //lato di chi decifra
+    private long sent;  //frame cifrati finora
+    private long received;  //frame decifrati finora
+
+    AesGcmCipher(String passphrase, boolean server) {
+        this.localSide = server ? 1 : 2;
+        this.remoteSide = server ? 2 : 1;
+        this.seed = new byte[SEED];
+        AesGcmCipher.RANDOM.nextBytes(this.seed);
+        this.seeded = new CountDownLatch(1);
+        try {
+            this.master = AesGcmCipher.derive(passphrase);
+            this.encryption = Cipher.getInstance("AES/GCM/NoPadding");
+            this.decryption = Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException("AES-GCM is not available", gse);
+        }
+        this.nonce = new byte[NONCE];
+        this.aad = new byte[4];
+
+        this.sent = 0;
+        this.received = 0;
+    }
+
+    private static synchronized SecretKey derive(String passphrase) throws GeneralSecurityException {
+        if (!passphrase.equals(lastPassphrase)) {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), SALT, ITERATIONS, 256);
+            lastKey = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+            lastPassphrase = passphrase;
+        }
+        return lastKey;
+    }
+
+    //chiave di una direzione: HMAC del lato del mittente, dei suoi byte casuali e di quelli del ricevente
+    private SecretKey key(int side, byte[] sender, byte[] receiver) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(this.master);
+        mac.update((byte) side);
+        mac.update(sender);
+        return new SecretKeySpec(mac.doFinal(receiver), "AES");
+    }
+
+    @Override
+    public int overhead() {
+        return TAG;
+    }
+
+    @Override
+    public ByteBuffer seed() {
+        return ByteBuffer.wrap(this.seed).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void seeded(ByteBuffer seed) throws IOException {
+        if (this.seeded.getCount() == 0) {
+            throw new ProtocolException("Random bytes sent twice");
+        }
+        if (!seed.hasRemaining()) {
+            throw new ProtocolException("No random bytes: the peer uses another cipher");
+        }
+        if (seed.remaining() != SEED) {
+            throw new ProtocolException("Random bytes of the wrong size");
+        }
+        byte[] remote = new byte[SEED];
+        seed.get(remote);
+        try {
+            this.receiving = this.key(this.remoteSide, remote, this.seed);
+            this.sending = this.key(this.localSide, this.seed, remote);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Couldn't derive the keys of the frames", gse);
+        }
+        this.seeded.countDown();
+    }
+
+    @Override
+    public boolean ready() {
+        return this.seeded.getCount() == 0;
+    }
+
+    @Override
+    public void encrypt(int header, ByteBuffer data) throws IOException {
+        try {   //un writer bloccante puo' partire prima che il reader riceva i byte del remoto
+            if (!this.seeded.await(AesGcmCipher.WAIT, TimeUnit.SECONDS)) {
+                throw new ProtocolException("The peer never sent its random bytes");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the peer");
+        }
+        ByteBuffer input = data.duplicate();
+        data.limit(data.limit() + TAG);
+        try {
+            this.encryption.init(Cipher.ENCRYPT_MODE, this.sending, this.spec(this.localSide, this.sent++));
+            this.encryption.updateAAD(this.aad(header));
+            this.encryption.doFinal(input, data.duplicate());   //sul posto: il JDK gestisce la sovrapposizione
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Couldn't encrypt frame", gse);
+        }
+    }
+
+    @Override
+    public void decrypt(int header, ByteBuffer data) throws IOException {
+        if (this.receiving == null) {
+            throw new ProtocolException("Frame before the random bytes of the peer");
+        }
+        if (data.remaining() < TAG) {
+            throw new IOException("Frame too short to be decrypted");
+        }
+        ByteBuffer input = data.duplicate();
+        data.limit(data.limit() - TAG);
+        try {
+            this.decryption.init(Cipher.DECRYPT_MODE, this.receiving, this.spec(this.remoteSide, this.received++));
+            this.decryption.updateAAD(this.aad(header));
+            this.decryption.doFinal(input, data.duplicate());
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Couldn't decrypt frame", gse);
+        }
+    }
+
+    private byte[] aad(int header) {
+        for (int i = 0; i < 4; i++) {
+            this.aad[3 - i] = (byte) (header >>> (8 * i));
+        }
+        return this.aad;
+    }
+
+    private GCMParameterSpec spec(int side, long counter) {
+        //nonce: 4 byte per il lato, 8 byte per il contatore
+        this.nonce[0] = 0;
+        this.nonce[1] = 0;
+        this.nonce[2] = 0;
+        this.nonce[3] = (byte) side;
+        for (int i = 0; i < 8; i++) {
+            this.nonce[NONCE - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+        return new GCMParameterSpec(TAG * 8, this.nonce);
+    }
+
+}
@@ -0,0 +1,186 @@
+package chat;
+
+/**
+ * This class splits a command line in its tokens without copying it:
+ * the name of the command and its arguments are views on the line, and
+ * the same instance (with its views) is reused for every line.
+ * An instance is not thread safe: every thread parsing lines has its own.
+ *
+ * @author Amedeo
+ */
+public final class Arguments {
+
+    private static final int MAX = 16;  //argomenti separati al massimo (gli altri restano in rest())
+
+    private String line;    //riga analizzata
+    private final View name;    //primo token
+    private final View[] arguments; //token successivi
+    private final View rest;    //tutto cio' che segue il nome, cosi' come e' stato scritto
+    private int count;  //argomenti trovati
+
+    Arguments() {
+        this.name = new View();
+        this.arguments = new View[Arguments.MAX];
+        for (int i = 0; i < Arguments.MAX; i++) {
+            this.arguments[i] = new View();
+        }
+        this.rest = new View();
+    }
+
+    /**
+     * Splits a line, forgetting the previous one.
+     *
+     * @param line the line, like "/name NAME"
+     * @return the name of the command
+     */
+    CharSequence parse(String line) {
+        this.line = line;
+        int end = Arguments.skip(line, 0, false);
+        this.name.set(line, 0, end);
+        this.rest.set(line, Math.min(end + 1, line.length()), line.length());   //dopo il solo spazio che separa il nome
+
+        this.count = 0;
+        int start = Arguments.skip(line, end, true);
+        while (start < line.length() && this.count < Arguments.MAX) {
+            end = Arguments.skip(line, start, false);
+            this.arguments[this.count++].set(line, start, end);
+            start = Arguments.skip(line, end, true);
+        }
+        return this.name;
+    }
+
+    //primo indice da from in poi che e' (o non e') uno spazio
+    private static int skip(String line, int from, boolean spaces) {
+        while (from < line.length() && Character.isWhitespace(line.charAt(from)) == spaces) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return the whole line
+     */
+    public String line() {
+        return this.line;
+    }
+
+    /**
+     * @return the name of the command, like "/name"
+     */
+    public CharSequence name() {
+        return this.name;
+    }
+
+    /**
+     * @return how many arguments follow the name
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * Returns an argument. The view is valid until the next line is parsed.
+     *
+     * @param index the argument, starting from 0
+     * @return the argument
+     */
+    public CharSequence get(int index) {
+        if (index < 0 || index >= this.count) {
+            throw new IndexOutOfBoundsException("Argument " + index + " of " + this.count);
+        }
+        return this.arguments[index];
+    }
+
+    /**
+     * Returns everything after the name, spaces included, for the
+     * commands taking a single free argument (like a name or a path).
+     * The view is valid until the next line is parsed.
+     *
+     * @return the text after the name, empty if there's none
+     */
+    public CharSequence rest() {
+        return this.rest;
+    }
+
+    /**
+     * Compares a token with a word, ignoring case, without copying it.
+     *
+     * @param token the token
+     * @param word the word
+     * @return true if they are the same
+     */
+    public static boolean is(CharSequence token, String word) {
+        if (token.length() != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            char a = token.charAt(i);
+            char b = word.charAt(i);
+            if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)
+                    && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a non-negative decimal number, without copying the token.
+     *
+     * @param token the token
+     * @return the number
+     * @throws NumberFormatException if the token is not a number
+     */
+    public static int number(CharSequence token) {
+        if (token.length() == 0 || token.length() > 9) {    //niente overflow con al massimo 9 cifre
+            throw new NumberFormatException("Not a number: " + token);
+        }
+        int number = 0;
+        for (int i = 0; i < token.length(); i++) {
+            int digit = Character.digit(token.charAt(i), 10);
+            if (digit < 0) {
+                throw new NumberFormatException("Not a number: " + token);
+            }
+            number = 10 * number + digit;
+        }
+        return number;
+    }
+
+    //porzione della riga, riutilizzata per ogni riga
+    private static final class View implements CharSequence {
+
+        private String line;
+        private int start;
+        private int end;
+
+        private void set(String line, int start, int end) {
+            this.line = line;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= this.length()) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + this.length());
+            }
+            return this.line.charAt(this.start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return this.line.subSequence(this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return this.line.substring(this.start, this.end);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package chat;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class lends direct ByteBuffers, so that the connections of a
+ * NioServer don't allocate a buffer for every frame they read or write,
+ * and the socket doesn't copy it once more into a direct one.
+ * Buffers come in size classes, powers of two from 512 bytes to 2 MB:
+ * a lease gets the smallest class that fits, and a buffer given back goes
+ * to the free list of its class, which keeps up to "chat.pool" KB (4096
+ * by default). Larger leases get a heap buffer, never pooled.
+ * Every buffer must be given back exactly once, and never used afterwards.
+ * To find the ones that are not, one lease every "chat.pool.leaks" (128
+ * by default, 1 for all of them, 0 for none) is tracked: if its buffer is
+ * collected before being given back, the leak is reported with the stack
+ * trace of the lease.
+ *
+ * @author Amedeo
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 9; //classe piu' piccola: 512 byte
+    private static final int MAX_SHIFT = 21;    //classe piu' grande: 2 MB, piu' di un frame intero
+    private static final long KEPT = 1024L * Integer.getInteger("chat.pool", 4096); //byte conservati per classe
+    private static final int SAMPLING = Integer.getInteger("chat.pool.leaks", 128); //un prestito ogni tanti e' sorvegliato
+
+    private static final ArrayBlockingQueue<ByteBuffer>[] FREE = BufferPool.classes();  //buffer liberi, per classe
+
+    private static final ConcurrentHashMap<Integer, Lease> TRACKED = new ConcurrentHashMap<>(); //prestiti sorvegliati, per identita' del buffer
+    private static final ReferenceQueue<ByteBuffer> LOST = new ReferenceQueue<>();  //buffer raccolti senza essere restituiti
+
+    //un prestito sorvegliato: se il buffer viene raccolto prima di tornare, e' perso
+    private static final class Lease extends WeakReference<ByteBuffer> {
+
+        private final int key;  //chiave in TRACKED
+        private final Throwable trace;  //dove e' stato prestato
+
+        private Lease(ByteBuffer buffer, int key) {
+            super(buffer, BufferPool.LOST);
+            this.key = key;
+            this.trace = new Throwable("Buffer of " + buffer.capacity() + " bytes never given back, leased");
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})    //gli array generici si creano solo cosi'
+    private static ArrayBlockingQueue<ByteBuffer>[] classes() {
+        ArrayBlockingQueue<ByteBuffer>[] free = new ArrayBlockingQueue[MAX_SHIFT - MIN_SHIFT + 1];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayBlockingQueue<>((int) Math.max(1, KEPT >> (MIN_SHIFT + i)));   //nessuna allocazione per offer e poll
+        }
+        return free;
+    }
+
+    /**
+     * Lends a buffer, cleared, with at least the given capacity.
+     *
+     * @param size the bytes needed
+     * @return the buffer, direct unless size is larger than the largest class
+     */
+    static ByteBuffer lease(int size) {
+        BufferPool.collect();
+        int index = BufferPool.index(size);
+        if (index < 0) {    //piu' grande di qualunque frame: non vale la pena conservarlo
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = FREE[index].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (MIN_SHIFT + index));
+            Metrics.BUFFERS_ALLOCATED.increment();
+        }
+        buffer.clear();
+        Metrics.BUFFERS_LEASED.increment();
+
+        if (SAMPLING > 0 && ThreadLocalRandom.current().nextInt(SAMPLING) == 0) {
+            int key = System.identityHashCode(buffer);
+            TRACKED.putIfAbsent(key, new Lease(buffer, key));   //se la chiave e' occupata, questo non lo sorveglio
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back. Buffers that don't come from the pool, like
+     * read-only views or heap buffers, are ignored, so whatever was leased
+     * can be given back without checking.
+     *
+     * @param buffer the buffer
+     */
+    static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        int index = BufferPool.index(buffer.capacity());
+        if (index < 0 || buffer.capacity() != 1 << (MIN_SHIFT + index)) {   //non e' uno dei nostri
+            return;
+        }
+        Metrics.BUFFERS_RELEASED.increment();
+
+        if (!TRACKED.isEmpty()) {
+            int key = System.identityHashCode(buffer);
+            Lease lease = TRACKED.get(key);
+            if (lease != null && lease.get() == buffer && TRACKED.remove(key, lease)) {
+                lease.clear();  //non finira' in LOST
+            }
+        }
+        FREE[index].offer(buffer);  //se la classe ne ha gia' abbastanza lo lascio al garbage collector
+    }
+
+    //classe di una dimensione (-1 se e' troppo grande)
+    private static int index(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    //segnala i buffer sorvegliati raccolti senza essere restituiti
+    private static void collect() {
+        Lease lost;
+        while ((lost = (Lease) LOST.poll()) != null) {
+            if (TRACKED.remove(lost.key, lost)) {
+                Metrics.BUFFERS_LEAKED.increment();
+                StackTraceElement[] stack = lost.trace.getStackTrace();
+                int first = 0;
+                while (first < stack.length - 1 && stack[first].getClassName().startsWith(BufferPool.class.getName())) {
+                    first++;    //il chiamante, non il pool
+                }
+                lost.trace.setStackTrace(Arrays.copyOfRange(stack, first, stack.length));
+                lost.trace.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is the historical cipher of the chat, similar to the Caesar
+ * cipher: every byte is shifted by a fixed key.
+ * It's kept as the default for continuity: peers still speaking the old
+ * text protocol shift their lines the same way, but that protocol has
+ * its own chat (see LegacyChat). It hides nothing.
+ *
+ * @author Amedeo
+ */
+final class CaesarCipher implements CipherEngine {
+
+    private static final byte KEY = 10; //chiave di cifratura
+
+    @Override
+    public int overhead() {
+        return 0;
+    }
+
+    @Override
+    public boolean shareable() {
+        return true;
+    }
+
+    @Override
+    public void encrypt(int header, ByteBuffer data) {
+        CaesarCipher.shift(data, KEY);
+    }
+
+    @Override
+    public void decrypt(int header, ByteBuffer data) {
+        CaesarCipher.shift(data, (byte) -KEY);
+    }
+
+    //modifico in chiave, sul posto
+    private static void shift(ByteBuffer data, byte key) {
+        if (data.hasArray()) {  //accesso diretto all'array: niente controlli per ogni byte
+            byte[] array = data.array();
+            int end = data.arrayOffset() + data.limit();
+            for (int i = data.arrayOffset() + data.position(); i < end; i++) {
+                array[i] += key;
+            }
+        } else {
+            for (int i = data.position(); i < data.limit(); i++) {
+                data.put(i, (byte) (data.get(i) + key));
+            }
+        }
+    }
+
+}
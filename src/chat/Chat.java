@@ -1,452 +1,1181 @@
 package chat;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is the actual core of the chat.
  * It provides every method needed to write, listen and also understand
  * special commands that trigger an event.
+ * Both sides can write at any time: received messages are handled by a
+ * reader thread, while messages to send are queued to a writer thread.
+ * Messages, commands and files travel as binary frames (see Frame): a
+ * long message is split into many, and its lines are shown as they
+ * arrive (see Lines).
+ * A chat started on a Link survives a dropped connection, if the other
+ * side gave it a session token: it opens the connection again and gets
+ * the messages it missed (see Sessions).
  * 
  * @author Amedeo
  */
 public class Chat {
 
-    private static final String END = "(end)";  //stringa di passaggio "facolta' di parola"
-
-    private static final int KEY = 10;  //chiave di cifratura
+    private static final int MAX_OUTBOUND = 64; //messaggi in attesa di invio al massimo
+    private static final int MAX_CHANGES = 3;   //cambi di status mostrati uno per uno al massimo
+    private static final long MAX_BATCH_DELAY = TimeUnit.MILLISECONDS.toNanos(1);  //attesa massima di un frame accumulato
+    private static final long DRAIN = 5000; //ms concessi al writer per inviare quanto resta in coda
+
+    //lista dei comandi disponibili, inviata da /help
+    static final String[] HELP = {
+        "/help: show this list",
+        "/close: close the connection",
+        "/echo: send the last received message",
+        "/smile: send a smile",
+        "/like: send a thumb up",
+        "/name NAME: change your current name to NAME (??? if invalid input)",
+        "/status [AVAILABLE | BUSY]: change your current status",
+        "/file FILEPATH: send the file located in FILEPATH",
+        "/stats: show your statistics and the ones of the other side",
+        "/history [N]: show the last N messages of the conversation (10 if omitted)",
+        "/join ROOM: move to ROOM (multi-client servers only)",
+        "/leave: go back to the lobby (multi-client servers only)",
+        "/rooms: list the rooms (multi-client servers only)",
+        "/who: list who is online, with its status"
+    };
+
+    private static final List<Command> EXTRA = Chat.load();   //comandi aggiunti tramite ServiceLoader
+    private static final CommandRegistry<Chat> TYPED = new CommandRegistry<>(); //comandi scritti in locale
+    private static final CommandRegistry<Chat> RECEIVED = new CommandRegistry<>();  //comandi ricevuti dal remoto
+
+    static {
+        Chat.commands();
+    }
 
     private static final String RESET_COLOR = "\u001B[0m";  //stringa per terminare la colorazione
     private static final String YOUR_COLOR = "\u001B[45m";  //stringa per colorare lo sfondo del locale (viola)
     private static final String ITS_COLOR = "\u001B[44m";   //stringa per colorare lo sfondo del remoto (blu)
 
     private final InputStream is;   //input stream come da parametro costruttore, utile per wrapparlo per ogni esigenza
-    private Scanner in; //input stream wrappato per ricevere caratteri
+    private volatile FrameReader in;    //input stream wrappato per ricevere frame (sostituito se la connessione cade)
 
     private final OutputStream os;  //output stream come da parametro costruttore, utile per wrapparlo per ogni esigenza
-    private PrintWriter out;    //output stream wrappato per inviare caratteri
+    private FrameWriter out;    //output stream wrappato per inviare frame
+    private Compression compression;    //compressione dei frame (null se disabilitata)
+
+    private final Terminal terminal;    //da dove leggo cosa inviare e dove mostro cosa ricevo
+    private final HistoryLog history;   //messaggi scambiati, salvati su disco
+    private final InetAddress local;    //indirizzo locale della connessione, per gli stream aggiuntivi dei file (null se sconosciuto)
+    private final InetAddress peer; //indirizzo remoto, per gli stream aggiuntivi dei file (null se sconosciuto)
+    private final boolean server;   //se la chat e' il lato server, settato a true
+
+    private final Link link;    //connessione da riaprire se cade (null se non si puo')
+    private final ReentrantLock wire;   //lock per usare out, o sostituirlo con quello di una nuova connessione
+    private final Condition reopened;   //segnalata quando out e' sostituito
+    private int generation; //connessioni riaperte (protetto da wire)
+    private int uploading;  //connessione dei file in uscita (solo per il writer)
+    private int batched;    //connessione su cui sono stati scritti i messaggi non ancora inviati (protetto da wire)
+    private long written;   //frame TEXT inviati, prima di quelli non ancora inviati (protetto da wire)
+    private volatile String session;    //token per riprendere la sessione (null se il remoto non l'ha dato)
+    private long texts; //frame TEXT ricevuti da quando ho il token (solo per il reader)
+    private boolean resuming;   //se attendo che il remoto confermi la ripresa, settato a true (solo per il reader)
 
     private String yourName;    //nome locale
     private Status yourStatus;  //status locale
 
-    private String itsName; //nome remoto
-    private Status itsStatus;   //status remoto
-
-    private ArrayList<String> lastMessage;  //ultimo messaggio ricevuto (diviso in righe)
+    private volatile String itsName; //nome remoto
+    private volatile Status itsStatus;   //status remoto
+    private volatile String yours;  //prompt locale
+    private volatile String its;    //prompt remoto
+    private final ConcurrentHashMap<Long, String> online;   //chi e' online nei server multi-client: "STATUS NOME" per id
+    private long presence;  //ultima versione della presenza ricevuta (solo per il reader)
+
+    private volatile List<String> lastMessage;  //ultimo messaggio ricevuto (diviso in righe, fino a Lines.CAP caratteri)
+    private final Lines lines;  //righe del messaggio in arrivo (solo per il reader)
+    private ArrayList<String> receiving;    //righe tenute del messaggio in arrivo, per /echo (solo per il reader)
+    private int kept;   //caratteri tenuti del messaggio in arrivo (solo per il reader)
+    private final Frame frame;  //ultimo frame ricevuto
+
+    private final ArrayBlockingQueue<Outgoing> outbound;    //messaggi in attesa del writer
+    private final ConcurrentLinkedQueue<String> controls;   //CONTROL del reader: senza limite, il writer li invia per primi
+    private final CountDownLatch closed;    //aperto quando la chat termina
+    private final Heartbeat heartbeat;  //controlla che il remoto ci sia ancora
+    private final Uploads uploads;  //file in uscita, a blocchi tra i messaggi (solo per il writer)
+    private final Downloads downloads;  //file in arrivo, a blocchi tra i messaggi (solo per il reader)
+
+    private final Command.Context context;  //per i comandi aggiunti
+    private final Arguments keyboard;   //ultima riga scritta, divisa (solo per il thread della tastiera)
+    private final Arguments remote; //ultimo comando ricevuto, diviso (solo per il reader)
+
+    private volatile boolean over;   //se la chat e' terminata, settato a true
+
+    //un frame da inviare, eventualmente seguito da un file
+    private static final class Outgoing {
+
+        private static final Outgoing STOP = new Outgoing(Frame.CONTROL, "", null);   //ferma il writer
+        private static final Outgoing WAKE = new Outgoing(Frame.CONTROL, "", null);   //sveglia il writer: un file ha novita'
+        private static final Outgoing CHUNK = new Outgoing(Frame.FILE_CHUNK, "", null);   //il prossimo blocco di un file
+
+        private final byte type;
+        private final String text;
+        private final File file;
+        private final boolean more; //il messaggio continua nel prossimo (una riga tagliata di una pipe)
+
+        private Outgoing(byte type, String text, File file) {
+            this(type, text, file, false);
+        }
 
-    private boolean over;   //se la chat e' terminata, settato a true
+        private Outgoing(byte type, String text, File file, boolean more) {
+            this.type = type;
+            this.text = text;
+            this.file = file;
+            this.more = more;
+        }
+    }
 
     /**
      * The constructor needs to have generic InputStream and OutputStream,
      * respectively to read and write. It also wants to know if the caller needs
-     * to be a server or a client, in order to synchronize them.
+     * to be a server or a client: the server greets first.
      * 
      * @param inputStream the input stream
      * @param outputStream the output stream
      * @param server true if the caller is a server
      */
     public Chat(InputStream inputStream, OutputStream outputStream, boolean server) {
+        this(inputStream, outputStream, server, new ConsoleTerminal());
+    }
+
+    /**
+     * Same as above, but knowing the addresses of the connection files can
+     * be sent over more connections at once (see the "chat.streams"
+     * system property).
+     *
+     * @param inputStream the input stream
+     * @param outputStream the output stream
+     * @param server true if the caller is a server
+     * @param local the address of this side of the connection
+     * @param peer the address of the other side
+     */
+    public Chat(InputStream inputStream, OutputStream outputStream, boolean server, InetAddress local, InetAddress peer) {
+        this(inputStream, outputStream, server, new ConsoleTerminal(), HistoryLog.open(server ? "server" : "client"), local, peer);
+    }
+
+    /**
+     * Same as the public constructor, but the local side of the chat is the
+     * given terminal instead of the keyboard and the standard output.
+     *
+     * @param inputStream the input stream
+     * @param outputStream the output stream
+     * @param server true if the caller is a server
+     * @param terminal the local side of the chat
+     */
+    Chat(InputStream inputStream, OutputStream outputStream, boolean server, Terminal terminal) {
+        this(inputStream, outputStream, server, terminal, HistoryLog.open(server ? "server" : "client"));
+    }
+
+    /**
+     * Same as above, but the conversation is saved in the given history,
+     * which is closed when the chat ends.
+     *
+     * @param inputStream the input stream
+     * @param outputStream the output stream
+     * @param server true if the caller is a server
+     * @param terminal the local side of the chat
+     * @param history the history of the conversation
+     */
+    Chat(InputStream inputStream, OutputStream outputStream, boolean server, Terminal terminal, HistoryLog history) {
+        this(inputStream, outputStream, server, terminal, history, null, null);
+    }
+
+    /**
+     * Same as above, knowing the addresses of the connection.
+     *
+     * @param inputStream the input stream
+     * @param outputStream the output stream
+     * @param server true if the caller is a server
+     * @param terminal the local side of the chat
+     * @param history the history of the conversation
+     * @param local the address of this side of the connection (null if unknown)
+     * @param peer the address of the other side (null if unknown)
+     */
+    Chat(InputStream inputStream, OutputStream outputStream, boolean server, Terminal terminal, HistoryLog history, InetAddress local, InetAddress peer) {
+        this(inputStream, outputStream, server, terminal, history, local, peer, null);
+    }
+
+    /**
+     * Same as above, on a connection that is opened again if it drops:
+     * the chat asks the other side for a session token, and if it gets
+     * one it resumes the session instead of ending.
+     *
+     * @param link the connection
+     * @param server true if the caller is a server
+     * @param terminal the local side of the chat
+     * @param history the history of the conversation
+     */
+    Chat(Link link, boolean server, Terminal terminal, HistoryLog history) {
+        this(Chat.input(link), Chat.output(link), server, terminal, history, link.local(), link.peer(), link);
+    }
+
+    private Chat(InputStream inputStream, OutputStream outputStream, boolean server, Terminal terminal, HistoryLog history, InetAddress local, InetAddress peer, Link link) {
 
         this.yourName = "You";  //nome locale di default
         this.yourStatus = Status.AVAILABLE; //status locale di default
 
         this.itsName = "???";   //nome remoto di default
         this.itsStatus = Status.AVAILABLE;  //status remoto di default
+        this.online = new ConcurrentHashMap<>();
+        this.presence = 0;
 
         this.is = inputStream;
         this.os = outputStream;
+        this.terminal = terminal;
+        this.history = history;
+        this.local = local;
+        this.peer = peer;
+        this.server = server;
+        this.yoursChanged();    //i colori dipendono dal terminale
+        this.itsChanged();
+
+        this.link = link;
+        this.wire = new ReentrantLock();
+        this.reopened = this.wire.newCondition();
+        this.generation = 0;
+        this.uploading = 0;
+        this.resuming = false;
+
+        this.lastMessage = Collections.emptyList();
+        this.lines = new Lines();
+        this.receiving = new ArrayList<>();
+        this.frame = new Frame();
+        this.outbound = new ArrayBlockingQueue<>(Chat.MAX_OUTBOUND);
+        this.controls = new ConcurrentLinkedQueue<>();
+        this.closed = new CountDownLatch(1);
+        this.uploads = new Uploads(peer, () -> this.outbound.offer(Outgoing.WAKE), this::sent);   //coda piena: il writer si sveglia comunque
+        this.downloads = terminal.shared() ? Downloads.uploads(local, peer, this::control, this::received) : new Downloads(new File("."), local, peer, this::control, this::received);   //i client di un server possono essere chiunque
+        this.heartbeat = new Heartbeat(() -> this.control(Heartbeat.PING), this::timedOut);
+
+        this.context = new CommandContext();
+        this.keyboard = new Arguments();
+        this.remote = new Arguments();
 
         this.over = false;  //la chat e' appena iniziata
 
         if (inputStream != null && outputStream != null) {  //se entrambi gli stream passati sono validi
-            //li wrappo per utilizzarli con i caratteri
-            this.in = new Scanner(inputStream);
-            this.out = new PrintWriter(outputStream);
-
-            if (server) {   //se e' un server, da'(accento, non apostrofo) un messaggio di benvenuto...
-                //giusto per sfasare altrimenti sia il client che il server vorrebbero ricevere
-                //allo stesso momento
+            //li wrappo per utilizzarli con i frame, compressi e cifrati come configurato
+            CipherEngine cipher = CipherEngine.configured(server);
+            this.compression = Compression.configured();
+            this.in = new FrameReader(inputStream, cipher, this.compression);
+            this.out = new FrameWriter(outputStream, cipher, this.compression);
+
+            //tre flussi indipendenti: ricezione, invio e tastiera (thread virtuali, se disponibili)
+            Thread reader = ThreadServer.newThread(this::read, "chat-reader");
+            Thread writer = ThreadServer.newThread(this::write, "chat-writer");
+            Thread keyboard = ThreadServer.newThread(this::type, "chat-keyboard");
+            keyboard.setDaemon(true);   //la tastiera non si puo' interrompere: non deve tenere in vita il processo
+
+            reader.start();
+            writer.start();
+            this.heartbeat.start();
+            if (this.link != null) {    //chiedo un token, per riprendere la sessione se la connessione cade
+                this.send(new Outgoing(Frame.CONTROL, Sessions.SESSION, null));
+            }
+            if (this.compression != null) { //annuncio che so decomprimere
+                this.send(new Outgoing(Frame.CONTROL, Compression.HELLO, null));
+            }
+            if (server && this.terminal.interactive()) {    //se e' un server, da'(accento, non apostrofo) un messaggio di benvenuto (non nei dati)
                 this.welcome();
             }
-            while (!over) { //se la chat non e' terminata
-                this.lastMessage = this.receive();  //salvo l'ultimo messaggio ricevuto
-                this.menu();    //smisto in caso di comando inviato
+            keyboard.start();
+
+            try {
+                this.closed.await();    //attendo che uno dei due lati chiuda
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
             }
+            this.heartbeat.stop();
 
-            System.out.println("Bye!"); //messaggio di conferma chiusura
+            if (this.terminal.interactive()) {
+                System.out.println("Bye!"); //messaggio di conferma chiusura (non alla stanza, se il terminale e' di un server)
+            } else {
+                this.terminal.show("Bye!"); //fuori dai dati
+            }
 
-            //chiudo gli stream di input e output (i wrapper verranno eliminati dal garbage collector)
-            //non che cosi' deallochi gli stream, beninteso...
-            in.close();
-            out.close();
+            //lascio inviare quanto gia' in coda, poi chiudo gli stream di input e output
+            //(i wrapper verranno eliminati dal garbage collector)
+            try {
+                //se il writer e' morto, o non svuota la coda, non lo attendo per sempre
+                if (writer.isAlive() && !this.outbound.offer(Outgoing.STOP, Chat.DRAIN, TimeUnit.MILLISECONDS)) {
+                    writer.interrupt();
+                }
+                writer.join(Chat.DRAIN);    //se e' fermo su un socket pieno, lo sblocca la chiusura dell'output
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close output stream");
+            }
+            try {
+                in.close(); //sblocca anche il reader
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close input stream");
+            }
+            try {
+                reader.join();  //un thread virtuale non terrebbe in vita il processo
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            this.history.close();   //salvo quanto resta della conversazione
 
         } else {
             System.err.println("At least one of the streams is not valid");
+            this.history.close();
         }
 
     }
 
-    private void welcome() {
-        //invio il messaggio di benvenuto (che non e' terminato) e la lista di comandi disponibili
-        this.send("Welcome! What would you like to do?", false);
-        this.help();
+    //stream della connessione (null se non e' aperta)
+    private static InputStream input(Link link) {
+        try {
+            return link.input();
+        } catch (IOException ioe) {
+            System.err.println("Input Socket is not linked");
+        }
+        return null;
+    }
+
+    private static OutputStream output(Link link) {
+        try {
+            return link.output();
+        } catch (IOException ioe) {
+            System.err.println("Output Socket is not linked");
+        }
+        return null;
     }
 
-    private ArrayList<String> receive() {
-        //istanzio un array inizialmente vuoto (una riga = un elemento)
-        ArrayList<String> message = new ArrayList<>();
-        //leggo la linea, decifrandola
-        String temp = decipher(in.nextLine());
+    //carica i comandi aggiunti, scartando quelli che non si possono istanziare
+    private static List<Command> load() {
+        ArrayList<Command> extra = new ArrayList<>();
+        Iterator<Command> commands = ServiceLoader.load(Command.class).iterator();
+        while (true) {
+            try {
+                if (!commands.hasNext()) {
+                    break;
+                }
+                extra.add(commands.next());
+            } catch (ServiceConfigurationError sce) {
+                System.err.println("Couldn't load command (" + sce.getMessage() + ")");
+            }
+        }
+        return extra;
+    }
 
-        while (!temp.equals(Chat.END)) {    //se la riga ricevuta non e' il terminatore
-            message.add(temp);  //aggiungo la linea
-            temp = decipher(in.nextLine()); //ne leggo un'altra, decifrandola
+    //cio' che i comandi aggiunti possono fare con la chat
+    private final class CommandContext implements Command.Context {
+
+        @Override
+        public void show(String line) {
+            Chat.this.terminal.show(line);
+        }
+
+        @Override
+        public void say(String... lines) {
+            Chat.this.say(lines);
         }
 
-        return message;
+        @Override
+        public void command(String line) {
+            Chat.this.command(line);
+        }
+
+        @Override
+        public String yourName() {
+            return Chat.this.yourName;
+        }
+
+        @Override
+        public String itsName() {
+            return Chat.this.itsName;
+        }
     }
 
-    //smistamento dei messaggi ricevuti
-    private void menu() {
-        if (lastMessage.get(0).equals("/help")) { //comando per listare i comandi
-            this.help();
-            
-        } else if (lastMessage.get(0).equals("/close")) {   //comando per chiudere la connessione
-            this.over = true;   //basta settare la variabile per finire la chat
-            
-        } else if (lastMessage.get(0).startsWith("/name")) {    //comando per cambiare il proprio nome
-            System.out.print(this.itsPrompt() + "changed its name in ");    //stampo nome vecchio
-            if (lastMessage.get(0).length() > 5) {  //se ho effettivamente scritto qualcosa
-                this.itsName = lastMessage.get(0).substring(6); //setto il nuovo nome
-            } else {
-                this.itsName = "???";   //nome di default in caso di errore
-            }
-            System.out.println(this.itsName);   //stampo il nuovo nome
-            this.send();    //pronto ad inviare
-            
-        } else if (lastMessage.get(0).startsWith("/status")) {  //comando per cambiare status
-            String stat;
-            if (lastMessage.get(0).length() > 7) {  //se ho scritto qualcosa dopo il comando
-                stat = lastMessage.get(0).substring(8); //vedo che ho scritto
-            } else {
-                stat = "AVAILABLE"; //stato di default
-            }
+    private void welcome() {
+        //invio il messaggio di benvenuto insieme alla lista di comandi disponibili
+        String[] message = new String[Chat.HELP.length + 1];
+        message[0] = "Welcome! What would you like to do?";
+        System.arraycopy(Chat.HELP, 0, message, 1, Chat.HELP.length);
+        this.send(message);
+    }
 
-            if (stat.equalsIgnoreCase("BUSY")) {    //se riconosco busy, bene
-                this.itsStatus = Status.BUSY;
-            } else {    //altrimenti metto il default
-                this.itsStatus = Status.AVAILABLE;
-            }
+    private void finish() {
+        this.over = true;
+        this.closed.countDown();
+    }
 
-            System.out.println(this.itsPrompt() + "changed its status");    //prompt gia' modificato
-            this.send();    //pronto ad inviare
-            
-        } else if (lastMessage.get(0).startsWith("/file")) {    //comando teasferimento file
-            //prendo solo nome file (il mittente ha gia' controllato che mi puo' effettivamente inviare il file)
-            String filename = lastMessage.get(0).substring(lastMessage.get(0).lastIndexOf("/") + 1); //a partire dall'ultimo slash
-            File file = new File("./" + filename);  //salvo con lo stesso nome nella cartella attuale
-            
-            if (!file.exists()) {   //se il file non esiste
-                this.receiveFile(file); //ricevo il file
-                System.out.println(this.itsPrompt() + filename + " received");
-            } else {
-                //se il file esiste gia' uso nome di default, senza estensione
-                System.out.println(this.itsPrompt() + "The file already exists: renaming it to \"file\"");
-                file = new File("./file");
-                this.receiveFile(file);
+    //nessun frame da troppo tempo: chiudo la connessione, e il reader se ne accorge (sul thread del battito)
+    private void timedOut() {
+        System.err.println("Connection timed out: no frames for " + Heartbeat.idle() + " seconds");
+        if (this.link != null) {
+            this.link.drop();   //il reader provera' a riaprirla
+        } else {
+            try {
+                this.in.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close input stream");
             }
-            
-            this.send();    //pronto a inviare
-            
-        } else {    //se non ho riconosciuto nessun comando
-            for (String temp : lastMessage) {   //stampo tutte le righe
-                System.out.println(this.itsPrompt() + temp);
+        }
+    }
+
+    //thread di ricezione: riceve e smista i messaggi finche' la chat non termina
+    private void read() {
+        while (!over) {
+            if (this.receive()) {
+                this.menu();    //smisto in base al tipo di frame
+            } else if (over || !this.reconnect()) { //il remoto ha chiuso la connessione, e non posso riaprirla
+                this.finish();
             }
-            this.send();    //pronto ad inviare
         }
+        this.downloads.close(); //quanto verificato resta per riprendere
     }
 
-    //smistamento comandi in invio
-    private void send() {
-        Scanner keyboard = new Scanner(System.in);
+    //la connessione e' caduta: ne apro un'altra e chiedo di riprendere la sessione
+    private boolean reconnect() {
+        String session = this.session;
+        if (this.link == null || session == null) {
+            return false;
+        }
+        this.terminal.show(this.yourPrompt() + "Connection lost, reconnecting...");
+        this.link.drop();   //sblocca il writer, se e' fermo su una scrittura
+        this.heartbeat.stop();  //reopen() ha gia' i suoi tempi
+        this.downloads.close(); //il mittente li offrira' di nuovo, da dove sono arrivati
+
+        while (this.link.reopen(() -> this.over)) { //senza lock: puo' durare minuti, e il writer deve poter fallire
+            try {
+                //nuova connessione, nuovo stato: come all'inizio della chat
+                CipherEngine cipher = CipherEngine.configured(this.server);
+                Compression compression = Compression.configured();
+                FrameReader in = new FrameReader(this.link.input(), cipher, compression);
+                FrameWriter out = new FrameWriter(this.link.output(), cipher, compression);
+                out.seed();
+                in.seed();  //prima di cifrare: il reader sono io
+                out.text(Frame.CONTROL, Sessions.session(session, this.texts, this.written()));  //il remoto salta quanto ripeto ed era gia' arrivato
+                if (compression != null) {
+                    out.text(Frame.CONTROL, Compression.HELLO);
+                }
+                out.flush();
 
-        //stampo il prompt e leggo da tastiera
-        System.out.print(this.yourPrompt());
-        String line = keyboard.nextLine();
-
-        if (line.startsWith("/close")) {    //comando chiusura connessione
-            this.over = true;   //setto variabile chiusura localmente
-            this.send(line, true);  //dico a remoto di chiudere
-            
-        } else if (line.startsWith("/echo")) {  //riinvio l'ultimo messaggio ricevuto
-            for (String temp : lastMessage) {   //riga per riga
-                this.send(temp, false); //invio senza terminare
-            }
-            this.endTransfer(); //passo e chiudo
-            
-        } else if (line.startsWith("/smile")) { //comando per inviare smile
-            this.smile();
-            
-        } else if (line.startsWith("/like")) {  //comando per inviare like
-            this.like();
-            
-        } else if (line.startsWith("/name")) {  //comando per cambiare nome
-            if (line.length() > 5) {    //se valido
-                this.yourName = line.substring(6);  //lo imposto
-            } else {
-                this.yourName = "???";  //alrimenti metto quello di default
+                this.in = in;
+                this.compression = compression;
+                this.resuming = true;   //il remoto confermera' prima di inviare altro
+                this.wire.lock();   //solo per lo scambio: la connessione e' gia' pronta
+                try {
+                    this.out = out;
+                    this.generation++;
+                    this.reopened.signalAll();  //il writer puo' ripetere quanto non e' arrivato
+                } finally {
+                    this.wire.unlock();
+                }
+                this.heartbeat.start();
+                return true;
+            } catch (IOException ioe) {
+                this.link.drop();   //caduta anche questa: ne provo un'altra
             }
-            this.send(line, true);  //invio il comando a remoto
-            
-        } else if (line.startsWith("/status")) {    //comanfo per cambiare status
-            String stat;
+        }
+        return false;
+    }
 
-            if (line.length() > 7) {    //se valido
-                stat = line.substring(8);   //lo prendo
-            } else {
-                stat = "AVAILABLE"; //altrimenti default
+    //frame TEXT inviati: la connessione e' caduta, quindi non cambiano piu' fino allo scambio
+    private long written() {
+        this.wire.lock();   //attendo il writer, se sta finendo una scrittura
+        try {
+            return this.written;
+        } finally {
+            this.wire.unlock();
+        }
+    }
+
+    //thread di invio: scrive i messaggi in coda, nell'ordine in cui sono stati accodati;
+    //quelli accodati insieme partono con una sola scrittura. I blocchi dei file
+    //riempiono i vuoti tra i messaggi, e ne passa comunque uno ogni Uploads.WEIGHT
+    private void write() {
+        ArrayList<Outgoing> unflushed = new ArrayList<>();  //scritti ma non ancora inviati
+        int streak = 0; //messaggi inviati di fila mentre un blocco era pronto
+        try {
+            this.out.seed();    //prima di tutto: il remoto sa che parlo a frame, e il cifrario puo' partire
+            long batch = System.nanoTime(); //inizio dei frame non ancora inviati
+            while (true) {
+                String control;
+                while ((control = this.controls.poll()) != null) {  //prima di tutto: il remoto li attende per andare avanti
+                    this.transmit(new Outgoing(Frame.CONTROL, control, null), unflushed);
+                }
+                boolean bulk = this.uploads();
+                Outgoing message = bulk && streak >= Uploads.WEIGHT ? Outgoing.CHUNK : this.outbound.poll();
+                if (message == null && bulk) {  //nessun messaggio: tocca ai file
+                    message = Outgoing.CHUNK;
+                }
+                if (message == null) {  //niente da fare: invio quanto scritto e attendo
+                    this.transmit(null, unflushed);
+                    //un file che attende una risposta scade anche se non arriva nulla
+                    message = this.uploads.waiting() ? this.outbound.poll(1, TimeUnit.SECONDS) : this.outbound.take();
+                    batch = System.nanoTime();
+                }
+                if (message == Outgoing.STOP) {
+                    break;
+                }
+                if (message == null || message == Outgoing.WAKE) {
+                    continue;
+                }
+                streak = message == Outgoing.CHUNK || !bulk ? 0 : streak + 1;
+
+                long start = System.nanoTime();
+                this.transmit(message, unflushed);  //cifro il messaggio, senza ancora inviarlo
+                Metrics.WRITE.since(start);
+                if (start - batch >= Chat.MAX_BATCH_DELAY) {    //ho aspettato troppo
+                    this.transmit(null, unflushed);
+                    batch = System.nanoTime();
+                }
+            }
+            this.transmit(null, unflushed); //quanto resta prima di chiudere
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ioe) {
+            if (!over) {
+                System.err.println("Couldn't write on output stream");
             }
+            this.finish();
+        } finally {
+            this.uploads.abort("chat closed");  //si possono riprendere nella prossima chat
+        }
+    }
 
-            if (stat.equalsIgnoreCase("BUSY")) {    //se corrisponde a busy
-                this.yourStatus = Status.BUSY;      //lo imposto
-            } else {
-                this.yourStatus = Status.AVAILABLE; //altrimenti metto disponibile
+    //aggiorna i file in uscita (true se uno ha un blocco pronto); quelli offerti
+    //su una connessione caduta sono persi, il ricevente li ha chiusi
+    private boolean uploads() {
+        this.wire.lock();
+        try {
+            if (this.uploading != this.generation) {
+                this.uploads.abort("connection lost");
+                this.uploading = this.generation;
             }
-            this.send(line, true);  //invio comando
-            
-        } else if (line.startsWith("/file")) {  //comando trasferimento file
-            File file;
+            this.uploads.update(this.out);
+        } finally {
+            this.wire.unlock();
+        }
+        return this.uploads.ready();
+    }
 
-            if (line.length() > 5) {    //se ho effettivamente scritto qualcosa
-                file = new File(line.substring(6)); //prelevo il nome
-                if (file.isFile() && file.exists()) {   //se e' un file ed esiste
-                    this.send(line, true);  //invio il comando
-                    this.sendFile(file);    //invio il file
-                } else {
-                    System.out.println(this.yourPrompt() + "Can't Access File");    //messaggio di errore locale
-                    send("~*Sytax Error*~", true);  //messaggio di errore remoto
+    //scrive un messaggio (se null, invia quelli scritti); se la connessione cade e
+    //il reader ne apre un'altra, ripete su questa quelli non ancora inviati
+    private void transmit(Outgoing message, ArrayList<Outgoing> unflushed) throws IOException, InterruptedException {
+        this.wire.lock();
+        try {
+            int generation = this.generation;
+            try {
+                if (!unflushed.isEmpty() && this.batched != generation) {   //scritti su una connessione che non c'e' piu'
+                    this.repeat(unflushed);
                 }
-            } else {
-                System.out.println(this.yourPrompt() + "~*Sytax Error*~");  //messaggio di errore locale...
-                this.send("~*Sytax Error*~", true); //... e remoto
+                if (message == null) {
+                    this.out.flush();
+                    this.flushed(unflushed);
+                    return;
+                }
+                if (message == Outgoing.CHUNK) {
+                    this.uploads.next(this.out);
+                    return;
+                }
+                if (message.type != Frame.CONTROL && message.file == null) {  //i CONTROL valgono per una sola connessione
+                    if (unflushed.isEmpty()) {
+                        this.batched = generation;
+                    }
+                    unflushed.add(message);
+                }
+                Chat.write(this.out, message);
+                if (message.file != null) {
+                    this.uploads.start(message.file);   //l'offerta seguira' il comando, il contenuto arrivera' a blocchi
+                }
+            } catch (IOException ioe) {
+                this.uploads.abort("connection lost");  //i file non si ripetono: si riprendono inviandoli di nuovo
+                while (this.resumed(generation)) {
+                    generation = this.generation;
+                    try {
+                        this.repeat(unflushed);
+                        this.out.flush();
+                        this.flushed(unflushed);
+                        return;
+                    } catch (IOException again) {   //caduta anche la nuova: attendo la prossima
+                    }
+                }
+                throw ioe;
             }
-            
-        } else {    //se non riconosco nessun comando
-            this.send(line, true);  //invio normalmente
+        } finally {
+            this.wire.unlock();
         }
     }
 
-    private void send(String message, boolean end) {
-        out.println(cipher(message));   //invio, cifrando il messaggio
-        if (end) {  //se voglio anche passare il testimone
-            this.endTransfer(); //invio terminatore
+    //ripete sulla connessione attuale i messaggi non ancora inviati
+    private void repeat(ArrayList<Outgoing> unflushed) throws IOException {
+        this.batched = this.generation;
+        for (Outgoing lost : unflushed) {
+            Chat.write(this.out, lost);
         }
     }
 
-    private String yourPrompt() {
-        //prompt composto dal nome (colorato)
-        String prompt = Chat.YOUR_COLOR + this.yourName;
+    //i messaggi scritti sono stati inviati: li conto, per la ripresa della sessione
+    private void flushed(ArrayList<Outgoing> unflushed) {
+        for (Outgoing message : unflushed) {
+            if (message.type == Frame.TEXT) {
+                this.written += Lines.fragments(message.text);
+            }
+        }
+        unflushed.clear();
+    }
 
-        //se lo stato e' occupato lo scrivo
-        if (this.yourStatus == Status.BUSY) {
-            prompt += " (Busy)";
+    //scrive un messaggio, in piu' frame TEXT se e' lungo (vedi Lines)
+    private static void write(FrameWriter out, Outgoing message) throws IOException {
+        if (message.type != Frame.TEXT) {
+            out.text(message.type, message.text);
+            return;
         }
+        int start = 0;
+        do {    //almeno un frame, anche per un messaggio vuoto
+            int end = Lines.fragment(message.text, start);
+            out.text(Frame.TEXT, end < message.text.length() || message.more ? Frame.MORE : 0, message.text.substring(start, end));
+            start = end;
+        } while (start < message.text.length());
+    }
 
-        //dopo il > si puo' scrivere
-        prompt += "> " + Chat.RESET_COLOR;  //termino la colorazione
+    //attende che il reader riapra la connessione (false se non succedera')
+    private boolean resumed(int generation) throws InterruptedException {
+        while (this.generation == generation) {
+            if (over || this.link == null || this.session == null) {
+                return false;
+            }
+            this.reopened.await(1, TimeUnit.SECONDS);  //controllo di tanto in tanto se la chat e' terminata
+        }
+        return true;
+    }
 
-        return prompt;
+    //thread della tastiera: legge e invia finche' la chat non termina
+    private void type() {
+        while (!over) {
+            this.send();
+        }
     }
 
-    private String itsPrompt() {
-        //prompt composto dal nome (colorato)
-        String prompt = Chat.ITS_COLOR + this.itsName;
+    private boolean receive() {
+        try {
+            if (!this.in.read(this.frame)) {    //attendo il prossimo frame, gia' decifrato
+                return false;
+            }
+            this.heartbeat.received();
+            Metrics.RECEIVE.since(this.in.arrived());   //senza contare l'attesa del remoto
+            return true;
+        } catch (ProtocolException pe) {
+            System.err.println("Couldn't read from input stream (" + pe.getMessage() + ")");
+            return false;
+        } catch (IOException ioe) {
+            if (!over) {    //se ho chiuso io, l'errore e' atteso
+                System.err.println("Couldn't read from input stream");
+            }
+            return false;
+        }
+    }
 
-        //se lo stato e' occupato lo scrivo
-        if (this.itsStatus == Status.BUSY) {
-            prompt += " (Busy)";
+    //tiene le righe del messaggio in arrivo per /echo, fino a Lines.CAP caratteri
+    private void keep(List<String> lines, boolean more) {
+        for (String temp : lines) {
+            if (temp.length() > Lines.CAP - this.kept) {    //oltre il limite: il resto si vede, ma non si tiene
+                this.kept = Lines.CAP + 1;
+                break;
+            }
+            this.receiving.add(temp);
+            this.kept += temp.length();
         }
+        if (!more) {
+            this.lastMessage = this.receiving;  //non piu' modificato: il thread della tastiera lo puo' leggere
+            this.receiving = new ArrayList<>();
+            this.kept = 0;
+        }
+    }
 
-        //dopo il > si puo' scrivere
-        prompt += "> " + Chat.RESET_COLOR;  //termino la colorazione
+    //smistamento dei messaggi ricevuti
+    private void menu() {
+        long start = System.nanoTime();
+        LatencyHistogram branch;    //dove registro il tempo impiegato
+
+        switch (this.frame.type) {
+            case Frame.TEXT:    //messaggio (o suo frammento): stampo le righe complete, senza attendere il resto
+                if (this.resuming) {    //inviato alla nuova connessione prima della ripresa (il benvenuto): l'ho gia' visto
+                    branch = Metrics.OTHER;
+                    break;
+                }
+                this.texts++;
+                boolean more = this.frame.is(Frame.MORE);
+                List<String> lines = this.lines.feed(Chat.text(this.frame.payload), more);
+                this.terminal.message(this.itsPrompt(), lines);
+                if (this.terminal.interactive()) {  //i dati di una pipe non sono una conversazione
+                    for (String temp : lines) {
+                        this.history.append(this.itsName + "> " + temp);    //senza attendere il disco
+                    }
+                }
+                this.keep(lines, more);
+                branch = Metrics.TEXT;
+                break;
+
+            case Frame.COMMAND: //comando da eseguire
+                String line = Chat.text(this.frame.payload);
+                this.execute(line);
+                branch = Metrics.command(line);
+                break;
+
+            case Frame.STATUS:  //cambio di status
+                if (Chat.text(this.frame.payload).equalsIgnoreCase("BUSY")) {    //se riconosco busy, bene
+                    this.itsStatus = Status.BUSY;
+                } else {    //altrimenti metto il default
+                    this.itsStatus = Status.AVAILABLE;
+                }
+                this.itsChanged();
+                this.terminal.changed(this.itsPrompt() + "changed its status", this.itsName, this.itsStatus);  //prompt gia' modificato
+                branch = Metrics.STATUS;
+                break;
+
+            case Frame.CONTROL: //messaggio di servizio
+                String control = Chat.text(this.frame.payload);
+                if (FileTransfer.isAnswer(control) || Delta.isBlocks(control)) {    //risposta ad un file offerto: la attende il writer
+                    this.uploads.answer(control);
+                } else if (FileTransfer.isCredit(control)) {    //il remoto accetta altri blocchi di un file
+                    this.uploads.grant(control);
+                } else if (Compression.isHello(control) && this.compression != null) {  //il remoto sa decomprimere
+                    this.compression.enable();
+                } else if (Sessions.isSession(control)) {   //token della sessione
+                    this.session(control);
+                } else if (Presence.isPresence(control)) {  //chi e' online
+                    this.presence(control);
+                } else if (control.equals(Heartbeat.PING)) {    //il remoto chiede un segno di vita
+                    this.control(Heartbeat.PONG);
+                }
+                branch = Metrics.OTHER;
+                break;
 
-        return prompt;
+            case Frame.FILE_CHUNK:  //blocco di un file in arrivo, tra un messaggio e l'altro
+                this.receiveChunk();
+                branch = Metrics.OTHER;
+                break;
+
+            default:    //frame non atteso: lo ignoro
+                branch = Metrics.OTHER;
+                break;
+        }
+
+        branch.since(start);
     }
 
-    private void help() {
-        this.send("/help: show this list", false);
-        this.send("/close: close the connection", false);
-        this.send("/echo: send the last received message", false);
-        this.send("/smile: send a smile", false);
-        this.send("/like: send a thumb up", false);
-        this.send("/name NAME: change your current name to NAME (??? if invalid input)", false);
-        this.send("/status [AVAILABLE | BUSY]: change your current status", false);
-        this.send("/file FILEPATH: send the file located in FILEPATH", true);
+    //il remoto ha dato il token della sessione, o ha risposto alla richiesta di riprenderla
+    private void session(String control) {
+        String token = Sessions.token(control);
+        long first = Sessions.count(control);   //primo frame TEXT che il remoto mi inviera'
+        if (token == null || first < 0) {
+            return;
+        }
+        if (this.resuming) {
+            if (!token.equals(this.session)) {
+                this.terminal.show(this.yourPrompt() + "Couldn't resume the session: a new one has started");
+                this.lines.reset();
+                this.command("/name " + this.yourName);    //il remoto non ricorda piu' chi sono
+                this.send(new Outgoing(Frame.STATUS, this.yourStatus.name(), null));
+            } else if (first > this.texts) {
+                this.terminal.show(this.yourPrompt() + "Session resumed, " + (first - this.texts) + " messages lost");
+                this.lines.reset(); //il messaggio interrotto non continuera'
+            } else {
+                this.terminal.show(this.yourPrompt() + "Session resumed");
+            }
+            this.resuming = false;
+        }
+        this.session = token;
+        this.texts = first;
     }
 
-    private void smile() {
-        this.send(" /000000\\ ", false);
-        this.send("|  ^  ^  |", false);
-        this.send("| \\____/ |", false);
-        this.send(" \\______/ ", true);
+    //il server ha pubblicato chi e' online: lo ricordo, e mostro chi ha cambiato status
+    private void presence(String control) {
+        String[] lines = control.split("\n");
+        String[] header = lines[0].split(" ");
+        boolean snapshot = header.length == 3 && header[1].equals(Presence.SNAPSHOT);
+        long version;
+        try {
+            if (header.length != 3 || !snapshot && Long.parseLong(header[1]) != this.presence) {    //non continua quanto so
+                return;
+            }
+            version = Long.parseLong(header[2]);
+        } catch (NumberFormatException nfe) {
+            return;
+        }
+        if (snapshot) { //ricomincio da capo
+            this.online.clear();
+        }
+
+        ArrayList<String> changes = new ArrayList<>();  //cambi di status, da mostrare
+        for (int i = 1; i < lines.length; i++) {
+            String[] parts = lines[i].split(" ", 3);
+            long id;
+            try {
+                id = Long.parseLong(parts[0]);
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            if (parts.length == 2 && parts[1].equals(Presence.GONE)) {
+                this.online.remove(id);
+            } else if (parts.length == 3) {
+                String old = this.online.put(id, parts[1] + " " + parts[2]);
+                if (!snapshot && old != null && !old.startsWith(parts[1] + " ")) {  //non chi entra, ne' chi cambia nome
+                    changes.add(parts[2] + (parts[1].equals(Status.BUSY.name()) ? " is busy" : " is available"));
+                }
+            }
+        }
+        this.presence = version;
+
+        if (this.terminal.interactive()) {
+            if (changes.size() > Chat.MAX_CHANGES) {    //troppi per mostrarli uno per uno
+                this.terminal.show(this.yourPrompt() + changes.size() + " people changed their status (/who to see them)");
+            } else {
+                for (String temp : changes) {
+                    this.terminal.show(this.yourPrompt() + temp);
+                }
+            }
+        }
     }
 
-    private void like() {
-        this.send(" ( ((           ", false);
-        this.send("  \\ =\\          ", false);
-        this.send(" __\\_  `-\\      ", false);
-        this.send("(____))(  \\---- ", false);
-        this.send("(____)) _       ", false);
-        this.send("(____))         ", false);
-        this.send("(___))____/---- ", true);
+    //mostra chi e' online: tutti nei server multi-client, altrimenti il remoto
+    private void who() {
+        ArrayList<String> people = new ArrayList<>();
+        for (String temp : this.online.values()) {
+            int space = temp.indexOf(' ');
+            people.add(temp.substring(space + 1) + (temp.startsWith(Status.BUSY.name() + " ") ? " (Busy)" : ""));
+        }
+        if (people.isEmpty()) {
+            people.add(this.itsName + (this.itsStatus == Status.BUSY ? " (Busy)" : ""));
+        }
+        Collections.sort(people);
+        this.terminal.show(this.yourPrompt() + "Online: " + people.size());
+        for (String temp : people) {
+            this.terminal.show(this.yourPrompt() + temp);
+        }
     }
 
-    private void receiveFile(File path) {
+    //smistamento dei comandi ricevuti
+    private void execute(String line) {
+        CommandRegistry.Handler<Chat> handler = Chat.RECEIVED.find(this.remote.parse(line));
+        if (handler != null) {
+            handler.run(this, this.remote);
+        } else {    //comandi che conosce solo il terminale (le stanze dei server multi-client)
+            this.terminal.command(line);
+        }
+    }
 
-        FileOutputStream fout = null;
+    //smistamento comandi in invio
+    private void send() {
+        //stampo il prompt e leggo da tastiera
+        String line = this.terminal.readLine(this.yourPrompt());
+        long start = System.nanoTime(); //l'attesa della tastiera non conta
 
-        try {
-            fout = new FileOutputStream(path);
+        if (over) { //la chat e' terminata mentre aspettavo
+            return;
 
-            DataInputStream receiveSize = new DataInputStream(this.is);
-            long size = receiveSize.readLong(); //ricevo la dimensione del file
+        } else if (line == null) { //non c'e' altro da inviare: chiudo
+            this.command("/close");
+            this.finish();
 
-            for (int i = 0; i < size; i++) {    //fino a quando non e' finito il file
-                fout.write(decipher((byte) this.is.read()));    //decifro e scrivo sul file
-            }
+        } else if (this.terminal.control()) {   //servizio (la presenza dei server multi-client)
+            this.send(new Outgoing(Frame.CONTROL, line, null));
 
-        } catch (FileNotFoundException fnfe) {
-            System.err.println("Couldn't open file");
-        } catch (IOException ioe) {
-            System.err.println("Couldn't read from input stream");
-        } finally {
-            if (fout != null) {
-                try {
-                    fout.close();
-                } catch (IOException ex) {
-                    System.err.println("Couldn't close file");
-                }
+        } else if (!this.terminal.interactive()) {  //dati: li invio cosi' come sono, anche se iniziano con /
+            this.send(new Outgoing(Frame.TEXT, line, null, this.terminal.more()));
+
+        } else {
+            CommandRegistry.Handler<Chat> handler = line.startsWith("/") ? Chat.TYPED.find(this.keyboard.parse(line)) : null;
+            if (handler != null) {
+                handler.run(this, this.keyboard);
+            } else {    //se non riconosco nessun comando
+                this.say(line);  //invio normalmente
             }
         }
 
+        Metrics.SEND.since(start);
     }
 
-    /*
-     * Perche' invio la dimensione del file usando un altro wrapper?
-     * - inizialmente avevo previsto di mandare -1 stesso, ma a causa di
-     * - perdita di dati dovuta ad una coercizione (int) -> (byte):
-     *
-     * - 11111111.11111111.11111111.11111111 (rappresentazione in complemento a 2 su 4 byte) -1
-     * - --------.--------.--------.11111111 (trasformazione in byte) 255
-     * - 00000000.00000000.00000000.11111111 (casting a int) 255
-     *
-     * - Se avessi usato come condizione di uscita la ricezione di 255,
-     * - non avrei potuto inviare 255 stesso, carattere validissimo(?).
-     * - Ho quindi deciso inviare la dimensione del file usando il
-     * - wrapper apposito.
-    */
-    private void sendFile(File path) {
-
-        FileInputStream fin = null;
+    //registra i comandi, una volta per tutte: quelli in invio (scritti in locale) e quelli ricevuti dal remoto
+    private static void commands() {
+        TYPED.register("/close", (chat, arguments) -> {    //comando chiusura connessione
+            chat.command("/close");  //dico a remoto di chiudere
+            chat.finish();   //setto variabile chiusura localmente
+        });
+        RECEIVED.register("/close", (chat, arguments) -> {
+            String rest = chat.lines.rest();    //l'ultima riga di una pipe puo' non avere l'a capo
+            if (rest != null) {
+                chat.terminal.unfinished(chat.itsPrompt(), rest);
+            }
+            chat.finish();  //basta settare la variabile per finire la chat
+        });
 
-        try {
-            fin = new FileInputStream(path);
-            int temp;
+        TYPED.register("/help", (chat, arguments) -> {    //chiedo al remoto la lista dei comandi
+            chat.command(arguments.line());
+            for (Command extra : Chat.EXTRA) {  //quelli aggiunti li conosco solo io
+                chat.terminal.show(chat.yourPrompt() + extra.help());
+            }
+        });
+        RECEIVED.register("/help", (chat, arguments) -> chat.help());
 
-            DataOutputStream sendSize = new DataOutputStream(this.os);
-            sendSize.writeLong(fin.getChannel().size());    //invio dimensione file
+        CommandRegistry.Handler<Chat> remote = (chat, arguments) -> chat.command(arguments.line());   //stanze: decide il remoto
+        TYPED.register("/join", remote);
+        TYPED.register("/leave", remote);
+        TYPED.register("/rooms", remote);
 
-            while ((temp = fin.read()) != -1) { //finche' non e' finito...
-                this.os.write(cipher((byte) temp)); //invio cifrando
+        TYPED.register("/stats", (chat, arguments) -> {   //mostro le mie statistiche e chiedo quelle del remoto
+            for (String temp : Metrics.summary().split("\n")) {
+                chat.terminal.show(chat.yourPrompt() + temp);
             }
+            chat.command(arguments.line());
+        });
+        RECEIVED.register("/stats", (chat, arguments) -> chat.send(Metrics.summary()));
 
-        } catch (FileNotFoundException ex) {
-            System.err.println("Couldn't open file");
-        } catch (IOException ex) {
-            System.err.println("Couldn't write on output stream");
-        } finally {
-            if (fin != null) {
+        TYPED.register("/history", (chat, arguments) -> {  //mostro gli ultimi messaggi, senza inviare nulla
+            int count = 10;
+            if (arguments.count() > 0) {    //se ho scritto quanti
                 try {
-                    fin.close();
-                } catch (IOException ex) {
-                    System.err.println("Couldn't close file");
+                    count = Arguments.number(arguments.get(0));
+                } catch (NumberFormatException nfe) {
+                    chat.terminal.show(chat.yourPrompt() + "~*Sytax Error*~");
+                    count = 0;
+                }
+            }
+            for (String temp : chat.history.last(count)) {
+                chat.terminal.show(temp);
+            }
+        });
+
+        TYPED.register("/echo", (chat, arguments) -> chat.say(chat.lastMessage.toArray(new String[0])));    //riinvio l'ultimo messaggio ricevuto
+        TYPED.register("/smile", (chat, arguments) -> chat.smile());
+        TYPED.register("/like", (chat, arguments) -> chat.like());
+
+        TYPED.register("/name", (chat, arguments) -> { //comando per cambiare nome
+            chat.yourName = Chat.name(arguments);
+            chat.yoursChanged();
+            chat.command(arguments.line());  //invio il comando a remoto
+        });
+        RECEIVED.register("/name", (chat, arguments) -> {  //comando per cambiare il proprio nome
+            String old = chat.itsPrompt();  //prompt con il nome vecchio
+            chat.itsName = Chat.name(arguments);
+            chat.itsChanged();
+            chat.terminal.changed(old + "changed its name in " + chat.itsName, chat.itsName, chat.itsStatus);   //stampo nome vecchio e nuovo
+        });
+
+        TYPED.register("/status", (chat, arguments) -> {   //comando per cambiare status
+            //se corrisponde a busy lo imposto, altrimenti metto disponibile
+            chat.yourStatus = Arguments.is(arguments.rest(), "BUSY") ? Status.BUSY : Status.AVAILABLE;
+            chat.yoursChanged();
+            chat.send(new Outgoing(Frame.STATUS, chat.yourStatus.name(), null));  //invio il nuovo status
+        });
+
+        TYPED.register("/who", (chat, arguments) -> chat.who());   //lo so gia', senza chiedere
+
+        TYPED.register("/file", (chat, arguments) -> { //comando trasferimento file
+            if (arguments.rest().length() > 0) {    //se ho effettivamente scritto qualcosa
+                File file = new File(arguments.rest().toString()); //prelevo il nome
+                if (file.isFile() && file.exists()) {   //se e' un file ed esiste
+                    chat.send(new Outgoing(Frame.COMMAND, arguments.line(), file));    //invio il comando seguito dal file
+                } else {
+                    chat.terminal.show(chat.yourPrompt() + "Can't Access File");    //messaggio di errore locale
+                    chat.send("~*Sytax Error*~");  //messaggio di errore remoto
                 }
+            } else {
+                chat.terminal.show(chat.yourPrompt() + "~*Sytax Error*~");  //messaggio di errore locale...
+                chat.send("~*Sytax Error*~"); //... e remoto
             }
+        });
+        RECEIVED.register("/file", (chat, arguments) -> {  //comando teasferimento file
+            //prendo solo nome file (il mittente ha gia' controllato che mi puo' effettivamente inviare il file)
+            String line = arguments.line();
+            chat.downloads.announced(line.substring(line.lastIndexOf("/") + 1)); //salvo con lo stesso nome (o numerato) nella cartella attuale
+        });
+
+        //per ultimi quelli aggiunti, che possono sostituire i precedenti
+        for (Command extra : Chat.EXTRA) {
+            TYPED.register(extra.name(), (chat, arguments) -> extra.typed(chat.context, arguments));
+            RECEIVED.register(extra.name(), (chat, arguments) -> extra.received(chat.context, arguments));
         }
-
     }
 
-    private void endTransfer() {
-        //invio stringa terminatrice
-        out.println(cipher(Chat.END));
-        out.flush();
+    //nome scritto dopo il comando, ??? in caso di errore
+    private static String name(Arguments arguments) {
+        return arguments.rest().length() > 0 ? arguments.rest().toString() : "???";
     }
 
-    //in questo momento uso una cifratura simile al codice di cesare;
-    //in futuro basta cambiare questo metodo e tutto filera' liscio
-    private String cipher(String string) {
-
-        char data[] = string.toCharArray(); //converto stringa in array di caratteri
+    //invia un messaggio di piu' righe
+    private void send(String... message) {
+        this.send(new Outgoing(Frame.TEXT, String.join("\n", message), null));
+    }
 
-        for (int i = 0; i < data.length; i++) {
-            data[i] += Chat.KEY;    //modifico in chiave
+    //invia un messaggio scritto dall'utente, salvandolo nella cronologia
+    private void say(String... message) {
+        for (String temp : message) {
+            this.history.append(this.yourName + "> " + temp);   //senza attendere il disco
         }
+        this.send(message);
+    }
 
-        return new String(data);    //restituisco la nuova stringa cifrata
+    //invia un comando al remoto
+    private void command(String line) {
+        this.send(new Outgoing(Frame.COMMAND, line, null));
+    }
 
+    private void send(Outgoing message) {
+        try {
+            this.outbound.put(message); //attendo se il writer e' indietro
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private byte cipher(byte data) {    //cifro un solo byte in chiave
+    //invia un messaggio di servizio senza mai attendere: il reader che aspettasse
+    //un writer fermo su un socket pieno non svuoterebbe piu' quello del remoto
+    private void control(String text) {
+        this.controls.offer(text);
+        this.outbound.offer(Outgoing.WAKE); //coda piena: il writer ha gia' da fare, e li trovera'
+    }
 
-        return (byte) (data + (byte) Chat.KEY);
+    private String yourPrompt() {
+        return this.yours;
+    }
 
+    private String itsPrompt() {
+        return this.its;
     }
 
-    //metodo inutilizzato ma utile in caso di necessita'
-    //di cifratura di tipi complessi (anche oggetti)
-    private byte[] cipher(byte[] data) {
+    //prompt costruito una volta per ogni cambio di nome o di status, non per ogni messaggio
+    private String prompt(String color, String name, Status status) {
+        //prompt composto dal nome (colorato, se qualcuno lo guarda)
+        boolean colors = this.terminal.interactive();
+        String prompt = (colors ? color : "") + name;
 
-        for (int i = 0; i < data.length; i++) {
-            data[i] += (byte) Chat.KEY;
+        //se lo stato e' occupato lo scrivo
+        if (status == Status.BUSY) {
+            prompt += " (Busy)";
         }
 
-        return data;
+        //dopo il > si puo' scrivere
+        prompt += "> " + (colors ? Chat.RESET_COLOR : "");  //termino la colorazione
+
+        return prompt;
     }
 
-    //corrispondenti ai rispettivi metodi con i medesimi parametri
-    private String decipher(String string) {
+    //da chiamare dopo aver cambiato yourName o yourStatus (solo dal thread della tastiera)
+    private void yoursChanged() {
+        this.yours = this.prompt(Chat.YOUR_COLOR, this.yourName, this.yourStatus);
+    }
 
-        char data[] = string.toCharArray();
+    //da chiamare dopo aver cambiato itsName o itsStatus (solo dal reader)
+    private void itsChanged() {
+        this.its = this.prompt(Chat.ITS_COLOR, this.itsName, this.itsStatus);
+    }
 
-        for (int i = 0; i < data.length; i++) {
-            data[i] -= Chat.KEY;
-        }
+    private void help() {
+        this.send(Chat.HELP);
+    }
 
-        return new String(data);
+    private void smile() {
+        this.say(" /000000\\ ",
+                "|  ^  ^  |",
+                "| \\____/ |",
+                " \\______/ ");
+    }
 
+    private void like() {
+        this.say(" ( ((           ",
+                "  \\ =\\          ",
+                " __\\_  `-\\      ",
+                "(____))(  \\---- ",
+                "(____)) _       ",
+                "(____))         ",
+                "(___))____/---- ");
     }
 
-    private byte decipher(byte data) {
-        return (byte) (data - (byte) Chat.KEY);
+    //un blocco di un file in arrivo: lo scrive il thread del suo trasferimento
+    private void receiveChunk() {
+
+        try {
+            this.downloads.chunk(this.frame);
+        } catch (ProtocolException pe) {
+            System.err.println("Couldn't receive file (" + pe.getMessage() + "): send it again to resume");
+        }
+
     }
 
-    private byte[] decipher(byte data[]) {
+    //esito di un file ricevuto, sul thread del suo trasferimento
+    private void received(PartialFile file, IOException error) {
+        if (error instanceof ProtocolException) {
+            System.err.println("Couldn't receive file (" + error.getMessage() + "): send it again to resume");
+            return;
+        }
+        if (error != null) {
+            System.err.println("Couldn't write file");
+            return;
+        }
+        long elapsed = System.nanoTime() - file.started();
+        Metrics.FILE_RECEIVE.record(elapsed);
+        Metrics.FILE_BYTES_RECEIVED.add(file.received());
+
+        if (file.resumed() > 0) {
+            this.terminal.show(this.itsPrompt() + "Resumed from byte " + file.resumed());
+        }
+        if (file.reused() > 0) {
+            this.terminal.show(this.itsPrompt() + "Rebuilt " + file.reused() + " bytes from a file already here");
+        }
+        this.terminal.show(this.itsPrompt() + file.file().getName() + " received");
+        this.terminal.show(this.itsPrompt() + FileTransfer.report(file.received(), elapsed));
+    }
 
-        for (int i = 0; i < data.length; i++) {
-            data[i] -= (byte) Chat.KEY;
+    //esito di un file inviato, sul thread del writer
+    private void sent(File path, long bytes, long reused, long started, String error) {
+        if (error != null) {
+            System.err.println("Couldn't send file (" + error + "): send it again to resume");
+            return;
+        }
+        if (bytes == 0 && reused > 0) {
+            this.terminal.show(this.yourPrompt() + path.getName() + " is already there");
+            return;
         }
+        long elapsed = System.nanoTime() - started;
+        Metrics.FILE_SEND.record(elapsed);
+        Metrics.FILE_BYTES_SENT.add(bytes);
+        if (reused > 0) {
+            this.terminal.show(this.yourPrompt() + reused + " bytes were already there");
+        }
+        this.terminal.show(this.yourPrompt() + path.getName() + " sent");
+        this.terminal.show(this.yourPrompt() + FileTransfer.report(bytes, elapsed));
+    }
 
-        return data;
+    //testo contenuto in un payload
+    static String text(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
     }
     
 }
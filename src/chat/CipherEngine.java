@@ -0,0 +1,122 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface ciphers the payload of the frames, in place.
+ * Every connection has its own engine, since an engine may keep state
+ * (like the nonces of AES-GCM) for both directions.
+ * The engine is chosen with the "chat.cipher" system property:
+ * "caesar" (the default, the historical shift), "none" or "aes".
+ * Only the payloads are ciphered, but an engine that authenticates them
+ * (AES-GCM) authenticates the header of their frame as well: the length
+ * is implied by the payload, the rest is passed as an int, see
+ * Frame.header(). An engine may need random bytes from both peers before
+ * ciphering anything: each side sends its own in clear, in a SEED frame,
+ * as soon as the connection is open (see FrameWriter.seed()). The SEED
+ * frame is sent even if the engine needs none, empty: it's also how a
+ * peer tells that it speaks frames (see LegacyChat).
+ *
+ * @author Amedeo
+ */
+interface CipherEngine {
+
+    /**
+     * Tells how many bytes encrypt() adds to a payload.
+     *
+     * @return the overhead in bytes
+     */
+    int overhead();
+
+    /**
+     * Encrypts the bytes between position and limit. The buffer must have
+     * overhead() more bytes after the limit, which is moved accordingly.
+     *
+     * @param header version, type, flags and channel of the frame
+     * @param data the payload
+     * @throws IOException if the payload can't be encrypted
+     */
+    void encrypt(int header, ByteBuffer data) throws IOException;
+
+    /**
+     * Decrypts the bytes between position and limit. The limit is moved
+     * back by overhead() bytes.
+     *
+     * @param header version, type, flags and channel of the frame
+     * @param data the payload
+     * @throws IOException if the payload, or its header, has been tampered with
+     */
+    void decrypt(int header, ByteBuffer data) throws IOException;
+
+    /**
+     * Tells what to send in clear in the SEED frame that opens the
+     * connection, before any other frame.
+     *
+     * @return the payload of the SEED frame, or null (the default) if the
+     * engine needs none: the frame is sent empty
+     */
+    default ByteBuffer seed() {
+        return null;
+    }
+
+    /**
+     * Receives the SEED frame of the peer. By default it must be empty.
+     *
+     * @param seed the payload of the frame
+     * @throws IOException if the seed is not valid for the engine
+     */
+    default void seeded(ByteBuffer seed) throws IOException {
+        if (seed.hasRemaining()) {
+            throw new ProtocolException("Unexpected seed: the peer uses another cipher");
+        }
+    }
+
+    /**
+     * Tells whether encrypt() can be called without waiting, because the
+     * seed of the peer (if needed) has arrived. A blocking writer can
+     * call it anyway: encrypt() waits for the seed.
+     *
+     * @return true by default
+     */
+    default boolean ready() {
+        return true;
+    }
+
+    /**
+     * Tells whether the engine has no state, so that a payload encrypted
+     * once can be sent over every connection using the same kind of
+     * engine, and encrypt() can be called by many threads at once.
+     *
+     * @return true if the ciphertext depends on the plaintext only
+     */
+    default boolean shareable() {
+        return false;
+    }
+
+    /**
+     * Creates the engine configured through the system properties.
+     *
+     * @param server true if the caller is the server side of the connection
+     * @return a new engine
+     */
+    static CipherEngine configured(boolean server) {
+        String name = System.getProperty("chat.cipher", "caesar");
+        switch (name) {
+            case "caesar":
+                return new CaesarCipher();
+            case "none":
+                return new NoCipher();
+            case "aes":
+                String key = System.getProperty("chat.key");
+                if (key == null) {
+                    throw new IllegalArgumentException("chat.key is required by the aes cipher");
+                }
+                return new AesGcmCipher(key, server);
+            default:
+                throw new IllegalArgumentException("Unknown cipher " + name);
+        }
+    }
+
+}
@@ -3,22 +3,39 @@ package chat;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class lets you create the client side of a point-to-point chat.
  * There's no actual difference between the client and the server, but
  * the connection method.
+ * If the connection drops, the client opens it again, waiting a random
+ * time between attempts (see reopen()), so that the chat can resume its
+ * session on servers that allow it.
+ * A server that speaks first, and not with a frame, speaks the old text
+ * protocol: the chat falls back on it (see LegacyChat).
  * 
  * @author Amedeo
  */
-public class Client {
+public class Client implements Link {
+    
+    private static final long BASE_DELAY = 250; //millisecondi di attesa massima prima del primo nuovo tentativo
+    private static final long MAX_DELAY = 10000;    //millisecondi di attesa massima tra due tentativi
+    private static final long PAUSE = 100;  //millisecondi tra due controlli durante l'attesa
+    private static final int RECONNECT = Integer.getInteger("chat.reconnect", 120); //secondi di tentativi al massimo
     
     private String ip;  //ip al quale si connettera'
     private int port;   //porta alla quale effettuare la richiesta
     
-    private Socket sock;    //socket della connessione
+    private volatile Socket sock;   //socket della connessione
+    private volatile PushbackInputStream input; //input della connessione: il primo byte dice il protocollo del server
     private boolean link;   //sara' true se la connessione andra' a buon fine
     
     private Client(String ip, int port){
@@ -31,7 +48,7 @@ public class Client {
         
         try {
             //richiedo una connessione
-            this.sock = new Socket(this.ip, this.port);
+            this.connect();
             //tutto andato a buon fine
             this.link = true;
         } catch (UnknownHostException uhe) {
@@ -43,6 +60,14 @@ public class Client {
         }
     }
     
+    private void connect() throws IOException {
+        long start = System.nanoTime();
+        this.sock = new Socket(this.ip, this.port);
+        this.sock.setTcpNoDelay(true);  //i frame sono gia' raggruppati dal FrameWriter
+        this.input = new PushbackInputStream(this.sock.getInputStream());
+        Metrics.CONNECT.since(start);
+    }
+    
     private boolean isLinked(){
         return this.link;
     }
@@ -57,39 +82,110 @@ public class Client {
         }
     }
     
-    private InputStream getInputStream(){
-        try {
-            return sock.getInputStream();
-        } catch (IOException ioe) {
-            System.err.println("Input Socket is not linked");
+    @Override
+    public InputStream input() throws IOException {
+        return this.input;
+    }
+    
+    @Override
+    public OutputStream output() throws IOException {
+        return this.sock.getOutputStream();
+    }
+    
+    @Override
+    public InetAddress peer() {
+        return this.sock.getInetAddress();
+    }
+    
+    @Override
+    public InetAddress local() {
+        return this.sock.getLocalAddress();
+    }
+    
+    @Override
+    public void drop() {
+        this.close();
+    }
+    
+    /**
+     * Opens a new connection, for at most "chat.reconnect" seconds.
+     * Before every attempt it waits a random time, up to a limit that
+     * doubles every time: clients dropped together by the same failure
+     * don't all come back at the same instant.
+     * 
+     * @param cancelled tells whether to stop trying
+     * @return true if a new connection is open
+     */
+    @Override
+    public boolean reopen(BooleanSupplier cancelled) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Client.RECONNECT);
+        for (int attempt = 0; System.nanoTime() - deadline < 0; attempt++) {
+            long limit = Math.min(Client.MAX_DELAY, Client.BASE_DELAY << Math.min(attempt, 16));
+            if (!Client.pause(ThreadLocalRandom.current().nextLong(limit + 1), cancelled)) {
+                return false;
+            }
+            this.close();
+            try {
+                this.connect();
+                return true;
+            } catch (IOException | SecurityException e) {   //riprovero'
+            }
         }
-        return null;
+        return false;
     }
     
-    private OutputStream getOutputStream(){
+    //attende, controllando di tanto in tanto se deve smettere (false se deve)
+    private static boolean pause(long millis, BooleanSupplier cancelled) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
         try {
-            return sock.getOutputStream();
-        } catch (IOException ex) {
-            System.err.println("Output Socket is not linked");
+            while (!cancelled.getAsBoolean()) {
+                long left = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (left <= 0) {
+                    return true;
+                }
+                Thread.sleep(Math.min(left, Client.PAUSE));
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
-        return null;
+        return false;
     }
     
     /**
      * It will create a new Client instance, check if it went well, and eventually
      * start the chat, terminating it afterwards.
+     * With "pipe" as argument the chat sends the standard input and writes
+     * what it receives on the standard output, with no prompts (see PipeTerminal).
+     * It connects to Server.IP:Server.PORT, or to the [HOST:]PORT given by
+     * the "chat.server" system property.
      * 
      * @param args
      */
     public static void main(String[] args){
         
-        //creo un client
-        Client client = new Client(Server.IP, Server.PORT);
+        //creo un client, verso il server configurato
+        InetSocketAddress server = Listener.address(System.getProperty("chat.server", String.valueOf(Server.PORT)), Server.IP);
+        Client client = new Client(server.getHostString(), server.getPort());
         
         //se non ci sono stati problemi ad instaurare una connessione
         if(client.isLinked()){
-            //inizio una chat
-            new Chat(client.getInputStream(), client.getOutputStream(), false);
+            //inizio una chat, che riapre la connessione se cade
+            Terminal terminal = args.length > 0 && args[0].equals("pipe") ? new PipeTerminal() : new ConsoleTerminal();
+            boolean legacy;
+            try {
+                legacy = LegacyChat.client(client.sock, client.input);
+            } catch (IOException ioe) {
+                legacy = false; //la chat se ne accorgera', e riaprira' la connessione
+            }
+            if(legacy){
+                try {
+                    new LegacyChat(client.input(), client.output(), false, terminal);
+                } catch (IOException ioe) {
+                    System.err.println("Socket is not linked");
+                }
+            } else {
+                new Chat(client, false, terminal, HistoryLog.open("client"));
+            }
         }
         
         //termino il client
@@ -0,0 +1,77 @@
+package chat;
+
+/**
+ * This interface lets new commands be added to the chat without touching
+ * it. Implementations are found with ServiceLoader: list their classes in
+ * META-INF/services/chat.Command, on the class path of the chat.
+ * A command with the same name as a built-in one replaces it.
+ *
+ * @author Amedeo
+ */
+public interface Command {
+
+    /**
+     * What a command can do with the chat it runs in.
+     */
+    interface Context {
+
+        /**
+         * Shows a line to the local user.
+         *
+         * @param line the line
+         */
+        void show(String line);
+
+        /**
+         * Sends a message to the other side, saving it in the history.
+         *
+         * @param lines the lines of the message
+         */
+        void say(String... lines);
+
+        /**
+         * Sends a command to the other side.
+         *
+         * @param line the command, with its arguments
+         */
+        void command(String line);
+
+        /**
+         * @return the name of the local user
+         */
+        String yourName();
+
+        /**
+         * @return the name of the other side
+         */
+        String itsName();
+    }
+
+    /**
+     * @return the name, slash included, like "/smile"
+     */
+    String name();
+
+    /**
+     * @return the line shown by /help, like "/smile: send a smile"
+     */
+    String help();
+
+    /**
+     * Runs the command typed by the local user.
+     *
+     * @param chat the chat
+     * @param arguments the parsed line, valid only during the call
+     */
+    void typed(Context chat, Arguments arguments);
+
+    /**
+     * Runs the command received from the other side. By default it's ignored.
+     *
+     * @param chat the chat
+     * @param arguments the parsed line, valid only during the call
+     */
+    default void received(Context chat, Arguments arguments) {
+    }
+
+}
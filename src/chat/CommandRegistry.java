@@ -0,0 +1,105 @@
+package chat;
+
+/**
+ * This class finds the handler of a command by its name in constant time,
+ * looking it up directly with the view returned by Arguments, so that
+ * no string is built to dispatch a line.
+ * It's an open addressing hash table: handlers are registered once, before
+ * any chat starts, and then only looked up, by any thread.
+ *
+ * @author Amedeo
+ * @param <T> what the commands act on (a Chat, a NioSession...)
+ */
+final class CommandRegistry<T> {
+
+    /**
+     * What a command does.
+     *
+     * @param <T> what the command acts on
+     */
+    interface Handler<T> {
+
+        /**
+         * @param target what the command acts on
+         * @param arguments the parsed line, valid only during the call
+         */
+        void run(T target, Arguments arguments);
+    }
+
+    private String[] names; //nomi, in posizioni dettate dall'hash
+    private Handler<T>[] handlers;  //gestori, nelle stesse posizioni dei nomi
+    private int size;
+
+    CommandRegistry() {
+        this.names = new String[32];
+        this.handlers = CommandRegistry.table(32);
+        this.size = 0;
+    }
+
+    /**
+     * Registers a command, replacing the one with the same name.
+     *
+     * @param name the name, like "/name"
+     * @param handler what the command does
+     */
+    void register(String name, Handler<T> handler) {
+        if (2 * (this.size + 1) > this.names.length) {  //tabella piena a meta': la raddoppio
+            this.grow();
+        }
+        int slot = this.slot(name);
+        if (this.names[slot] == null) {
+            this.names[slot] = name;
+            this.size++;
+        }
+        this.handlers[slot] = handler;
+    }
+
+    /**
+     * Finds a command.
+     *
+     * @param name the name
+     * @return the handler, or null if there's no such command
+     */
+    Handler<T> find(CharSequence name) {
+        return this.handlers[this.slot(name)];
+    }
+
+    //posizione del nome, o la prima libera in cui andrebbe
+    private int slot(CharSequence name) {
+        int mask = this.names.length - 1;
+        int slot = CommandRegistry.hash(name) & mask;
+        while (this.names[slot] != null && !this.names[slot].contentEquals(name)) {
+            slot = (slot + 1) & mask;   //scansione lineare
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] names = this.names;
+        Handler<T>[] handlers = this.handlers;
+        this.names = new String[2 * names.length];
+        this.handlers = CommandRegistry.table(2 * handlers.length);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                int slot = this.slot(names[i]);
+                this.names[slot] = names[i];
+                this.handlers[slot] = handlers[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Handler<T>[] table(int size) {
+        return (Handler<T>[]) new Handler<?>[size];
+    }
+
+    //come String.hashCode(), ma per qualunque sequenza, rimescolato
+    private static int hash(CharSequence name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+}
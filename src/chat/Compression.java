@@ -0,0 +1,204 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses the payload of the frames with deflate, in place,
+ * before they are ciphered, and inflates them after they are deciphered.
+ * Compressed frames are flagged as COMPRESSED.
+ * Both peers announce that they can inflate with a CONTROL frame (HELLO):
+ * nothing is compressed until the announcement of the other side arrives.
+ * Short payloads are never compressed, and long ones are sampled first,
+ * so already compressed data (archives, images...) costs almost nothing.
+ * Compression is disabled with the "chat.compression" system property set
+ * to "none".
+ * Every connection has its own instance: deflating is done by the writer
+ * and inflating by the reader, each one with its own buffer.
+ * Payloads in direct buffers are copied into an array first, since the
+ * Deflater and the Inflater work on arrays.
+ *
+ * @author Amedeo
+ */
+final class Compression {
+
+    /**
+     * Text of the CONTROL frame announcing the compression
+     */
+    static final String HELLO = "HELLO deflate";
+
+    private static final int MIN_SIZE = 256;    //payload piu' corti non valgono la fatica
+    private static final int SAMPLE = 4096; //campione provato prima dei payload lunghi
+    private static final int MIN_SAVING = 8;    //comprimo solo se risparmio almeno 1/MIN_SAVING
+
+    private final Deflater deflater;    //riutilizzati per ogni frame
+    private final Inflater inflater;
+    private byte[] deflated;    //risultato della compressione (del writer)
+    private byte[] inflated;    //risultato della decompressione (del reader)
+    private byte[] plain;   //copia dei payload diretti da comprimere (del writer)
+    private byte[] packed;  //copia dei payload diretti da decomprimere (del reader)
+
+    private volatile boolean enabled;   //se il remoto sa decomprimere, settato a true
+
+    /**
+     * Creates an instance that compresses only after enable().
+     */
+    Compression() {
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.inflater = new Inflater();
+        this.deflated = new byte[FileTransfer.CHUNK];
+        this.inflated = new byte[FileTransfer.CHUNK];
+        this.plain = new byte[0];   //solo se servono
+        this.packed = new byte[0];
+        this.enabled = false;
+    }
+
+    /**
+     * Creates the compression configured through the system properties.
+     *
+     * @return a new instance, or null if compression is disabled
+     */
+    static Compression configured() {
+        return System.getProperty("chat.compression", "deflate").equals("none") ? null : new Compression();
+    }
+
+    /**
+     * Tells whether a CONTROL frame announces the compression.
+     *
+     * @param text the text of the frame
+     * @return true if it does
+     */
+    static boolean isHello(String text) {
+        return text.equals(Compression.HELLO);
+    }
+
+    /**
+     * Starts compressing: the other side has announced it can inflate.
+     */
+    void enable() {
+        this.enabled = true;
+    }
+
+    boolean enabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Compresses a payload in place, if it's worth it, flagging its frame.
+     * The header of the frame must be right before the payload.
+     *
+     * @param payload the payload
+     * @return the payload, shorter if it has been compressed
+     */
+    ByteBuffer compress(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (!this.enabled || length < Compression.MIN_SIZE) {
+            return payload;
+        }
+
+        byte[] data;
+        int offset;
+        if (payload.hasArray()) {
+            data = payload.array();
+            offset = payload.arrayOffset() + payload.position();
+        } else {
+            data = this.plain = Compression.copy(payload, this.plain);
+            offset = 0;
+        }
+        if (length > 2 * Compression.SAMPLE) {  //provo prima un campione dal mezzo
+            int sample = offset + (length - Compression.SAMPLE) / 2;
+            if (this.deflate(data, sample, Compression.SAMPLE) < 0) {
+                Metrics.INCOMPRESSIBLE.increment();
+                return payload;
+            }
+        }
+
+        int compressed = this.deflate(data, offset, length);
+        if (compressed < 0) {
+            Metrics.INCOMPRESSIBLE.increment();
+            return payload;
+        }
+
+        payload.duplicate().put(this.deflated, 0, compressed);
+        payload.limit(payload.position() + compressed);
+        int flags = payload.position() - Frame.HEADER + 2;
+        payload.put(flags, (byte) (payload.get(flags) | Frame.COMPRESSED));
+        Metrics.COMPRESSION_SAVED.add(length - compressed);
+        return payload;
+    }
+
+    /**
+     * Inflates the payload of a frame flagged as COMPRESSED.
+     * The inflated payload is valid until the next call.
+     *
+     * @param frame the frame, already deciphered
+     * @return the payload, unchanged if it wasn't compressed
+     * @throws ProtocolException if the payload is not valid or too long
+     */
+    ByteBuffer decompress(Frame frame) throws ProtocolException {
+        ByteBuffer payload = frame.payload;
+        if (!frame.is(Frame.COMPRESSED)) {
+            return payload;
+        }
+        this.inflater.reset();
+        if (payload.hasArray()) {
+            this.inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            this.packed = Compression.copy(payload, this.packed);
+            this.inflater.setInput(this.packed, 0, payload.remaining());
+        }
+        int length = 0;
+        try {
+            while (!this.inflater.finished()) {
+                if (length == this.inflated.length) {   //allargo il buffer, entro i limiti di un frame
+                    if (length >= Frame.MAX_PAYLOAD) {
+                        throw new ProtocolException("Compressed frame too long");
+                    }
+                    byte[] larger = new byte[Math.min(2 * length, Frame.MAX_PAYLOAD)];
+                    System.arraycopy(this.inflated, 0, larger, 0, length);
+                    this.inflated = larger;
+                }
+                int inflated = this.inflater.inflate(this.inflated, length, this.inflated.length - length);
+                if (inflated == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+                    throw new ProtocolException("Truncated compressed frame");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException dfe) {
+            throw new ProtocolException("Corrupted compressed frame");
+        }
+
+        frame.flags &= ~Frame.COMPRESSED;
+        return ByteBuffer.wrap(this.inflated, 0, length);
+    }
+
+    //copia i byte di un payload diretto, allargando l'array se serve
+    private static byte[] copy(ByteBuffer payload, byte[] array) {
+        if (array.length < payload.remaining()) {
+            array = new byte[Math.max(payload.remaining(), FileTransfer.CHUNK)];
+        }
+        payload.duplicate().get(array, 0, payload.remaining());
+        return array;
+    }
+
+    //comprime in deflated, se si risparmia abbastanza: restituisce la lunghezza, o -1
+    private int deflate(byte[] data, int offset, int length) {
+        int max = length - length / Compression.MIN_SAVING;
+        if (this.deflated.length < max) {
+            this.deflated = new byte[max];
+        }
+
+        this.deflater.reset();
+        this.deflater.setInput(data, offset, length);
+        this.deflater.finish();
+        int compressed = 0;
+        while (!this.deflater.finished() && compressed < max) {
+            compressed += this.deflater.deflate(this.deflated, compressed, max - compressed);
+        }
+        return this.deflater.finished() ? compressed : -1;
+    }
+
+}
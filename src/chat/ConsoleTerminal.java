@@ -0,0 +1,36 @@
+package chat;
+
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * This class is the interactive Terminal: it reads from the keyboard
+ * and prints on the standard output.
+ *
+ * @author Amedeo
+ */
+final class ConsoleTerminal implements Terminal {
+
+    private final Scanner keyboard; //un solo scanner: non perdo quanto ha gia' letto
+
+    ConsoleTerminal() {
+        this.keyboard = new Scanner(System.in);
+    }
+
+    @Override
+    public String readLine(String prompt) {
+        //stampo il prompt e leggo da tastiera
+        System.out.print(prompt);
+        try {
+            return this.keyboard.nextLine();
+        } catch (NoSuchElementException nsee) { //standard input terminato
+            return null;
+        }
+    }
+
+    @Override
+    public void show(String line) {
+        System.out.println(line);
+    }
+
+}
@@ -0,0 +1,536 @@
+package chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class spares the bytes the receiver of a file already has.
+ * Every offer carries the SHA-256 of the file: if the receiver has a file
+ * of the same name with the same digest it answers PRESENT, and nothing
+ * is sent. Otherwise, if it has a basis (the file of the same name, or
+ * any file of the directory with the same digest), it sends the Signature
+ * of its blocks, a weak rolling checksum and a strong one each (BLOCKS
+ * CONTROL frames, before the answer), and the sender rolls the weak
+ * checksum over its file, byte by byte, looking for them: the chunks
+ * carry the blocks found as COPY operations and everything else as
+ * LITERAL ones, as the rsync algorithm does. The receiver rebuilds the
+ * file from the operations (see PartialFile) and checks its digest.
+ * Digests are remembered by path, size and modification time: the same
+ * file sent again is not read twice.
+ *
+ * @author Amedeo
+ */
+final class Delta {
+
+    /**
+     * Size of a digest, in bytes
+     */
+    static final int DIGEST = 32;
+
+    /**
+     * Files (and bases) smaller than this are just sent
+     */
+    static final int MIN_SIZE = FileTransfer.CHUNK;
+
+    static final byte COPY = 1;     //blocchi consecutivi della base: indice e numero (int)
+    static final byte LITERAL = 2;  //byte del file: lunghezza (int) e contenuto
+
+    private static final int MIN_BLOCK = 2 * 1024;
+    private static final int MAX_BLOCK = 32 * 1024;
+    private static final int SPAN = 16 * FileTransfer.CHUNK;  //byte del file rappresentati da un blocco inviato, al massimo
+    private static final int PER_FRAME = 4096;  //firme per frame BLOCKS
+    private static final int ENTRY = Integer.BYTES + Long.BYTES;    //firma di un blocco: debole e forte
+    private static final int MAX_BLOCKS = 1 << 22;  //firme di una base, al massimo
+    private static final int COPY_SIZE = 1 + 2 * Integer.BYTES;
+    private static final String BLOCKS = "BLOCKS ";
+
+    private static final ConcurrentHashMap<File, Known> DIGESTS = new ConcurrentHashMap<>();  //digest gia' calcolati, in tutto il processo
+
+    //digest di un file, valido finche' il file non cambia
+    private static final class Known {
+
+        private final long size;
+        private final long modified;
+        private final byte[] digest;
+
+        private Known(long size, long modified, byte[] digest) {
+            this.size = size;
+            this.modified = modified;
+            this.digest = digest;
+        }
+    }
+
+    private Delta() {
+    }
+
+    /**
+     * Computes the SHA-256 of a file, or remembers it.
+     *
+     * @param path the file
+     * @return the digest
+     * @throws IOException if the file can't be read
+     */
+    static byte[] digest(File path) throws IOException {
+        File key = path.getAbsoluteFile();
+        long size = path.length();
+        long modified = path.lastModified();
+        Known known = Delta.DIGESTS.get(key);
+        if (known != null && known.size == size && known.modified == modified) {
+            return known.digest;
+        }
+
+        MessageDigest sha = Delta.algorithm("SHA-256");
+        try (FileInputStream fin = new FileInputStream(path)) {
+            FileChannel content = fin.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK);
+            while (content.read(buffer) != -1) {
+                buffer.flip();
+                sha.update(buffer);
+                buffer.clear();
+            }
+        }
+        byte[] digest = sha.digest();
+        if (path.length() == size && path.lastModified() == modified) { //non e' cambiato mentre lo leggevo
+            Delta.DIGESTS.put(key, new Known(size, modified, digest));
+        }
+        return digest;
+    }
+
+    /**
+     * Looks for a basis to rebuild a file from: the file of the same name,
+     * or a file of the directory with the same digest.
+     *
+     * @param directory where the file is going
+     * @param name its name
+     * @param size its size
+     * @param digest its digest
+     * @return the basis, or null if there is none worth it
+     * @throws IOException if a file can't be read
+     */
+    static File basis(File directory, String name, long size, byte[] digest) throws IOException {
+        if (size < Delta.MIN_SIZE) {
+            return null;
+        }
+        File same = new File(directory, name);
+        if (same.isFile() && same.length() >= Delta.MIN_SIZE) {
+            return same;
+        }
+        File[] files = directory.listFiles(file -> file.isFile() && file.length() == size && !file.getName().endsWith(".part"));
+        if (files != null) {
+            for (File file : files) {   //contenuto identico sotto un altro nome: lo ricostruisco tutto da li'
+                if (Arrays.equals(Delta.digest(file), digest)) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether a CONTROL frame carries block signatures.
+     *
+     * @param text the text of the frame
+     * @return true if it does
+     */
+    static boolean isBlocks(String text) {
+        return text.startsWith(Delta.BLOCKS);
+    }
+
+    /**
+     * The checksums of the blocks of a basis. Only whole blocks are
+     * matched: the tail of the basis is never reused.
+     */
+    static final class Signature {
+
+        final int block;    //dimensione dei blocchi
+        final long size;    //dimensione della base
+        private final int[] weak;
+        private final long[] strong;
+        private int filled; //firme ricevute finora
+        private int[] heads;    //primo blocco per checksum debole (indice + 1), costruito al primo uso
+        private int[] chain;    //blocco successivo con lo stesso checksum debole (indice + 1)
+
+        private Signature(int block, long size) {
+            if (block < Delta.MIN_BLOCK || block > Delta.MAX_BLOCK || size < 0 || size / block > Delta.MAX_BLOCKS) {
+                throw new IllegalArgumentException("Basis of " + size + " bytes in blocks of " + block);
+            }
+            this.block = block;
+            this.size = size;
+            int count = (int) (size / block);
+            this.weak = new int[count];
+            this.strong = new long[count];
+        }
+
+        /**
+         * Computes the signature of a basis.
+         *
+         * @param basis the basis
+         * @return the signature
+         * @throws IOException if the basis can't be read
+         */
+        static Signature of(FileChannel basis) throws IOException {
+            long size = basis.size();
+            Signature signature = new Signature(Delta.block(size), size);
+            MessageDigest md5 = Delta.algorithm("MD5");
+            ByteBuffer buffer = ByteBuffer.allocate(signature.block);
+            for (int i = 0; i < signature.weak.length; i++) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (basis.read(buffer, (long) i * signature.block + buffer.position()) == -1) {
+                        throw new ProtocolException("Basis shrank while reading it");
+                    }
+                }
+                signature.weak[i] = Delta.weak(buffer.array(), 0, signature.block);
+                signature.strong[i] = Delta.strong(md5, buffer.array(), 0, signature.block);
+            }
+            signature.filled = signature.weak.length;
+            return signature;
+        }
+
+        /**
+         * @return a signature without blocks: the delta carries the whole file
+         */
+        static Signature empty() {
+            return new Signature(Delta.MIN_BLOCK, 0);
+        }
+
+        /**
+         * Reads the first BLOCKS frame of a transfer.
+         *
+         * @param text the text of the frame
+         * @return the signature, filled with the blocks of the frame
+         * @throws IllegalArgumentException if the frame is not valid
+         */
+        static Signature first(String text) {
+            String[] fields = text.split(" ");
+            Signature signature = new Signature(Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+            signature.add(text);
+            return signature;
+        }
+
+        /**
+         * Builds the BLOCKS frames carrying the signature.
+         *
+         * @param id the transfer id
+         * @return the texts of the CONTROL frames, at least one
+         */
+        List<String> texts(long id) {
+            ArrayList<String> texts = new ArrayList<>();
+            int first = 0;
+            do {
+                int count = Math.min(Delta.PER_FRAME, this.weak.length - first);
+                ByteBuffer entries = ByteBuffer.allocate(count * Delta.ENTRY);
+                for (int i = first; i < first + count; i++) {
+                    entries.putInt(this.weak[i]).putLong(this.strong[i]);
+                }
+                texts.add(Delta.BLOCKS + Long.toHexString(id) + " " + this.block + " " + this.size + " " + first + " "
+                        + Base64.getEncoder().encodeToString(entries.array()));
+                first += count;
+            } while (first < this.weak.length);
+            return texts;
+        }
+
+        /**
+         * Adds the blocks of a BLOCKS frame.
+         *
+         * @param text the text of the frame
+         * @throws IllegalArgumentException if the frame is not valid
+         */
+        void add(String text) {
+            String[] fields = text.split(" ");
+            int first = Integer.parseInt(fields[4]);
+            ByteBuffer entries = ByteBuffer.wrap(fields.length > 5 ? Base64.getDecoder().decode(fields[5]) : new byte[0]);
+            if (first != this.filled || this.filled + entries.remaining() / Delta.ENTRY > this.weak.length) {
+                throw new IllegalArgumentException("Unexpected blocks from " + first);
+            }
+            while (entries.remaining() >= Delta.ENTRY) {
+                this.weak[this.filled] = entries.getInt();
+                this.strong[this.filled++] = entries.getLong();
+            }
+        }
+
+        /**
+         * @return true if every block has arrived
+         */
+        boolean complete() {
+            return this.filled == this.weak.length;
+        }
+
+        //un blocco della base con questo checksum, preferendo quello atteso (-1 se non ce n'e')
+        private int find(int weak, long strong, int expected) {
+            if (expected < this.weak.length && this.weak[expected] == weak && this.strong[expected] == strong) {
+                return expected;
+            }
+            for (int i = this.heads[Delta.slot(weak, this.heads.length)]; i > 0; i = this.chain[i - 1]) {
+                if (this.weak[i - 1] == weak && this.strong[i - 1] == strong) {
+                    return i - 1;
+                }
+            }
+            return -1;
+        }
+
+        //se qualche blocco ha questo checksum debole: il forte si calcola solo allora
+        private boolean candidate(int weak) {
+            if (this.heads == null) {
+                this.index();
+            }
+            for (int i = this.heads[Delta.slot(weak, this.heads.length)]; i > 0; i = this.chain[i - 1]) {
+                if (this.weak[i - 1] == weak) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void index() {
+            int slots = Integer.highestOneBit(Math.max(this.weak.length, 1)) * 2;
+            this.heads = new int[slots];
+            this.chain = new int[this.weak.length];
+            for (int i = this.weak.length - 1; i >= 0; i--) {   //a parita' di checksum, vince il primo
+                int slot = Delta.slot(this.weak[i], slots);
+                this.chain[i] = this.heads[slot];
+                this.heads[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * The sending side of a delta: turns the file into chunks of COPY and
+     * LITERAL operations against the signature of the basis. An instance
+     * is not thread safe.
+     */
+    static final class Encoder {
+
+        private final FileChannel file;
+        private final long size;
+        private final Signature basis;
+        private final int block;
+        private final MessageDigest md5;
+        private final ByteBuffer operations;    //payload del prossimo blocco inviato
+        private final byte[] data;  //contenuto del file da literal in poi
+        private long start; //posizione nel file di data[0]
+        private int length; //byte validi in data
+
+        private long literal;   //primo byte non ancora rappresentato
+        private long position;  //inizio della finestra
+        private boolean rolling;    //se a e b valgono per la finestra attuale
+        private int a;
+        private int b;
+        private int run;    //primo blocco della COPY in sospeso
+        private int count;  //blocchi della COPY in sospeso (0 se non ce n'e')
+        private long reused;    //byte presi dalla base finora
+
+        /**
+         * Creates the encoder of a file.
+         *
+         * @param file the file
+         * @param size its size
+         * @param basis the signature of the basis of the receiver
+         */
+        Encoder(FileChannel file, long size, Signature basis) {
+            this.file = file;
+            this.size = size;
+            this.basis = basis;
+            this.block = basis.block;
+            this.md5 = Delta.algorithm("MD5");
+            this.operations = ByteBuffer.allocate(FileTransfer.CHUNK);
+            this.data = new byte[FileTransfer.CHUNK + 2 * Delta.MAX_BLOCK];
+        }
+
+        /**
+         * @return the bytes of the file represented so far
+         */
+        long offset() {
+            return this.literal;
+        }
+
+        /**
+         * @return the bytes of the file taken from the basis so far
+         */
+        long reused() {
+            return this.reused;
+        }
+
+        /**
+         * Sends the next chunk, flagged as LAST if it reaches the end of the file.
+         *
+         * @param writer where to send the chunk
+         * @param channel the channel of the transfer
+         * @param crc reused to compute the checksum
+         * @return the size of the payload
+         * @throws IOException if the file can't be read or the stream can't be written
+         */
+        int next(FrameWriter writer, byte channel, CRC32 crc) throws IOException {
+            this.operations.clear();
+            long from = this.literal;
+            while (this.literal - from < Delta.SPAN && this.step()) {
+            }
+            this.copy();
+            this.operations.flip();
+
+            boolean last = this.literal == this.size;
+            int payload = this.operations.remaining() + Integer.BYTES;
+            ByteBuffer chunk = writer.begin(Frame.FILE_CHUNK, last ? Frame.LAST : 0, channel, payload);
+            crc.reset();
+            crc.update(this.operations.array(), 0, this.operations.limit());
+            chunk.put(this.operations).putInt((int) crc.getValue());
+            writer.end();
+            return payload;
+        }
+
+        //un passo: un blocco trovato, un byte in piu' da inviare, o la coda (false se il blocco inviato e' pieno)
+        private boolean step() throws IOException {
+            if (this.position + this.block > this.size || this.basis.weak.length == 0) {    //nessuna finestra intera, o nessun blocco: il resto e' da inviare
+                this.literal(this.size);
+                return false;
+            }
+            this.fill(this.position + this.block);
+            int offset = (int) (this.position - this.start);
+            if (!this.rolling) {
+                this.a = 0;
+                this.b = 0;
+                for (int i = 0; i < this.block; i++) {
+                    int value = this.data[offset + i] & 0xFF;
+                    this.a += value;
+                    this.b += (this.block - i) * value;
+                }
+                this.rolling = true;
+            }
+
+            int weak = this.a & 0xFFFF | this.b << 16;
+            if (this.basis.candidate(weak)) {
+                int found = this.basis.find(weak, Delta.strong(this.md5, this.data, offset, this.block), this.run + this.count);
+                if (found >= 0) {
+                    if (!this.literal(this.position)) {
+                        return false;
+                    }
+                    if (found != this.run + this.count) {   //non continua la COPY in sospeso: ci sta, il suo posto e' tenuto
+                        this.copy();
+                    }
+                    if (this.count == 0) {  //una nuova COPY: le tengo il posto
+                        if (this.operations.remaining() < Delta.COPY_SIZE) {
+                            return false;
+                        }
+                        this.run = found;
+                    }
+                    this.count++;
+                    this.position += this.block;
+                    this.literal = this.position;
+                    this.reused += this.block;
+                    this.rolling = false;
+                    return true;
+                }
+            }
+
+            if (this.position - this.literal >= FileTransfer.CHUNK / 2 && !this.literal(this.position)) {  //non lascio crescere troppo i byte in sospeso
+                return false;
+            }
+            if (this.position + this.block < this.size) {  //la finestra scorre di un byte
+                this.fill(this.position + this.block + 1);
+                offset = (int) (this.position - this.start);
+                int out = this.data[offset] & 0xFF;
+                int in = this.data[offset + this.block] & 0xFF;
+                this.a += in - out;
+                this.b += this.a - this.block * out;
+            }
+            this.position++;
+            return true;
+        }
+
+        //rappresenta i byte fino a end come LITERAL (false se non ci stanno tutti)
+        private boolean literal(long end) throws IOException {
+            while (this.literal < end) {
+                this.copy();
+                int room = this.operations.remaining() - 1 - Integer.BYTES;
+                if (room <= 0) {
+                    return false;
+                }
+                int length = (int) Math.min(room, end - this.literal);
+                this.fill(this.literal + length);
+                this.operations.put(Delta.LITERAL).putInt(length).put(this.data, (int) (this.literal - this.start), length);
+                this.literal += length;
+            }
+            return true;
+        }
+
+        //scrive la COPY in sospeso, che ha sempre il suo posto
+        private void copy() {
+            if (this.count == 0) {
+                return;
+            }
+            this.operations.put(Delta.COPY).putInt(this.run).putInt(this.count);
+            this.run += this.count;
+            this.count = 0;
+        }
+
+        //porta in data i byte del file fino ad end (escluso), tenendo quelli da literal in poi
+        private void fill(long end) throws IOException {
+            if (end <= this.start + this.length) {
+                return;
+            }
+            int keep = (int) (this.start + this.length - this.literal);
+            if (keep > 0) {
+                System.arraycopy(this.data, (int) (this.literal - this.start), this.data, 0, keep);
+            }
+            this.start = this.literal;
+            this.length = Math.max(keep, 0);
+            ByteBuffer buffer = ByteBuffer.wrap(this.data, this.length, this.data.length - this.length);
+            while (this.start + this.length < end) {
+                int read = this.file.read(buffer, this.start + this.length);
+                if (read == -1) {
+                    throw new ProtocolException("File shrank while sending it");
+                }
+                this.length += read;
+            }
+        }
+    }
+
+    //blocchi di circa la radice della dimensione, come rsync
+    static int block(long size) {
+        int block = (int) Math.sqrt(size) + 1023 & ~1023;
+        return Math.min(Delta.MAX_BLOCK, Math.max(Delta.MIN_BLOCK, block));
+    }
+
+    //checksum debole di rsync: somma dei byte e somma pesata, 16 bit ciascuna
+    private static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return a & 0xFFFF | b << 16;
+    }
+
+    //checksum forte: i primi 8 byte dell'MD5
+    private static long strong(MessageDigest md5, byte[] data, int offset, int length) {
+        md5.update(data, offset, length);
+        return ByteBuffer.wrap(md5.digest()).getLong();
+    }
+
+    private static int slot(int weak, int slots) {
+        return (weak ^ weak >>> 16) & (slots - 1);
+    }
+
+    private static MessageDigest algorithm(String name) {
+        try {
+            return MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException nsae) {   //ogni JDK li ha entrambi
+            throw new IllegalStateException(name + " not available", nsae);
+        }
+    }
+
+}
@@ -0,0 +1,457 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * This class is the receiving side of the file transfers of a connection,
+ * chunk by chunk, so that the frames of the conversation keep being read
+ * in between: every transfer comes on a channel of its own, and many can
+ * arrive at once.
+ * Every "/file NAME" command announces a name, taken by the next offer on
+ * a new channel. The offer is answered (see FileTransfer) and granted
+ * WINDOW bytes, and more are granted as chunks are written on disk.
+ * Only the base name is kept: a name that could still leave the directory
+ * is refused, like a file larger than the limit. The clients of the
+ * multi-client servers can be anyone, so their files go in a directory of
+ * their own, "chat.uploads" (./uploads by default), and are refused beyond
+ * "chat.uploads.max" MB (64 by default, 0 refuses every file).
+ * Every transfer has a thread of its own, which answers the offer (reading
+ * the files already here, if the offer carries a digest: the answer may be
+ * PRESENT, or come after the signature of a basis, see Delta) and writes
+ * the chunks on disk. The owner only copies the chunks, and never waits:
+ * a NioSession can receive files on its event loop. Since bytes are
+ * granted again only once written, at most WINDOW bytes of a transfer wait
+ * in memory.
+ * A transfer that fails is closed, keeping what was verified, and the
+ * rest of its chunks are ignored. So is a transfer whose sender goes
+ * beyond the bytes granted: the chunk is a protocol error. Closing doesn't wait either: the thread
+ * of every transfer closes its files once it's done.
+ * An instance is not thread safe: it's meant to be owned by the reader
+ * of the connection.
+ *
+ * @author Amedeo
+ */
+final class Downloads {
+
+    private static final int CHANNELS = 256;
+
+    private static final File UPLOADS = new File(System.getProperty("chat.uploads", "uploads"));    //file dei client dei server
+    private static final long MAX_UPLOAD = 1024L * 1024 * Long.getLong("chat.uploads.max", 64);  //byte al massimo per file di un client
+
+    private static final Chunk CLOSED = new Chunk(null, false);  //connessione chiusa: non arrivera' altro
+
+    private static final int ANSWERING = 0; //risposta in preparazione: nessun blocco puo' ancora arrivare
+    private static final int ACCEPTED = 1;  //risposta inviata: arrivano i blocchi
+    private static final int REFUSED = 2;   //rifiutato o gia' presente: il canale e' di nuovo libero
+    private static final int DROPPED = 3;   //oltre la finestra: ignoro il resto, fino all'ultimo blocco
+
+    /**
+     * What happens to a file.
+     */
+    interface Report {
+
+        /**
+         * Called on the thread of a transfer when it ends.
+         *
+         * @param file the file received, or null if the transfer failed
+         * @param error why the transfer failed, or null if it succeeded
+         */
+        void ended(PartialFile file, IOException error);
+    }
+
+    //la copia di un blocco, in attesa del disco
+    private static final class Chunk {
+
+        private final ByteBuffer data;
+        private final boolean last; //se e' l'ultimo, settato a true
+
+        private Chunk(ByteBuffer data, boolean last) {
+            this.data = data;
+            this.last = last;
+        }
+    }
+
+    //un trasferimento in arrivo
+    private static final class Download {
+
+        private final LinkedBlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();   //copie dei blocchi, in attesa del disco
+        private volatile int state; //ANSWERING, ACCEPTED, REFUSED o DROPPED (scritto prima di inviare la risposta)
+        private final AtomicLong window = new AtomicLong(); //byte che il mittente puo' ancora inviare (concessi dal thread, spesi dal reader)
+        private PartialFile file;   //null se il trasferimento e' fallito: ne ignoro il resto (solo per il suo thread)
+        private FutureTask<Void> stripes;   //ricezione sugli stream aggiuntivi (null se si usa la connessione)
+        private FileChannel basis;  //base del delta (null se arriva tutto il file)
+        private int block;  //blocchi della base
+        private byte[] digest;  //del file, per controllare il delta
+        private long consumed;  //byte scritti e non ancora concessi di nuovo
+    }
+
+    private final File directory;   //dove salvare i file
+    private final long limit;   //byte al massimo per file
+    private final InetAddress local;    //dove ricevere gli stream aggiuntivi (null se non si accettano)
+    private final InetAddress peer; //da dove devono arrivare (null se non si accettano)
+    private final Consumer<String> control; //invia un frame CONTROL al mittente
+    private final Report report;    //esito dei file
+    private final ArrayDeque<String> names; //annunciati, in attesa della loro offerta
+    private final Download[] channels;  //trasferimenti in corso, per canale
+
+    /**
+     * Creates the receiving side of a connection.
+     *
+     * @param directory where to save the files
+     * @param local the address of this side of the connection: more
+     * streams are received on it, if the sender asks (null if unknown)
+     * @param peer the address of the sender: streams from elsewhere are
+     * refused (null if unknown)
+     * @param control sends a CONTROL frame to the sender: it's called by
+     * the threads of the transfers
+     * @param report what happens to the files
+     */
+    Downloads(File directory, InetAddress local, InetAddress peer, Consumer<String> control, Report report) {
+        this(directory, Long.MAX_VALUE, local, peer, control, report);
+    }
+
+    /**
+     * Same as above, refusing the files larger than the limit.
+     *
+     * @param directory where to save the files
+     * @param limit the largest file accepted, in bytes
+     * @param local where more streams are received (null if unknown)
+     * @param peer where they must come from (null if unknown)
+     * @param control sends a CONTROL frame to the sender
+     * @param report what happens to the files
+     */
+    Downloads(File directory, long limit, InetAddress local, InetAddress peer, Consumer<String> control, Report report) {
+        this.directory = directory;
+        this.limit = limit;
+        this.local = local;
+        this.peer = peer;
+        this.control = control;
+        this.report = report;
+        this.names = new ArrayDeque<>();
+        this.channels = new Download[Downloads.CHANNELS];
+    }
+
+    /**
+     * Creates the receiving side of a client of a multi-client server,
+     * saving in "chat.uploads" up to "chat.uploads.max" MB per file.
+     *
+     * @param local where more streams are received (null if unknown)
+     * @param peer where they must come from (null if unknown)
+     * @param control sends a CONTROL frame to the sender
+     * @param report what happens to the files
+     * @return the receiving side
+     */
+    static Downloads uploads(InetAddress local, InetAddress peer, Consumer<String> control, Report report) {
+        return new Downloads(Downloads.UPLOADS, Downloads.MAX_UPLOAD, local, peer, control, report);
+    }
+
+    /**
+     * Notes the name of the next file offered. Only its base name is
+     * kept; if it isn't a plain name, the offer will be refused.
+     *
+     * @param name the name of the file
+     */
+    void announced(String name) {
+        name = name.substring(name.lastIndexOf('/') + 1);
+        boolean plain = !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('\\') < 0 && name.indexOf(':') < 0;  //separatori e unita' di Windows
+        this.names.offer(plain ? name : "");    //vuoto: l'offerta sara' rifiutata
+    }
+
+    /**
+     * Handles a FILE_CHUNK frame: an offer starts a transfer, the other
+     * chunks are copied for the thread of their transfer. It doesn't
+     * block, and the outcome of the file goes to the Report.
+     *
+     * @param frame the frame
+     * @throws ProtocolException if the chunk was not expected
+     */
+    void chunk(Frame frame) throws ProtocolException {
+        int channel = frame.channel & 0xFF;
+        Download download = this.channels[channel];
+        if (download != null && download.state == Downloads.REFUSED) { //il canale e' di nuovo libero
+            this.channels[channel] = null;
+            download = null;
+        }
+        if (download == null) { //un canale nuovo: e' un'offerta
+            String name = this.names.poll();
+            if (name == null) {
+                throw new ProtocolException("Unexpected file chunk");
+            }
+            this.offer(frame, name);
+            return;
+        }
+        boolean last = frame.is(Frame.LAST);
+        if (download.state == Downloads.DROPPED) {  //gia' chiuso: ne ignoro il resto
+            if (last) {
+                this.channels[channel] = null;
+            }
+            return;
+        }
+        if (download.state != Downloads.ACCEPTED) { //il mittente non puo' aver ricevuto la risposta
+            throw new ProtocolException("File chunk before the answer");
+        }
+        if (download.window.addAndGet(-frame.payload.remaining()) < 0) {    //non rispetta i crediti: chiudo il trasferimento
+            download.state = Downloads.DROPPED;
+            if (last) {
+                this.channels[channel] = null;
+            }
+            download.chunks.offer(Downloads.CLOSED);
+            throw new ProtocolException("File chunk beyond the granted window");
+        }
+
+        if (last) {
+            this.channels[channel] = null;
+        }
+        ByteBuffer copy = BufferPool.lease(frame.payload.remaining());  //il payload e' nel buffer della connessione
+        copy.put(frame.payload).flip();
+        download.chunks.offer(new Chunk(copy, last));
+    }
+
+    /**
+     * Closes every transfer in progress, keeping what was verified.
+     * The announced names are forgotten. It doesn't block: the chunks
+     * already copied are written, then every transfer closes its files.
+     */
+    void close() {
+        for (int i = 0; i < this.channels.length; i++) {
+            Download download = this.channels[i];
+            if (download != null) {
+                download.chunks.offer(Downloads.CLOSED);
+            }
+            this.channels[i] = null;
+        }
+        this.names.clear();
+    }
+
+    //chiude i file di un trasferimento, tenendo quanto verificato
+    private static void release(Download download) {
+        if (download.file != null) {
+            download.file.close();
+            download.file = null;
+        }
+        Downloads.close(download.basis);
+        download.basis = null;
+    }
+
+    //l'offerta: dimensione, id, stream desiderati ed eventualmente il digest
+    private void offer(Frame frame, String name) {
+        ByteBuffer payload = frame.payload;
+        long size = payload.getLong();
+        long id = payload.getLong();
+        int wanted = payload.remaining() >= Integer.BYTES ? payload.getInt() : 1;
+        byte[] digest = null;
+        if (payload.remaining() >= Delta.DIGEST) {
+            digest = new byte[Delta.DIGEST];
+            payload.get(digest);
+        }
+
+        Download download = new Download();
+        byte channel = frame.channel;
+        byte[] sent = digest;
+        this.channels[channel & 0xFF] = download;
+        Thread receiver = ThreadServer.newThread(() -> this.receive(download, channel, name, size, id, wanted, sent), "chat-download");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    //thread del trasferimento: risponde all'offerta, poi scrive i blocchi man mano che arrivano
+    private void receive(Download download, byte channel, String name, long size, long id, int wanted, byte[] digest) {
+        if (!this.answer(download, channel, name, size, id, wanted, digest)) {
+            return; //sul canale non arrivera' altro
+        }
+        try {
+            while (true) {
+                Chunk chunk = download.chunks.take();
+                if (chunk == Downloads.CLOSED) {
+                    return;
+                }
+                int bytes = chunk.data.remaining();
+                this.write(download, chunk.data);
+                BufferPool.release(chunk.data);
+                if (chunk.last) {
+                    this.complete(download);
+                    return;
+                }
+                this.consumed(download, channel, bytes);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Downloads.release(download);
+        }
+    }
+
+    //scrive un blocco (fallito: lo ignoro)
+    private void write(Download download, ByteBuffer chunk) {
+        if (download.file == null) {
+            return;
+        }
+        try {
+            if (download.basis != null) {
+                download.file.rebuild(chunk, download.basis, download.block);
+            } else {
+                download.file.write(chunk);
+            }
+        } catch (IOException ioe) {
+            this.failed(download, ioe);
+        }
+    }
+
+    //dopo l'ultimo blocco: il file e' completo, se tutto e' arrivato
+    private void complete(Download download) {
+        if (download.file == null) {
+            return;
+        }
+        try {
+            if (download.stripes != null) { //il mittente chiude dopo aver inviato tutti gli intervalli: finiscono a momenti
+                Downloads.await(download.stripes);
+            }
+            if (download.basis != null) {
+                download.file.check(download.digest);
+            }
+            download.file.complete();
+        } catch (IOException ioe) {
+            this.failed(download, ioe);
+            return;
+        }
+        this.report.ended(download.file, null);
+    }
+
+    private void failed(Download download, IOException ioe) {
+        Downloads.release(download);    //quanto verificato resta per riprendere
+        this.report.ended(null, ioe);
+    }
+
+    //invia la risposta all'offerta, dopo averne annotato l'esito: i blocchi possono arrivare subito
+    private boolean reply(Download download, String answer, boolean accepted) {
+        download.state = accepted ? Downloads.ACCEPTED : Downloads.REFUSED;
+        this.control.accept(answer);
+        return accepted;
+    }
+
+    //risponde all'offerta (false se sul canale non arrivera' altro)
+    private boolean answer(Download download, byte channel, String name, long size, long id, int wanted, byte[] digest) {
+        if (name.isEmpty() || size > this.limit) {
+            System.err.println("Refused file " + (name.isEmpty() ? "with an invalid name" : name + " of " + size + " bytes"));
+            return this.reply(download, FileTransfer.answer(id, -1), false);    //il mittente non inviera' nulla
+        }
+        try {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Can't create " + this.directory);
+            }
+            File same = new File(this.directory, name);
+            if (digest != null && same.isFile() && same.length() == size && Arrays.equals(Delta.digest(same), digest)) {
+                return this.reply(download, FileTransfer.answer(id, FileTransfer.PRESENT), false);  //ce l'ho gia': il mittente non inviera' nulla
+            }
+            download.file = new PartialFile(this.directory, name, id, size);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't open file");
+            return this.reply(download, FileTransfer.answer(id, -1), false);    //il mittente non inviera' nulla
+        }
+
+        if (digest != null && download.file.offset() == 0 && this.delta(download, channel, name, size, id, digest)) {
+            return true;
+        }
+
+        boolean striping = this.local != null && this.peer != null;
+        int streams = striping ? StripedTransfer.streams(wanted, size - download.file.offset()) : 1;
+        ServerSocket stripes = streams > 1 ? StripedTransfer.listen(this.local) : null;
+        if (stripes != null) {
+            PartialFile file = download.file;
+            long token = StripedTransfer.token();
+            download.stripes = new FutureTask<>(() -> {
+                StripedTransfer.receive(stripes, this.peer, token, file, id, size, streams);
+                return null;
+            });
+            Thread receiver = new Thread(download.stripes, "chat-stripes");
+            receiver.setDaemon(true);
+            receiver.start();
+            this.reply(download, FileTransfer.answer(id, download.file.offset(), stripes.getLocalPort(), streams, token), true);
+        } else {
+            this.reply(download, FileTransfer.answer(id, download.file.offset()), true);
+        }
+        this.grant(download, channel, FileTransfer.WINDOW);
+        return true;
+    }
+
+    //chiede un delta, se ho una base (false se deve arrivare tutto il file)
+    private boolean delta(Download download, byte channel, String name, long size, long id, byte[] digest) {
+        FileChannel basis = null;
+        try {
+            File path = Delta.basis(this.directory, name, size, digest);
+            if (path == null) {
+                return false;
+            }
+            basis = new RandomAccessFile(path, "r").getChannel();
+            Delta.Signature signature = Delta.Signature.of(basis);
+            for (String text : signature.texts(id)) {   //prima della risposta, che fa partire il mittente
+                this.control.accept(text);
+            }
+            download.basis = basis;
+            download.block = signature.block;
+            download.digest = digest;
+        } catch (IOException | IllegalArgumentException e) {    //la base non serve: arriva tutto il file
+            Downloads.close(basis);
+            return false;
+        }
+        this.reply(download, FileTransfer.answer(id, 0), true);
+        this.grant(download, channel, FileTransfer.WINDOW);
+        return true;
+    }
+
+    //concede di nuovo i byte scritti, a meta' finestra per non rispondere ad ogni blocco
+    private void consumed(Download download, byte channel, int bytes) {
+        download.consumed += bytes;
+        if (download.consumed >= FileTransfer.WINDOW / 2) {
+            this.grant(download, channel, download.consumed);
+            download.consumed = 0;
+        }
+    }
+
+    //concede byte al mittente, annotandoli prima: i blocchi possono arrivare subito
+    private void grant(Download download, byte channel, long bytes) {
+        download.window.addAndGet(bytes);
+        this.control.accept(FileTransfer.credit(channel, bytes));
+    }
+
+    //attende la ricezione sugli stream aggiuntivi
+    private static <T> T await(FutureTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) {
+                throw (IOException) ee.getCause();
+            }
+            throw new IOException("Couldn't receive file", ee.getCause());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while receiving file");
+        }
+    }
+
+    private static void close(FileChannel basis) {
+        if (basis != null) {
+            try {
+                basis.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close file");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is a single thread owning a Selector.
+ * Every channel registered on it is served only by this thread, so its
+ * handler never needs to synchronize. Other threads talk to the loop
+ * by submitting tasks through execute(), and the loop itself can run
+ * tasks later with schedule(), on its TimerWheel.
+ *
+ * @author Amedeo
+ */
+final class EventLoop implements Runnable {
+
+    /**
+     * Callback invoked by the loop when a registered channel is ready.
+     */
+    interface Handler {
+
+        /**
+         * Called on the loop thread with the ready key.
+         *
+         * @param key the selected key
+         * @throws IOException if the channel fails: the key will be closed
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when the channel has to be dropped.
+         */
+        void close();
+    }
+
+    private final Selector selector;    //selettore posseduto dal thread
+    private final ConcurrentLinkedQueue<Runnable> tasks;    //compiti inviati da altri thread
+    private final TimerWheel timers;    //compiti ritardati, fatti avanzare dal ciclo
+    private final Thread thread;    //thread del ciclo
+
+    private volatile boolean over;  //se il ciclo deve terminare, settato a true
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new TimerWheel();
+        this.thread = new Thread(this, name);
+        this.over = false;
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Runs the task on the loop thread, as soon as possible.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        this.tasks.offer(task);
+        if (Thread.currentThread() != this.thread) {    //sveglio il selettore solo se serve
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop thread after a delay. It must be called on
+     * the loop thread: other threads can schedule through execute().
+     *
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task to run
+     * @return the timeout, to cancel the task
+     */
+    TimerWheel.Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        return this.timers.schedule(delay, unit, task);
+    }
+
+    /**
+     * @return the wheel of the loop, for who schedules on it again and again
+     */
+    TimerWheel timers() {
+        return this.timers;
+    }
+
+    /**
+     * Registers the channel on this loop. It must be called on the loop thread.
+     *
+     * @param channel a non-blocking channel
+     * @param ops the interest set
+     * @param handler who will serve the channel
+     * @return the new key
+     * @throws IOException if the channel is already closed
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        try {
+            return channel.register(this.selector, ops, handler);
+        } catch (CancelledKeyException cke) {   //passa da un handler a un altro: tolgo la vecchia chiave e riprovo
+            this.selector.selectNow();
+            return channel.register(this.selector, ops, handler);
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    void shutdown() {
+        this.over = true;
+        this.selector.wakeup();
+    }
+
+    void join() throws InterruptedException {
+        this.thread.join();
+    }
+
+    @Override
+    public void run() {
+        while (!over) {
+            long wait = this.timers.advance();  //compiti ritardati scaduti: quelli che inviano altri compiti non aspettano
+            try {
+                if (!this.tasks.isEmpty()) {
+                    this.selector.selectNow();
+                } else if (wait < 0) {
+                    this.selector.select();
+                } else {    //mi sveglio in tempo per il prossimo tick
+                    this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                }
+            } catch (IOException ioe) {
+                System.err.println("Couldn't select channels");
+                break;
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handle(key);
+                    }
+                } catch (IOException | RuntimeException e) {  //un peer rotto non deve fermare il ciclo
+                    handler.close();
+                }
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {    //eseguo i compiti arrivati nel frattempo
+                try {
+                    task.run();
+                } catch (RuntimeException re) {
+                    System.err.println("Task failed: " + re);
+                }
+            }
+        }
+
+        //chiudo tutto quello che e' ancora registrato
+        for (SelectionKey key : this.selector.keys()) {
+            ((Handler) key.attachment()).close();
+        }
+        try {
+            this.selector.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close selector");
+        }
+    }
+
+}
@@ -0,0 +1,416 @@
+package chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * This class moves whole files as a sequence of FILE_CHUNK frames.
+ * The first frame offers the file: it carries its size, written as a long
+ * just like a DataOutputStream would, the transfer id and how many
+ * streams the sender would like to use. The receiver answers with a
+ * CONTROL frame telling how many bytes it already has from an interrupted
+ * attempt of the same transfer (or -1 to refuse it), and the following
+ * frames carry the rest of the content, in large chunks, each one followed
+ * by its CRC32. The last one is flagged as LAST.
+ * If the receiver agrees to use more streams, its answer also carries the
+ * port where to open them and the content travels over those instead
+ * (see StripedTransfer): the connection only carries an empty LAST chunk.
+ * All the frames of a transfer travel on its own channel. Senders that
+ * share the connection with a conversation (see Uploads) send chunks only
+ * as far as the receiver allows: after its answer the receiver grants
+ * WINDOW bytes, and grants more with a CONTROL frame (CREDIT) as it writes
+ * them on disk.
+ * Those senders also put the digest of the file in the offer: the
+ * receiver may answer PRESENT if it already has it, or ask for a delta
+ * against a file it has (see Delta).
+ *
+ * @author Amedeo
+ */
+final class FileTransfer {
+
+    /**
+     * Size of every chunk read from (or written to) the file
+     */
+    static final int CHUNK = 64 * 1024;   //dimensione di un blocco
+
+    /**
+     * Bytes of a transfer the receiver accepts before granting more:
+     * "chat.window" KB (512 by default, at least four chunks)
+     */
+    static final int WINDOW = Math.max(4 * CHUNK, 1024 * Integer.getInteger("chat.window", 512));
+
+    /**
+     * Answer to an offer when the receiver already has the file
+     */
+    static final long PRESENT = -2;
+
+    private static final String RESUME = "RESUME ";  //risposta del ricevente ad un'offerta
+    private static final String CREDIT = "CREDIT "; //byte concessi dal ricevente su un canale
+
+    /**
+     * The answer of the receiver to the offer of a file.
+     */
+    static final class Answer {
+
+        final long offset;  //da dove inviare, -1 se rifiutato, PRESENT se il ricevente lo ha gia'
+        final int port;     //dove aprire gli stream aggiuntivi
+        final int streams;  //stream aggiuntivi (1 se si usa la connessione)
+        final long token;   //da presentare su ogni stream aggiuntivo
+
+        Answer(long offset, int port, int streams, long token) {
+            this.offset = offset;
+            this.port = port;
+            this.streams = streams;
+            this.token = token;
+        }
+    }
+
+    /**
+     * The sender side of the handshake: it waits for the answer of the receiver.
+     */
+    interface Handshake {
+
+        /**
+         * Waits for the answer to the offer of a file.
+         *
+         * @param id the transfer id
+         * @return the answer of the receiver
+         * @throws IOException if no answer arrives
+         */
+        Answer answer(long id) throws IOException;
+    }
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Same as send(path, writer, handshake, null, 1): everything travels on the connection.
+     *
+     * @param path the file to send
+     * @param writer the frame writer of the connection
+     * @param handshake where the answer of the receiver comes from
+     * @return the number of bytes sent (less than the size if the transfer was resumed)
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    static long send(File path, FrameWriter writer, Handshake handshake) throws IOException {
+        return FileTransfer.send(path, writer, handshake, null, 1);
+    }
+
+    /**
+     * Offers the file, waits for the receiver to tell where to start from,
+     * and then sends the content, chunk by chunk, on the connection or on
+     * as many streams as the receiver agreed to.
+     *
+     * @param path the file to send
+     * @param writer the frame writer of the connection
+     * @param handshake where the answer of the receiver comes from
+     * @param peer the address of the receiver (null if unknown: no more streams)
+     * @param streams how many streams to ask for
+     * @return the number of bytes sent (less than the size if the transfer was resumed)
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    static long send(File path, FrameWriter writer, Handshake handshake, InetAddress peer, int streams) throws IOException {
+        try (FileInputStream fin = new FileInputStream(path)) {
+            FileChannel channel = fin.getChannel();
+            long size = channel.size();
+            long id = FileTransfer.id(path, size);
+
+            FileTransfer.offer(writer, Frame.FIRST_BULK, size, id, peer == null ? 1 : streams, null);
+            writer.flush(); //il ricevente deve rispondere prima che continui
+
+            Answer answer = handshake.answer(id);
+            if (answer.offset < 0) { //rifiutato: non invio altro
+                return 0;
+            }
+            if (answer.offset > size) {
+                throw new ProtocolException("Asked to resume at " + answer.offset + " of " + size + " bytes");
+            }
+
+            CRC32 crc = new CRC32();
+            if (answer.streams > 1 && peer != null) {   //il contenuto viaggia sugli stream aggiuntivi
+                try {
+                    StripedTransfer.send(channel, id, answer.token, answer.offset, size, peer, answer.port, answer.streams, writer.compressing());
+                } finally {
+                    FileTransfer.chunks(channel, writer, size, size, crc);  //chiudo comunque il trasferimento
+                }
+            } else {
+                FileTransfer.chunks(channel, writer, answer.offset, size, crc);
+            }
+            writer.flush();
+
+            return size - answer.offset;
+        }
+    }
+
+    /**
+     * Offers a file: the first frame of every transfer.
+     *
+     * @param writer the frame writer of the connection
+     * @param channel the channel of the transfer
+     * @param size the size of the file
+     * @param id the transfer id
+     * @param streams how many streams to ask for
+     * @param digest the digest of the file (null if the sender can't do without the whole file)
+     * @throws IOException if the stream can't be written
+     */
+    static void offer(FrameWriter writer, byte channel, long size, long id, int streams, byte[] digest) throws IOException {
+        //invio dimensione file, come sempre, id del trasferimento, stream desiderati ed eventualmente il digest
+        ByteBuffer offer = writer.begin(Frame.FILE_CHUNK, (byte) 0, channel, 2 * Long.BYTES + Integer.BYTES + Delta.DIGEST)
+                .putLong(size).putLong(id).putInt(streams);
+        if (digest != null) {
+            offer.put(digest);
+        }
+        writer.end();
+    }
+
+    /**
+     * Sends a range of the file as chunks, the last one flagged as LAST.
+     * An empty range is sent as a single empty chunk.
+     *
+     * @param channel the file
+     * @param writer where to send the chunks
+     * @param from the first byte
+     * @param to the byte after the last one
+     * @param crc reused to compute the checksums
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    static void chunks(FileChannel channel, FrameWriter writer, long from, long to, CRC32 crc) throws IOException {
+        long sent = from;
+        do {    //almeno un blocco, anche vuoto, per chiudere il trasferimento
+            sent += FileTransfer.chunk(channel, writer, Frame.FIRST_BULK, sent, to, crc);
+        } while (sent < to);    //finche' non e' finito...
+    }
+
+    /**
+     * Sends the first chunk of a range of the file, flagged as LAST if
+     * nothing is left after it.
+     *
+     * @param file the file
+     * @param writer where to send the chunk
+     * @param channel the channel of the transfer
+     * @param from the first byte
+     * @param to the byte after the last one
+     * @param crc reused to compute the checksum
+     * @return the bytes of the file sent
+     * @throws IOException if the file can't be read or the stream can't be written
+     */
+    static int chunk(FileChannel file, FrameWriter writer, byte channel, long from, long to, CRC32 crc) throws IOException {
+        int length = (int) Math.min(CHUNK, to - from);
+        ByteBuffer chunk = writer.begin(Frame.FILE_CHUNK, from + length == to ? Frame.LAST : 0, channel, length + Integer.BYTES);
+        int start = chunk.position();
+        chunk.limit(start + length);
+        while (chunk.hasRemaining()) {  //leggo il blocco direttamente nel frame
+            if (file.read(chunk, from + chunk.position() - start) == -1) {
+                throw new ProtocolException("File shrank while sending it");
+            }
+        }
+
+        chunk.position(start);
+        crc.reset();
+        crc.update(chunk);  //seguito dal suo checksum
+        chunk.limit(chunk.limit() + Integer.BYTES);
+        chunk.putInt((int) crc.getValue());
+
+        writer.end();   //e lo invio in una volta sola
+        return length;
+    }
+
+    /**
+     * Size of the payload of a chunk, as counted by the credits.
+     *
+     * @param length the bytes of the file in the chunk
+     * @return the size of the payload
+     */
+    static int payload(int length) {
+        return length + Integer.BYTES;
+    }
+
+    /**
+     * Receives the offer of a file, answers it and then receives the content,
+     * writing it in the given directory. If an interrupted attempt of the
+     * same transfer is there, it continues from the last verified chunk;
+     * if this attempt is interrupted too, what was verified is kept.
+     * Everything travels on the connection: without its addresses the
+     * streams of the sender couldn't be told apart from anyone else's.
+     *
+     * @param reader the frame reader of the connection
+     * @param directory where to save the file
+     * @param name the name of the file
+     * @param answer how to send the answer to the sender
+     * @return the received file
+     * @throws IOException if the stream ends early, a chunk is corrupted
+     * or the file can't be written
+     */
+    static PartialFile receive(FrameReader reader, File directory, String name, Consumer<String> answer) throws IOException {
+        Frame frame = new Frame();
+        FileTransfer.next(reader, frame);
+        long size = frame.payload.getLong();    //ricevo la dimensione del file
+        long id = frame.payload.getLong();
+
+        PartialFile file;
+        try {
+            file = new PartialFile(directory, name, id, size);
+        } catch (IOException ioe) {
+            answer.accept(FileTransfer.answer(id, -1)); //il mittente non inviera' nulla
+            throw ioe;
+        }
+
+        answer.accept(FileTransfer.answer(id, file.offset()));
+
+        try {
+            do {
+                FileTransfer.next(reader, frame);
+                file.write(frame.payload);
+            } while (!frame.is(Frame.LAST));    //fino a quando non e' finito il file
+        } catch (ProtocolException pe) {
+            FileTransfer.skip(reader, frame);   //resto comunque allineato con il mittente
+            file.close();
+            throw pe;
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+
+        file.complete();
+        return file;
+    }
+
+    /**
+     * Builds the answer to the offer of a file, to be sent on the connection.
+     *
+     * @param id the transfer id
+     * @param offset the bytes already received, -1 to refuse the file or PRESENT
+     * @return the text of the CONTROL frame
+     */
+    static String answer(long id, long offset) {
+        return FileTransfer.RESUME + Long.toHexString(id) + " " + offset;
+    }
+
+    /**
+     * Builds the answer to the offer of a file, to be sent on more streams.
+     *
+     * @param id the transfer id
+     * @param offset the bytes already received
+     * @param port where the streams must be opened
+     * @param streams how many streams
+     * @param token what the sender must present on every stream
+     * @return the text of the CONTROL frame
+     */
+    static String answer(long id, long offset, int port, int streams, long token) {
+        return FileTransfer.answer(id, offset) + " " + port + " " + streams + " " + Long.toHexString(token);
+    }
+
+    /**
+     * Reads the answer to the offer of a file.
+     *
+     * @param text the text of a CONTROL frame
+     * @param id the transfer id
+     * @return the answer, or null if the frame is not an answer for this transfer
+     */
+    static Answer answered(String text, long id) {
+        String[] fields = text.split(" ");
+        if (!FileTransfer.isAnswer(text) || fields.length < 3 || !fields[1].equals(Long.toHexString(id))) {
+            return null;
+        }
+        try {
+            long offset = Long.parseLong(fields[2]);
+            if (fields.length < 6) {    //tutto sulla connessione
+                return new Answer(offset, 0, 1, 0);
+            }
+            return new Answer(offset, Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Long.parseUnsignedLong(fields[5], 16));
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the CONTROL frame granting more bytes on a channel.
+     *
+     * @param channel the channel of the transfer
+     * @param bytes the bytes granted
+     * @return the text of the frame
+     */
+    static String credit(byte channel, long bytes) {
+        return FileTransfer.CREDIT + (channel & 0xFF) + " " + bytes;
+    }
+
+    /**
+     * Tells whether a CONTROL frame grants more bytes on a channel.
+     *
+     * @param text the text of the frame
+     * @return true if it does
+     */
+    static boolean isCredit(String text) {
+        return text.startsWith(FileTransfer.CREDIT);
+    }
+
+    /**
+     * Tells whether a CONTROL frame is the answer to the offer of a file.
+     *
+     * @param text the text of the frame
+     * @return true if it is
+     */
+    static boolean isAnswer(String text) {
+        return text.startsWith(FileTransfer.RESUME);
+    }
+
+    /**
+     * Builds the id of a transfer: the same file offered again has the
+     * same id, so the receiver can resume it.
+     *
+     * @param path the file
+     * @param size its size
+     * @return the id
+     */
+    static long id(File path, long size) {
+        CRC32 crc = new CRC32();
+        crc.update(path.getName().getBytes(StandardCharsets.UTF_8));
+        long high = crc.getValue();
+        crc.update((size + ":" + path.lastModified()).getBytes(StandardCharsets.UTF_8));
+        return high << 32 | crc.getValue();
+    }
+
+    /**
+     * Formats the throughput of a finished transfer.
+     *
+     * @param bytes the number of bytes moved
+     * @param nanos the elapsed time in nanoseconds
+     * @return a human readable summary
+     */
+    static String report(long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        double mega = bytes / (1024.0 * 1024.0);
+        return String.format("%d bytes in %.3f s (%.2f MB/s)", bytes, seconds, mega / seconds);
+    }
+
+    /**
+     * Waits for the next chunk of a transfer.
+     *
+     * @param reader where to read from
+     * @param frame where to store the chunk
+     * @throws IOException if the stream ends or carries something else
+     */
+    static void next(FrameReader reader, Frame frame) throws IOException {
+        if (!reader.read(frame)) {
+            throw new ProtocolException("Connection closed during a file transfer");
+        }
+        if (frame.type != Frame.FILE_CHUNK) {
+            throw new ProtocolException("Expected a file chunk, received frame type " + frame.type);
+        }
+    }
+
+    private static void skip(FrameReader reader, Frame frame) throws IOException {
+        while (!frame.is(Frame.LAST)) {
+            FileTransfer.next(reader, frame);
+        }
+    }
+
+}
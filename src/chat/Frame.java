@@ -0,0 +1,97 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class describes the binary frames exchanged by two peers.
+ * Every frame is made of an header of HEADER bytes (version, type,
+ * flags, channel and the length of the payload) followed by the payload
+ * itself.
+ * Channels let file transfers share the connection with the messages:
+ * CONTROL frames travel on CONTROL_CHANNEL, the other messages on
+ * CHAT_CHANNEL, and every file being sent has a channel of its own,
+ * from FIRST_BULK on (see Uploads and Downloads).
+ * The old text protocol (lines ended by "(end)") is not negotiated: the
+ * point-to-point chat recognizes a peer speaking it before reading any
+ * frame, and falls back on it (see LegacyChat). Elsewhere its first byte,
+ * never a frame version, makes the connection fail at once.
+ * A Frame instance is just a reusable holder: its payload is a view on
+ * the buffer it has been decoded from.
+ *
+ * @author Amedeo
+ */
+final class Frame {
+
+    /**
+     * Version of the frame format
+     */
+    static final byte VERSION = 2;  //1 non aveva i canali, ed i file bloccavano la connessione
+
+    /**
+     * Size of the header, in bytes
+     */
+    static final int HEADER = 8;    //versione, tipo, flag, canale, lunghezza (int)
+
+    /**
+     * Largest payload accepted
+     */
+    static final int MAX_PAYLOAD = 1024 * 1024;
+
+    static final byte TEXT = 1;         //messaggio (righe separate da '\n')
+    static final byte COMMAND = 2;      //comando per il remoto (/help, /close, /name, /file)
+    static final byte STATUS = 3;       //cambio di status
+    static final byte FILE_CHUNK = 4;   //blocco di file
+    static final byte CONTROL = 5;      //messaggio di servizio tra i due peer
+    static final byte SEED = 6;         //byte casuali del cifrario, in chiaro, prima di ogni altro frame
+
+    static final byte CONTROL_CHANNEL = 0;  //messaggi di servizio, mai soggetti a crediti
+    static final byte CHAT_CHANNEL = 1;     //messaggi, comandi e status
+    static final byte FIRST_BULK = 2;       //primo canale dei file (fino a 255)
+
+    static final byte LAST = 0x01;  //ultimo blocco di un file
+    static final byte COMPRESSED = 0x02;    //payload compresso con deflate (vedi Compression)
+    static final byte MORE = 0x04;  //il messaggio continua nel prossimo frame TEXT (vedi Lines)
+
+    byte type;  //tipo del frame
+    byte flags; //flag del frame
+    byte channel;   //canale del frame
+    int header; //versione, tipo, flag e canale come arrivati, per chi li autentica
+    ByteBuffer payload; //contenuto (vista sul buffer di provenienza)
+
+    /**
+     * Tells on which channel a frame of the given type travels, unless it
+     * belongs to a file transfer with a channel of its own.
+     *
+     * @param type the frame type
+     * @return the channel
+     */
+    static byte channel(byte type) {
+        switch (type) {
+            case CONTROL:
+            case SEED:
+                return CONTROL_CHANNEL;
+            case FILE_CHUNK:
+                return FIRST_BULK;
+            default:
+                return CHAT_CHANNEL;
+        }
+    }
+
+    /**
+     * Reads version, type, flags and channel of the frame at the given
+     * position, as a single int: the part of the header that the ciphers
+     * authenticate.
+     *
+     * @param buffer the buffer
+     * @param start the position of the frame
+     * @return the header without the length
+     */
+    static int header(ByteBuffer buffer, int start) {
+        return buffer.getInt(start);
+    }
+
+    boolean is(byte flag) {
+        return (this.flags & flag) != 0;
+    }
+
+}
@@ -0,0 +1,77 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads frames out of a ByteBuffer.
+ * It never copies the payload: the decoded Frame points inside the buffer.
+ *
+ * @author Amedeo
+ */
+final class FrameDecoder {
+
+    private final int max;  //payload piu' lungo accettato
+
+    FrameDecoder(int max) {
+        this.max = max;
+    }
+
+    /**
+     * Tells how many bytes the frame starting at the buffer position needs.
+     *
+     * @param in the buffer, ready to be read
+     * @return the size of the whole frame, or HEADER if the header is incomplete
+     * @throws ProtocolException if the header is not valid
+     */
+    int required(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        if (in.hasRemaining() && in.get(start) != Frame.VERSION) {  //subito: una riga del vecchio protocollo puo' essere piu' corta di un header
+            byte version = in.get(start);
+            if (version > 0 && version < Frame.VERSION) {
+                throw new ProtocolException("Unsupported frame version " + version);
+            }
+            throw new ProtocolException("Not a frame: the other side speaks the old text protocol");
+        }
+        if (in.remaining() < Frame.HEADER) {
+            return Frame.HEADER;
+        }
+
+        int length = in.getInt(start + 4);
+        if (length < 0 || length > this.max) {
+            throw new ProtocolException("Frame too long: " + length);
+        }
+        return Frame.HEADER + length;
+    }
+
+    /**
+     * Decodes the frame at the buffer position, if it's complete.
+     * On success the position is moved past the frame; otherwise it's untouched.
+     *
+     * @param in the buffer, ready to be read
+     * @param frame where to store the frame
+     * @return true if a frame has been decoded
+     * @throws ProtocolException if the header is not valid
+     */
+    boolean decode(ByteBuffer in, Frame frame) throws ProtocolException {
+        int size = this.required(in);
+        if (in.remaining() < size) {    //frame incompleto
+            return false;
+        }
+
+        int start = in.position();
+        frame.type = in.get(start + 1);
+        frame.flags = in.get(start + 2);
+        frame.channel = in.get(start + 3);
+        frame.header = Frame.header(in, start);
+
+        //il payload e' una vista sul buffer, senza copie
+        int limit = in.limit();
+        in.position(start + Frame.HEADER).limit(start + size);
+        frame.payload = in.slice();
+        in.limit(limit).position(start + size);
+
+        return true;
+    }
+
+}
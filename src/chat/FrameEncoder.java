@@ -0,0 +1,137 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class writes frames into a ByteBuffer.
+ * Text is encoded straight into the buffer, without building byte arrays.
+ * An instance is not thread safe: every connection has its own.
+ *
+ * @author Amedeo
+ */
+final class FrameEncoder {
+
+    private final CharsetEncoder utf8;  //riutilizzato per ogni frame
+
+    FrameEncoder() {
+        this.utf8 = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Tells how many bytes a text frame may need at most.
+     *
+     * @param text the text
+     * @return the worst case size of the frame
+     */
+    static int size(CharSequence text) {
+        return Frame.HEADER + 3 * text.length();    //al massimo 3 byte UTF-8 per char
+    }
+
+    /**
+     * Ciphers the payload of a completed frame, authenticating its header,
+     * and fixes its length.
+     * The buffer must have cipher.overhead() more bytes after the payload.
+     *
+     * @param out the buffer
+     * @param payload the view returned by end() or text()
+     * @param cipher the cipher of the connection
+     * @throws IOException if the payload can't be encrypted
+     */
+    static void seal(ByteBuffer out, ByteBuffer payload, CipherEngine cipher) throws IOException {
+        int start = payload.position() - Frame.HEADER;
+        cipher.encrypt(Frame.header(out, start), payload);
+        out.position(payload.limit());
+        FrameEncoder.end(out, start);
+    }
+
+    /**
+     * Writes the header of a frame whose length is not known yet.
+     * The payload has to be written right after it, then end() must be called.
+     *
+     * @param out the buffer
+     * @param type the frame type
+     * @param flags the frame flags
+     * @return the position of the frame, to be passed to end()
+     */
+    static int begin(ByteBuffer out, byte type, byte flags) {
+        return FrameEncoder.begin(out, type, flags, Frame.channel(type));
+    }
+
+    /**
+     * Same as above, on the given channel.
+     *
+     * @param out the buffer
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param channel the channel
+     * @return the position of the frame, to be passed to end()
+     */
+    static int begin(ByteBuffer out, byte type, byte flags, byte channel) {
+        int start = out.position();
+        out.put(Frame.VERSION).put(type).put(flags).put(channel).putInt(0);
+        return start;
+    }
+
+    /**
+     * Completes the header of the frame, now that its payload has been written.
+     *
+     * @param out the buffer, positioned after the payload
+     * @param start the position returned by begin()
+     * @return a view on the payload, for further in-place processing
+     */
+    static ByteBuffer end(ByteBuffer out, int start) {
+        int length = out.position() - start - Frame.HEADER;
+        out.putInt(start + 4, length);
+
+        ByteBuffer payload = out.duplicate();
+        payload.limit(out.position()).position(start + Frame.HEADER);
+        return payload;
+    }
+
+    /**
+     * Writes a whole frame carrying the given text, encoded as UTF-8.
+     * The buffer must have at least size(text) bytes remaining.
+     *
+     * @param out the buffer
+     * @param type the frame type
+     * @param text the text
+     * @return a view on the payload, for further in-place processing
+     */
+    ByteBuffer text(ByteBuffer out, byte type, CharSequence text) {
+        return this.text(out, type, (byte) 0, text);
+    }
+
+    /**
+     * Same as above, with the given flags.
+     *
+     * @param out the buffer
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param text the text
+     * @return a view on the payload, for further in-place processing
+     */
+    ByteBuffer text(ByteBuffer out, byte type, byte flags, CharSequence text) {
+        int start = FrameEncoder.begin(out, type, flags);
+
+        this.utf8.reset();
+        CharBuffer chars = CharBuffer.wrap(text);
+        CoderResult result = this.utf8.encode(chars, out, true);
+        if (result.isUnderflow()) {
+            result = this.utf8.flush(out);
+        }
+        if (!result.isUnderflow()) {    //il chiamante non ha riservato abbastanza spazio
+            throw new IllegalArgumentException("Buffer too small for text frame");
+        }
+
+        return FrameEncoder.end(out, start);
+    }
+
+}
@@ -0,0 +1,121 @@
+package chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads deciphered frames from a blocking InputStream.
+ * The payload of a frame is valid only until the next call to read().
+ *
+ * @author Amedeo
+ */
+final class FrameReader {
+
+    private final InputStream is;   //stream da cui leggere
+    private final CipherEngine cipher;  //cifratura dei payload
+    private final Compression compression;  //decompressione dei payload (null se non si comprime)
+    private final FrameDecoder decoder;
+    private ByteBuffer buffer;  //byte letti e non ancora consumati (pronto per la lettura)
+    private long arrived;   //istante in cui sono arrivati gli ultimi byte dell'ultimo frame
+
+    FrameReader(InputStream is, CipherEngine cipher) {
+        this(is, cipher, null);
+    }
+
+    FrameReader(InputStream is, CipherEngine cipher, Compression compression) {
+        this.is = is;
+        this.cipher = cipher;
+        this.compression = compression;
+        this.decoder = new FrameDecoder(Frame.MAX_PAYLOAD);
+        this.buffer = ByteBuffer.allocate(Frame.HEADER + FileTransfer.CHUNK);
+        this.buffer.flip(); //vuoto
+    }
+
+    /**
+     * Waits for the next frame.
+     *
+     * @param frame where to store the frame
+     * @return false if the stream ended cleanly, between two frames
+     * @throws IOException if the stream fails, ends in the middle of a frame
+     * or carries an invalid frame
+     */
+    boolean read(Frame frame) throws IOException {
+        if (!this.next(frame)) {
+            return false;
+        }
+        while (frame.type == Frame.SEED) {  //in chiaro: e' per il cifrario
+            this.cipher.seeded(frame.payload);
+            if (!this.next(frame)) {
+                return false;
+            }
+        }
+
+        this.cipher.decrypt(frame.header, frame.payload); //decifro sul posto
+        if (this.compression != null) {
+            frame.payload = this.compression.decompress(frame);
+        } else if (frame.is(Frame.COMPRESSED)) {
+            throw new ProtocolException("Compressed frame, but compression is disabled");
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the seed of the peer, for who has nothing else to read
+     * but must write: the cipher may need it. Every peer opens with its
+     * SEED frame, even if empty (see FrameWriter.seed()), so it's read
+     * whatever the cipher.
+     *
+     * @throws IOException if the stream fails, or the first frame is not a seed
+     */
+    void seed() throws IOException {
+        Frame frame = new Frame();
+        if (!this.next(frame) || frame.type != Frame.SEED) {
+            throw new ProtocolException("The peer didn't send its seed");
+        }
+        this.cipher.seeded(frame.payload);
+    }
+
+    //il prossimo frame, cosi' com'e' arrivato
+    private boolean next(Frame frame) throws IOException {
+        this.arrived = System.nanoTime();   //il frame potrebbe essere gia' nel buffer
+        while (!this.decoder.decode(this.buffer, frame)) {
+            int required = this.decoder.required(this.buffer);
+            if (required > this.buffer.capacity()) {    //frame piu' grande del buffer: lo allargo
+                ByteBuffer larger = ByteBuffer.allocate(required);
+                larger.put(this.buffer);
+                this.buffer = larger;
+            } else {
+                this.buffer.compact();
+            }
+
+            int read = this.is.read(this.buffer.array(), this.buffer.position(), this.buffer.remaining());
+            if (read == -1) {
+                this.buffer.flip();
+                if (this.buffer.hasRemaining()) {
+                    throw new EOFException("Stream ended in the middle of a frame");
+                }
+                return false;
+            }
+            this.buffer.position(this.buffer.position() + read);
+            this.arrived = System.nanoTime();
+            this.buffer.flip();
+        }
+        return true;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the last frame was complete
+     * in the stream, so that waiting for the peer is not counted
+     */
+    long arrived() {
+        return this.arrived;
+    }
+
+    void close() throws IOException {
+        this.is.close();
+    }
+
+}
@@ -0,0 +1,187 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class writes ciphered frames on a blocking OutputStream.
+ * Frames are built one after the other in the same buffer, and written on
+ * the stream together once they reach BATCH bytes or when flush() is
+ * called: many small frames cost a single write.
+ * An instance is not thread safe: it's meant to be owned by one writer.
+ *
+ * @author Amedeo
+ */
+final class FrameWriter {
+
+    private static final int BATCH = 32 * 1024;    //byte accumulati oltre i quali scrivo comunque
+
+    private final OutputStream os;  //stream su cui scrivere
+    private final CipherEngine cipher;  //cifratura dei payload
+    private final Compression compression;  //compressione dei payload (null se non si comprime)
+    private final FrameEncoder encoder;
+    private ByteBuffer buffer;  //frame pronti, seguiti da quello in costruzione
+    private int start;  //posizione del frame in costruzione
+
+    FrameWriter(OutputStream os, CipherEngine cipher) {
+        this(os, cipher, null);
+    }
+
+    FrameWriter(OutputStream os, CipherEngine cipher, Compression compression) {
+        this.os = os;
+        this.cipher = cipher;
+        this.compression = compression;
+        this.encoder = new FrameEncoder();
+        this.buffer = ByteBuffer.allocate(Frame.HEADER + FileTransfer.CHUNK);
+    }
+
+    /**
+     * Opens the connection: sends the SEED frame in clear right away (empty
+     * if the cipher needs no seed), since the peer may wait for it before
+     * writing anything. It must be called before any other frame, even by
+     * who only reads.
+     *
+     * @throws IOException if the stream can't be written
+     */
+    void seed() throws IOException {
+        ByteBuffer seed = this.cipher.seed();
+        this.ensure(Frame.HEADER + (seed != null ? seed.remaining() : 0));
+        int start = FrameEncoder.begin(this.buffer, Frame.SEED, (byte) 0);
+        if (seed != null) {
+            this.buffer.put(seed);
+        }
+        FrameEncoder.end(this.buffer, start);   //ne' compresso ne' cifrato
+        this.flush();
+    }
+
+    /**
+     * Writes a frame carrying the given text. It may stay in the buffer
+     * until the next flush().
+     *
+     * @param type the frame type
+     * @param text the text
+     * @throws IOException if the stream can't be written
+     */
+    void text(byte type, CharSequence text) throws IOException {
+        this.text(type, (byte) 0, text);
+    }
+
+    /**
+     * Same as above, with the given flags.
+     *
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param text the text
+     * @throws IOException if the stream can't be written
+     */
+    void text(byte type, byte flags, CharSequence text) throws IOException {
+        this.ensure(FrameEncoder.size(text));
+        FrameEncoder.seal(this.buffer, this.compress(this.encoder.text(this.buffer, type, flags, text)), this.cipher);
+        this.write();
+    }
+
+    /**
+     * Starts a frame: its payload must be put in the returned buffer,
+     * then end() must be called.
+     *
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param capacity the maximum size of the payload
+     * @return the buffer, positioned where the payload starts
+     * @throws IOException if the frames already in the buffer can't be written
+     */
+    ByteBuffer begin(byte type, byte flags, int capacity) throws IOException {
+        return this.begin(type, flags, Frame.channel(type), capacity);
+    }
+
+    /**
+     * Same as above, on the given channel.
+     *
+     * @param type the frame type
+     * @param flags the frame flags
+     * @param channel the channel
+     * @param capacity the maximum size of the payload
+     * @return the buffer, positioned where the payload starts
+     * @throws IOException if the frames already in the buffer can't be written
+     */
+    ByteBuffer begin(byte type, byte flags, byte channel, int capacity) throws IOException {
+        this.ensure(Frame.HEADER + capacity);
+        this.start = FrameEncoder.begin(this.buffer, type, flags, channel);
+        this.buffer.limit(this.buffer.position() + capacity);
+        return this.buffer;
+    }
+
+    /**
+     * Completes the frame started by begin(). It may stay in the buffer
+     * until the next flush().
+     *
+     * @throws IOException if the stream can't be written
+     */
+    void end() throws IOException {
+        this.buffer.limit(this.buffer.capacity());
+        FrameEncoder.seal(this.buffer, this.compress(FrameEncoder.end(this.buffer, this.start)), this.cipher);
+        this.write();
+    }
+
+    /**
+     * Drops the frame started by begin(), when its payload can't be
+     * completed.
+     */
+    void cancel() {
+        this.buffer.limit(this.buffer.capacity());
+        this.buffer.position(this.start);
+    }
+
+    /**
+     * @return true if the payloads are being compressed
+     */
+    boolean compressing() {
+        return this.compression != null && this.compression.enabled();
+    }
+
+    /**
+     * Writes every buffered frame on the stream, and flushes it.
+     *
+     * @throws IOException if the stream can't be written
+     */
+    void flush() throws IOException {
+        this.drain();
+        this.os.flush();
+    }
+
+    void close() throws IOException {
+        this.os.close();
+    }
+
+    //fa posto ad un frame dopo quelli gia' pronti, scrivendoli se serve
+    private void ensure(int size) throws IOException {
+        size += this.cipher.overhead();
+        if (this.buffer.remaining() < size) {
+            this.drain();
+        }
+        if (this.buffer.capacity() < size) {    //allargo il buffer una volta per tutte
+            this.buffer = ByteBuffer.allocate(size);
+        }
+    }
+
+    //prima si comprime, poi si cifra
+    private ByteBuffer compress(ByteBuffer payload) {
+        return this.compression == null ? payload : this.compression.compress(payload);
+    }
+
+    //frame completato: lo scrivo solo se ne ho accumulati abbastanza
+    private void write() throws IOException {
+        if (this.buffer.position() >= FrameWriter.BATCH) {
+            this.drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (this.buffer.position() > 0) {
+            this.os.write(this.buffer.array(), 0, this.buffer.position());
+            this.buffer.clear();
+        }
+    }
+
+}
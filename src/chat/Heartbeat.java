@@ -0,0 +1,133 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class finds out when the other side of a connection is gone
+ * without closing it (a cable pulled, a laptop suspended), which would
+ * otherwise keep the connection, and its threads, forever.
+ * Every frame received counts as a sign of life. After "chat.heartbeat"
+ * seconds without any (15 by default, 0 to disable) a CONTROL frame PING
+ * is sent, and the other side answers PONG; after "chat.idle" seconds
+ * (three heartbeats by default) the connection is dropped.
+ * Every connection has a single timeout in a TimerWheel, moved forward
+ * once per heartbeat and not once per frame: receiving a frame only
+ * writes down the time.
+ *
+ * @author Amedeo
+ */
+final class Heartbeat implements Runnable {
+
+    /**
+     * Text of the CONTROL frame asking for a sign of life
+     */
+    static final String PING = "PING";
+
+    /**
+     * Text of the CONTROL frame answering PING
+     */
+    static final String PONG = "PONG";
+
+    private static final int SECONDS = Integer.getInteger("chat.heartbeat", 15);   //silenzio prima di un PING
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(SECONDS);
+    private static final long IDLE = TimeUnit.SECONDS.toNanos(Math.max(SECONDS, Integer.getInteger("chat.idle", 3 * SECONDS)));
+
+    //ruota condivisa dalle connessioni bloccanti, con il suo thread (creata al primo uso)
+    private static final class Shared {
+
+        private static final TimerWheel WHEEL = new TimerWheel().start("chat-heartbeat");
+    }
+
+    private final TimerWheel wheel; //dove aspetta il prossimo controllo
+    private final Runnable ping;    //invia PING, senza bloccare
+    private final Runnable dead;    //chiude la connessione
+    private volatile long received; //istante dell'ultimo frame ricevuto
+    private volatile TimerWheel.Timeout timeout;    //prossimo controllo
+    private volatile boolean stopped;   //se la connessione e' terminata, settato a true
+
+    /**
+     * Creates the heartbeat of a connection served by an EventLoop: it
+     * runs on the loop thread.
+     *
+     * @param wheel the wheel of the loop
+     * @param ping sends a PING
+     * @param dead drops the connection
+     */
+    Heartbeat(TimerWheel wheel, Runnable ping, Runnable dead) {
+        this.wheel = wheel;
+        this.ping = ping;
+        this.dead = dead;
+        this.stopped = true;
+    }
+
+    /**
+     * Creates the heartbeat of a blocking connection: it runs on a thread
+     * shared by all of them, so ping and dead must not block.
+     *
+     * @param ping sends a PING
+     * @param dead drops the connection
+     */
+    Heartbeat(Runnable ping, Runnable dead) {
+        this(Heartbeat.INTERVAL > 0 ? Shared.WHEEL : null, ping, dead);
+    }
+
+    /**
+     * @return the seconds of silence after which a connection is dropped
+     */
+    static long idle() {
+        return TimeUnit.NANOSECONDS.toSeconds(Heartbeat.IDLE);
+    }
+
+    /**
+     * Starts watching the connection, as if a frame had just arrived.
+     */
+    void start() {
+        if (Heartbeat.INTERVAL <= 0) {
+            return;
+        }
+        this.received = System.nanoTime();
+        this.stopped = false;
+        this.timeout = this.wheel.schedule(Heartbeat.INTERVAL, TimeUnit.NANOSECONDS, this);
+    }
+
+    /**
+     * Notes that a frame has arrived.
+     */
+    void received() {
+        this.received = System.nanoTime();
+    }
+
+    /**
+     * Stops watching the connection.
+     */
+    void stop() {
+        this.stopped = true;
+        TimerWheel.Timeout timeout = this.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    //controllo, sul thread della ruota
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+        long idle = System.nanoTime() - this.received;
+        long next = Heartbeat.INTERVAL;
+        if (idle >= Heartbeat.IDLE) {   //nessuna risposta: il remoto non c'e' piu'
+            Metrics.TIMED_OUT.increment();
+            this.dead.run();
+        } else if (idle >= Heartbeat.INTERVAL) {    //silenzio: chiedo un segno di vita
+            Metrics.PINGS.increment();
+            this.ping.run();
+        } else {    //qualcosa e' arrivato: il prossimo controllo e' un intervallo dopo
+            next = Heartbeat.INTERVAL - idle;
+        }
+        if (!stopped) {
+            this.timeout = this.wheel.schedule(next, TimeUnit.NANOSECONDS, this);
+        }
+    }
+
+}
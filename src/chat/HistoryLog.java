@@ -0,0 +1,367 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class keeps the history of a conversation, so that it survives the
+ * process. Messages are appended to memory-mapped segments of SEGMENT bytes
+ * in "chat.history"/CONVERSATION (by default ./history/CONVERSATION), and
+ * the most recent ones are also kept in memory, so that they can be shown
+ * without touching the disk.
+ * Appending never blocks: messages are written on the segments by a
+ * background thread.
+ * Every record is an int length, a long timestamp and the UTF-8 text; a
+ * zero length marks the end of the written part of a segment. A message
+ * that couldn't be saved in time leaves an empty record with timestamp
+ * LOST, so that the n-th record on disk is always the n-th message.
+ *
+ * @author Amedeo
+ */
+final class HistoryLog {
+
+    static final int RING = 256;    //messaggi recenti tenuti in memoria
+    private static final int SEGMENT = 4 * 1024 * 1024;    //dimensione di un segmento su disco
+    private static final int MAX_PENDING = 4096;   //messaggi in attesa di scrittura al massimo
+    private static final int RECORD = Integer.BYTES + Long.BYTES;   //intestazione di un record
+
+    private static final long LOST = 0; //istante dei record dei messaggi non salvati
+
+    private static final Map<String, HistoryLog> OPEN = new HashMap<>();   //log aperti, condivisi per conversazione
+    private static final Map<String, HistoryLog> CLOSING = new HashMap<>();    //log che stanno finendo di scrivere
+
+    private static final Entry STOP = new Entry(-1, 0, "");    //ferma lo scrittore
+    private static final Entry MISSING = new Entry(-1, HistoryLog.LOST, "");   //al posto di un messaggio perso
+
+    //un messaggio, con l'istante in cui e' stato scambiato
+    private static final class Entry {
+
+        private final long index;   //posizione nella conversazione
+        private final long time;
+        private final String text;
+
+        private Entry(long index, long time, String text) {
+            this.index = index;
+            this.time = time;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("HH:mm:ss").format(new Date(this.time)) + " " + this.text;
+        }
+    }
+
+    //un file mappato in memoria
+    private static final class Segment {
+
+        private final MappedByteBuffer map;
+        private final long first;   //indice del primo messaggio contenuto
+
+        private Segment(MappedByteBuffer map, long first) {
+            this.map = map;
+            this.first = first;
+        }
+    }
+
+    private final String conversation;
+    private final File directory;
+    private int references; //Chat che usano il log
+
+    private final Entry[] ring; //ultimi messaggi, in ordine circolare
+    private long appended;  //messaggi aggiunti dall'apertura, compresi quelli gia' su disco
+    private final long loaded;  //messaggi gia' su disco all'apertura (mai stati in memoria)
+
+    private final ArrayList<Segment> segments;  //segmenti in ordine (protetti dal lock del log)
+    private volatile long written;  //messaggi presenti su disco
+    private final ArrayBlockingQueue<Entry> pending;    //messaggi in attesa dello scrittore
+    private final Thread writer;
+    private boolean warned; //se ho gia' avvisato che lo scrittore e' indietro
+    private boolean memory; //se il disco non e' disponibile, settato a true (solo per lo scrittore, dopo l'apertura)
+
+    private HistoryLog(String conversation) {
+        this.conversation = conversation;
+        this.directory = new File(System.getProperty("chat.history", "history"),
+                conversation.replaceAll("[^A-Za-z0-9._-]", "_"));
+        this.references = 0;
+
+        this.ring = new Entry[HistoryLog.RING];
+        this.segments = new ArrayList<>();
+        this.pending = new ArrayBlockingQueue<>(HistoryLog.MAX_PENDING);
+
+        try {
+            this.load();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't open history, it will not be saved");
+            this.segments.clear();
+            this.written = 0;
+            this.memory = true;
+        }
+        this.loaded = this.written;
+        this.appended = this.loaded;
+
+        this.writer = new Thread(this::write, "chat-history");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens the history of a conversation, sharing it with whoever has
+     * already opened it. Every call must be matched by a call to close().
+     *
+     * @param conversation the name of the conversation
+     * @return the history
+     */
+    static HistoryLog open(String conversation) {
+        while (true) {
+            HistoryLog closing;
+            synchronized (HistoryLog.OPEN) {
+                closing = HistoryLog.CLOSING.get(conversation);
+                if (closing == null) {
+                    HistoryLog log = HistoryLog.OPEN.get(conversation);
+                    if (log == null) {
+                        log = new HistoryLog(conversation);
+                        HistoryLog.OPEN.put(conversation, log);
+                    }
+                    log.references++;
+                    return log;
+                }
+            }
+
+            //chi la riapre deve trovare i segmenti completi: aspetto fuori dal lock
+            try {
+                closing.writer.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                synchronized (HistoryLog.OPEN) {    //rinuncio ad aspettare
+                    HistoryLog.CLOSING.remove(conversation, closing);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a message. It never blocks: if the disk falls too far behind,
+     * the message is kept in memory only.
+     *
+     * @param text the message, already prefixed with its author
+     */
+    void append(String text) {
+        synchronized (this.ring) {
+            Entry entry = new Entry(this.appended, System.currentTimeMillis(), text);
+            this.ring[(int) (this.appended % HistoryLog.RING)] = entry;
+            this.appended++;
+
+            //in coda in ordine di indice: lo scrittore riconosce i buchi
+            if (!this.pending.offer(entry) && !this.warned) {
+                System.err.println("Couldn't save history fast enough, some messages will be lost");
+                this.warned = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the last messages, oldest first. The most recent ones come
+     * from memory, the older ones from the segments.
+     *
+     * @param count how many messages
+     * @return at most count messages, each one prefixed with its time
+     */
+    List<String> last(int count) {
+        ArrayList<String> result = new ArrayList<>();
+        long end;
+        long start;
+        ArrayList<Entry> recent = new ArrayList<>();
+
+        synchronized (this.ring) {
+            end = this.appended;
+            start = Math.max(0, end - count);
+            long oldest = Math.max(this.loaded, end - HistoryLog.RING); //primo messaggio ancora in memoria
+            for (long i = Math.max(start, oldest); i < end; i++) {
+                recent.add(this.ring[(int) (i % HistoryLog.RING)]);
+            }
+            end = Math.max(start, oldest);
+        }
+
+        if (start < end) {  //i piu' vecchi sono solo su disco
+            for (Entry entry : this.read(start, Math.min(end, this.written))) {
+                if (entry.time != HistoryLog.LOST) {
+                    result.add(entry.toString());
+                }
+            }
+        }
+        for (Entry entry : recent) {
+            result.add(entry.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Releases the history: when nobody uses it anymore, the pending
+     * messages are written and the segments are flushed on disk.
+     */
+    void close() {
+        synchronized (HistoryLog.OPEN) {
+            if (--this.references > 0) {
+                return;
+            }
+            HistoryLog.OPEN.remove(this.conversation);
+            HistoryLog.CLOSING.put(this.conversation, this);    //chi la riapre aspetta lo scrittore
+        }
+
+        //fuori dal lock: un disco lento non deve fermare le altre conversazioni
+        try {
+            this.pending.put(HistoryLog.STOP);  //lo scrittore svuota sempre la coda, anche senza disco
+            this.writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (HistoryLog.OPEN) {
+                HistoryLog.CLOSING.remove(this.conversation, this);
+            }
+        }
+    }
+
+    //scansiona i segmenti esistenti, per continuare da dove si era rimasti
+    private void load() throws IOException {
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Can't create " + this.directory);
+        }
+
+        long count = 0;
+        for (int i = 0; new File(this.directory, HistoryLog.name(i)).exists(); i++) {
+            Segment segment = this.map(i, count);
+            ByteBuffer data = segment.map.duplicate();
+            while (HistoryLog.skip(data)) {
+                count++;
+            }
+            segment.map.position(data.position());  //prossima scrittura
+            this.segments.add(segment);
+        }
+        this.written = count;
+    }
+
+    //thread di scrittura: copia i messaggi in coda sui segmenti
+    private void write() {
+        try {
+            Entry entry = this.pending.take();
+            while (entry != HistoryLog.STOP) {
+                if (!this.memory) {
+                    try {
+                        while (this.written < entry.index) {    //messaggi persi: la coda era piena
+                            this.store(HistoryLog.MISSING);
+                        }
+                        this.store(entry);
+                    } catch (IOException ioe) { //disco pieno: continuo a svuotare la coda, senza scrivere
+                        System.err.println("Couldn't write history, it will not be saved anymore");
+                        this.memory = true;
+                    }
+                }
+                entry = this.pending.take();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            for (Segment segment : this.segments) {
+                segment.map.force();
+            }
+        }
+    }
+
+    private void store(Entry entry) throws IOException {
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, HistoryLog.SEGMENT - HistoryLog.RECORD - Integer.BYTES);
+
+        synchronized (this) {
+            MappedByteBuffer map = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1).map;
+            if (map == null || map.remaining() < HistoryLog.RECORD + length + Integer.BYTES) {  //segmento pieno: ne apro un altro
+                if (map != null) {
+                    map.force();
+                }
+                Segment segment = this.map(this.segments.size(), this.written);
+                this.segments.add(segment);
+                map = segment.map;
+            }
+
+            //prima il testo, poi la lunghezza: un record a meta' non viene mai letto
+            int start = map.position();
+            map.position(start + HistoryLog.RECORD);
+            map.put(text, 0, length);
+            map.putLong(start + Integer.BYTES, entry.time);
+            map.putInt(start, length + 1);  //lunghezza piu' uno: zero indica la fine
+        }
+        this.written++;
+    }
+
+    //legge dai segmenti i messaggi di indice compreso tra from (incluso) e to (escluso)
+    private synchronized List<Entry> read(long from, long to) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < this.segments.size() && from < to; i++) {
+            Segment segment = this.segments.get(i);
+            long next = i + 1 < this.segments.size() ? this.segments.get(i + 1).first : Long.MAX_VALUE;
+            if (next <= from) { //segmento interamente precedente
+                continue;
+            }
+
+            ByteBuffer data = segment.map.duplicate();
+            data.position(0);
+            for (long index = segment.first; index < to && data.remaining() >= Integer.BYTES; index++) {
+                if (index < from) {
+                    if (!HistoryLog.skip(data)) {
+                        break;
+                    }
+                    continue;
+                }
+                int length = data.getInt() - 1;
+                if (length < 0 || length > data.remaining() - Long.BYTES) {
+                    break;
+                }
+                long time = data.getLong();
+                byte[] text = new byte[length];
+                data.get(text);
+                entries.add(new Entry(index, time, new String(text, StandardCharsets.UTF_8)));
+                from++;
+            }
+        }
+        return entries;
+    }
+
+    //salta un record, se c'e'
+    private static boolean skip(ByteBuffer data) {
+        if (data.remaining() < Integer.BYTES) {
+            return false;
+        }
+        int length = data.getInt(data.position()) - 1;
+        if (length < 0 || length > data.remaining() - HistoryLog.RECORD) {  //fine dei dati (o record rovinato)
+            return false;
+        }
+        data.position(data.position() + HistoryLog.RECORD + length);
+        return true;
+    }
+
+    private Segment map(int number, long first) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(this.directory, HistoryLog.name(number)), "rw")) {
+            //la mappatura resta valida anche dopo la chiusura del file
+            return new Segment(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HistoryLog.SEGMENT), first);
+        }
+    }
+
+    private static String name(int number) {
+        return String.format("%08d.log", number);
+    }
+
+}
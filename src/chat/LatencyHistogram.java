@@ -0,0 +1,161 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records durations in logarithmic buckets, like HdrHistogram:
+ * every power of two is split in SUB linear sub-buckets, so any value is
+ * known with a relative error below 1/SUB (about 3%).
+ * Recording is lock-free and never allocates, so it can be done on the
+ * hot path by any number of threads.
+ *
+ * @author Amedeo
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;   //sotto-intervalli per potenza di due
+
+    private final String name;
+    private final AtomicLongArray buckets;  //conteggi per intervallo
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    LatencyHistogram(String name) {
+        this.name = name;
+        this.buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    String name() {
+        return this.name;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {    //orologio non monotono: non succede, ma non deve rompere niente
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(LatencyHistogram.index(nanos));
+        this.count.increment();
+        this.sum.add(nanos);
+
+        long current = this.max.get();
+        while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given instant.
+     *
+     * @param start a value of System.nanoTime()
+     */
+    void since(long start) {
+        this.record(System.nanoTime() - start);
+    }
+
+    long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * @return the sum of every recorded duration, in nanoseconds
+     */
+    long total() {
+        return this.sum.sum();
+    }
+
+    long max() {
+        return this.max.get();
+    }
+
+    long mean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : this.sum.sum() / n;
+    }
+
+    /**
+     * Estimates a percentile.
+     *
+     * @param quantile between 0 and 1 (e.g. 0.99)
+     * @return the highest value of the bucket holding the percentile, in nanoseconds
+     */
+    long percentile(double quantile) {
+        return this.percentile(this.snapshot(), quantile);
+    }
+
+    //copia dei conteggi, per avere percentili coerenti mentre altri registrano
+    private long[] snapshot() {
+        long[] counts = new long[this.buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets.get(i);
+        }
+        return counts;
+    }
+
+    private long percentile(long[] counts, double quantile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(LatencyHistogram.lowest(i + 1) - 1, this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < this.buckets.length(); i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    //intervallo in cui cade il valore
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return (exponent - SUB_BITS + 1) * SUB + mantissa;
+    }
+
+    //valore piu' basso dell'intervallo
+    private static long lowest(int index) {
+        int block = index / SUB;
+        long mantissa = index % SUB;
+        return block == 0 ? mantissa : (SUB + mantissa) << (block - 1);
+    }
+
+    @Override
+    public String toString() {
+        //tempi in microsecondi
+        long[] counts = this.snapshot();
+        return String.format("%-14s n=%-8d mean=%-9.1f p50=%-9.1f p99=%-9.1f p999=%-9.1f max=%.1f us",
+                this.name, this.count(), this.mean() / 1e3, this.percentile(counts, 0.5) / 1e3,
+                this.percentile(counts, 0.99) / 1e3, this.percentile(counts, 0.999) / 1e3, this.max() / 1e3);
+    }
+
+}
@@ -0,0 +1,387 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the chat with a peer that still speaks the old text
+ * protocol, from before the frames: lines shifted by KEY, a message ended
+ * by a line "(end)" that also passes the turn to the peer, and files sent
+ * as their size followed by their shifted bytes.
+ * The old protocol is half duplex: only who has the turn can write, so
+ * the terminal is read only after a message arrived.
+ * There is nothing to negotiate, so the protocol is recognized by the
+ * first bytes (see server() and client()): an old server speaks first,
+ * with its welcome, while an old client waits for it. A peer speaking
+ * frames always opens with a SEED frame, whose first byte is
+ * Frame.VERSION. Only the point-to-point chat falls back on the old
+ * protocol: the multi-client servers speak frames only.
+ * Like the old chat, a line "(end)" can't be sent inside a message.
+ *
+ * @author Amedeo
+ */
+final class LegacyChat {
+
+    /**
+     * How long a client waits for an old server to speak first, in
+     * milliseconds, before speaking frames: "chat.legacy.greeting" (1000
+     * by default).
+     */
+    static final int GREETING = Integer.getInteger("chat.legacy.greeting", 1000);
+
+    /**
+     * How long a server waits for a client to speak frames, in
+     * milliseconds, before taking it for an old client: "chat.legacy.wait"
+     * (3000 by default, more than GREETING).
+     */
+    static final int WAIT = Math.max(GREETING + 1000, Integer.getInteger("chat.legacy.wait", 3000));
+
+    private static final String END = "(end)";  //passa il turno al remoto
+    private static final int KEY = 10;  //spostamento di ogni carattere e di ogni byte dei file
+    private static final int BLOCK = 64 * 1024; //byte dei file copiati per volta
+    private static final long PAUSE = 500;  //ms tra il comando di un file ed i suoi byte
+
+    private static final String[] HELP = {
+        "/help: show this list",
+        "/close: close the connection",
+        "/echo: send the last received message",
+        "/smile: send a smile",
+        "/like: send a thumb up",
+        "/name NAME: change your current name to NAME (??? if invalid input)",
+        "/status [AVAILABLE | BUSY]: change your current status",
+        "/file FILEPATH: send the file located in FILEPATH"
+    };
+
+    private static final String RESET_COLOR = "\u001B[0m";
+    private static final String YOUR_COLOR = "\u001B[45m";
+    private static final String ITS_COLOR = "\u001B[44m";
+
+    private final DataInputStream in;   //righe e file: lo stesso buffer, nessun byte resta indietro
+    private final DataOutputStream out;
+    private final Charset charset;  //quello della piattaforma, come il vecchio Scanner
+    private final Terminal terminal;
+
+    private String yourName;
+    private Status yourStatus;
+    private String itsName;
+    private Status itsStatus;
+    private List<String> lastMessage;   //ultimo messaggio ricevuto (diviso in righe)
+    private boolean over;   //se la chat e' terminata, settato a true
+
+    /**
+     * Runs the chat until one of the sides closes it.
+     *
+     * @param input the stream of the connection, positioned at its first byte
+     * @param output the stream of the connection
+     * @param server true if this side speaks first, with its welcome
+     * @param terminal where to read what to send and show what arrives
+     */
+    LegacyChat(InputStream input, OutputStream output, boolean server, Terminal terminal) {
+        this.in = new DataInputStream(new BufferedInputStream(input, LegacyChat.BLOCK));
+        this.out = new DataOutputStream(new BufferedOutputStream(output, LegacyChat.BLOCK));
+        this.charset = Charset.defaultCharset();
+        this.terminal = terminal;
+
+        this.yourName = "You";
+        this.yourStatus = Status.AVAILABLE;
+        this.itsName = "???";
+        this.itsStatus = Status.AVAILABLE;
+        this.lastMessage = new ArrayList<>();
+        this.over = false;
+
+        terminal.show("The other side speaks the old text protocol: one message per turn");
+        try {
+            if (server) {   //come il vecchio server: il benvenuto, con la lista dei comandi, passa il turno al client
+                List<String> welcome = new ArrayList<>(Arrays.asList(LegacyChat.HELP));
+                welcome.add(0, "Welcome! What would you like to do?");
+                this.send(welcome.toArray(new String[0]));
+            }
+            while (!over) {
+                this.lastMessage = this.receive();
+                if (this.lastMessage == null) { //il remoto ha chiuso senza /close
+                    break;
+                }
+                this.menu();
+            }
+        } catch (IOException ioe) {
+            System.err.println("Couldn't read from input stream");
+        }
+
+        if (terminal.interactive()) {
+            System.out.println("Bye!");
+        } else {
+            terminal.show("Bye!");
+        }
+        try {
+            this.out.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close output stream");
+        }
+        try {
+            this.in.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close input stream");
+        }
+    }
+
+    /**
+     * Tells whether the client connected to this server speaks the old
+     * protocol: it says nothing within WAIT milliseconds, waiting for the
+     * welcome. The bytes looked at stay in the stream.
+     *
+     * @param sock the connection
+     * @param input its stream, able to push back one byte
+     * @return true if the client speaks the old protocol
+     * @throws IOException if the connection fails
+     */
+    static boolean server(Socket sock, PushbackInputStream input) throws IOException {
+        return LegacyChat.peek(sock, input, LegacyChat.WAIT) == -2;
+    }
+
+    /**
+     * Tells whether the server this client connected to speaks the old
+     * protocol: it speaks first, and not with a frame. If it says nothing
+     * within GREETING milliseconds it's waiting for frames. The bytes
+     * looked at stay in the stream.
+     *
+     * @param sock the connection
+     * @param input its stream, able to push back one byte
+     * @return true if the server speaks the old protocol
+     * @throws IOException if the connection fails
+     */
+    static boolean client(Socket sock, PushbackInputStream input) throws IOException {
+        int first = LegacyChat.peek(sock, input, LegacyChat.GREETING);
+        return first >= 0 && first != Frame.VERSION;
+    }
+
+    //primo byte del remoto, rimesso nello stream (-1 se ha chiuso, -2 se tace per millis)
+    private static int peek(Socket sock, PushbackInputStream input, int millis) throws IOException {
+        int timeout = sock.getSoTimeout();
+        sock.setSoTimeout(millis);
+        try {
+            int first = input.read();
+            if (first >= 0) {
+                input.unread(first);
+            }
+            return first;
+        } catch (SocketTimeoutException ste) {
+            return -2;
+        } finally {
+            sock.setSoTimeout(timeout);
+        }
+    }
+
+    //righe fino al terminatore (null se lo stream e' finito)
+    private List<String> receive() throws IOException {
+        List<String> message = new ArrayList<>();
+        String line;
+        while ((line = this.readLine()) != null) {
+            if (line.equals(LegacyChat.END)) {
+                return message;
+            }
+            message.add(line);
+        }
+        return null;
+    }
+
+    //una riga decifrata (null se lo stream e' finito): a byte, perche' un file puo' seguire subito
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = this.in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;    //println di Windows
+        return LegacyChat.shift(new String(bytes, 0, length, this.charset), -LegacyChat.KEY);
+    }
+
+    //smistamento dei messaggi ricevuti, come nel vecchio protocollo
+    private void menu() throws IOException {
+        String first = this.lastMessage.isEmpty() ? "" : this.lastMessage.get(0);
+        if (first.equals("/help")) {    //la lista passa il turno
+            this.send(LegacyChat.HELP);
+
+        } else if (first.equals("/close")) {
+            this.over = true;
+
+        } else if (first.startsWith("/name")) {
+            this.itsName = first.length() > 5 ? first.substring(6) : "???";
+            this.terminal.show(this.itsPrompt() + "changed its name");
+            this.turn();
+
+        } else if (first.startsWith("/status")) {
+            this.itsStatus = first.length() > 7 && first.substring(8).equalsIgnoreCase("BUSY") ? Status.BUSY : Status.AVAILABLE;
+            this.terminal.show(this.itsPrompt() + "changed its status");
+            this.turn();
+
+        } else if (first.startsWith("/file")) {
+            this.receiveFile(first.substring(first.lastIndexOf('/') + 1));
+            this.turn();
+
+        } else {
+            this.terminal.message(this.itsPrompt(), this.lastMessage);
+            this.turn();
+        }
+    }
+
+    //il mio turno: leggo dal terminale e invio
+    private void turn() throws IOException {
+        String line = this.terminal.readLine(this.yourPrompt());
+        while (line != null && Arrays.asList(line.split("\n", -1)).contains(LegacyChat.END)) {
+            this.terminal.show(this.yourPrompt() + LegacyChat.END + " can't be sent to this peer");
+            line = this.terminal.readLine(this.yourPrompt());
+        }
+        if (line == null || line.startsWith("/close")) {    //tastiera chiusa: chiudo come con /close
+            this.over = true;
+            this.send("/close");
+
+        } else if (line.startsWith("/echo")) {
+            this.send(this.lastMessage.toArray(new String[0]));
+
+        } else if (line.startsWith("/smile")) {
+            this.send(" /000000\\ ",
+                    "|  ^  ^  |",
+                    "| \\____/ |",
+                    " \\______/ ");
+
+        } else if (line.startsWith("/like")) {
+            this.send(" ( ((           ",
+                    "  \\ =\\          ",
+                    " __\\_  `-\\      ",
+                    "(____))(  \\---- ",
+                    "(____)) _       ",
+                    "(____))         ",
+                    "(___))____/---- ");
+
+        } else if (line.startsWith("/name")) {
+            this.yourName = line.length() > 5 ? line.substring(6) : "???";
+            this.send(line);
+
+        } else if (line.startsWith("/status")) {
+            this.yourStatus = line.length() > 7 && line.substring(8).equalsIgnoreCase("BUSY") ? Status.BUSY : Status.AVAILABLE;
+            this.send(line);
+
+        } else if (line.startsWith("/file")) {
+            File file = line.length() > 5 ? new File(line.substring(6)) : null;
+            if (file != null && file.isFile()) {
+                this.sendFile(line, file);
+            } else {
+                this.terminal.show(this.yourPrompt() + "Can't Access File");
+                this.send("~*Sytax Error*~");
+            }
+
+        } else {
+            this.send(line.split("\n", -1));    //i blocchi di una pipe hanno piu' righe
+        }
+    }
+
+    //invia le righe e passa il turno
+    private void send(String... lines) throws IOException {
+        for (String line : lines) {
+            this.println(line);
+        }
+        this.println(LegacyChat.END);
+        this.out.flush();
+    }
+
+    private void println(String line) throws IOException {
+        this.out.write(LegacyChat.shift(line, LegacyChat.KEY).getBytes(this.charset));
+        this.out.write('\n');
+    }
+
+    //il comando, poi la dimensione ed i byte spostati
+    private void sendFile(String line, File file) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            this.send(line);
+            LegacyChat.pause(); //il vecchio Scanner legge avanti: i byte del file non devono arrivare con le righe
+            this.out.writeLong(input.getChannel().size());
+            byte[] block = new byte[LegacyChat.BLOCK];
+            int read;
+            while ((read = input.read(block)) != -1) {
+                LegacyChat.shift(block, read, (byte) LegacyChat.KEY);
+                this.out.write(block, 0, read);
+            }
+            this.out.flush();
+        }
+        this.terminal.show(this.yourPrompt() + file.getName() + " sent");
+    }
+
+    private static void pause() throws IOException {
+        try {
+            Thread.sleep(LegacyChat.PAUSE);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending file");
+        }
+    }
+
+    //salvo con lo stesso nome (o numerato) nella cartella attuale
+    private void receiveFile(String name) throws IOException {
+        long size = this.in.readLong();
+        boolean plain = !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('\\') < 0 && name.indexOf(':') < 0;
+        File file = PartialFile.unique(new File("."), plain ? name : "file");
+        byte[] block = new byte[LegacyChat.BLOCK];
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            for (long left = size; left > 0; ) {
+                int read = this.in.read(block, 0, (int) Math.min(block.length, left));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                LegacyChat.shift(block, read, (byte) -LegacyChat.KEY);
+                output.write(block, 0, read);
+                left -= read;
+            }
+        }
+        this.terminal.show(this.itsPrompt() + file.getName() + " received");
+    }
+
+    private static String shift(String text, int key) {
+        char[] data = text.toCharArray();
+        for (int i = 0; i < data.length; i++) {
+            data[i] += key;
+        }
+        return new String(data);
+    }
+
+    private static void shift(byte[] data, int length, byte key) {
+        for (int i = 0; i < length; i++) {
+            data[i] += key;
+        }
+    }
+
+    private String yourPrompt() {
+        return this.prompt(LegacyChat.YOUR_COLOR, this.yourName, this.yourStatus);
+    }
+
+    private String itsPrompt() {
+        return this.prompt(LegacyChat.ITS_COLOR, this.itsName, this.itsStatus);
+    }
+
+    private String prompt(String color, String name, Status status) {
+        boolean colors = this.terminal.interactive();
+        return (colors ? color : "") + name + (status == Status.BUSY ? " (Busy)" : "") + "> " + (colors ? LegacyChat.RESET_COLOR : "");
+    }
+
+}
@@ -0,0 +1,142 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class splits the messages into lines as they arrive. A long
+ * message travels in many TEXT frames (fragments), all but the last one
+ * flagged as MORE: the complete lines of every fragment are given out at
+ * once, so they can be shown or relayed before the rest arrives, and only
+ * the line cut between two fragments is kept.
+ * The sender cuts the messages at a line break whenever it can; a single
+ * line longer than CAP is given out in pieces of CAP characters.
+ * The memory a message may hold is configured through a system property:
+ *   chat.message  per-message cap, in K characters (1024): no longer
+ *                 line is kept whole, and /echo repeats only the first
+ *                 CAP characters of the last message
+ * An instance is not thread safe: it's meant to be owned by the reader
+ * of the connection.
+ *
+ * @author Amedeo
+ */
+final class Lines {
+
+    /**
+     * Characters kept of a single message
+     */
+    static final int CAP = 1024 * Math.max(1, Integer.getInteger("chat.message", 1024));
+
+    /**
+     * Characters of a fragment: at most 3 UTF-8 bytes each, it always fits
+     * in a frame
+     */
+    static final int FRAGMENT = 16 * 1024;
+
+    private final StringBuilder partial;    //riga iniziata nei frammenti precedenti
+
+    Lines() {
+        this.partial = new StringBuilder();
+    }
+
+    /**
+     * Tells where the next fragment of a message ends: after the last line
+     * break that fits in FRAGMENT characters, or at FRAGMENT characters if
+     * there is none.
+     *
+     * @param text the message
+     * @param start where the fragment starts
+     * @return where the fragment ends (text.length() for the last one)
+     */
+    static int fragment(String text, int start) {
+        if (text.length() - start <= Lines.FRAGMENT) {
+            return text.length();
+        }
+        int end = text.lastIndexOf('\n', start + Lines.FRAGMENT - 1) + 1;
+        if (end <= start) { //una riga sola piu' lunga del frammento: la taglio
+            end = start + Lines.FRAGMENT;
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {  //senza separare una coppia di surrogati
+                end--;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @param text a message
+     * @return the number of fragments it's split into
+     */
+    static int fragments(String text) {
+        int count = 1;
+        for (int end = Lines.fragment(text, 0); end < text.length(); end = Lines.fragment(text, end)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes a fragment of a message.
+     *
+     * @param text the text of the fragment
+     * @param more true if the message goes on in the next fragment
+     * @return the lines completed by the fragment: if it's the last one,
+     * the line left open too (as String.split("\n", -1) would do on the
+     * whole message)
+     */
+    List<String> feed(String text, boolean more) {
+        if (!more && this.partial.length() == 0 && text.indexOf('\n') < 0) {   //il caso comune: una riga sola
+            return Collections.singletonList(text);
+        }
+
+        ArrayList<String> lines = new ArrayList<>();
+        int start = 0;
+        for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+            if (this.partial.length() == 0) {
+                lines.add(text.substring(start, end));
+            } else {
+                lines.add(this.partial.append(text, start, end).toString());
+                this.partial.setLength(0);
+            }
+            start = end + 1;
+        }
+        this.partial.append(text, start, text.length());
+
+        if (!more) {
+            lines.add(this.partial.toString());
+            this.reset();
+        } else {
+            while (this.partial.length() >= Lines.CAP) {    //non tengo righe piu' lunghe del limite
+                lines.add(this.partial.substring(0, Lines.CAP));
+                this.partial.delete(0, Lines.CAP);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Gives out the line left open, when the peer closes the chat before
+     * the message ends.
+     *
+     * @return the line left open, or null if there is none
+     */
+    String rest() {
+        if (this.partial.length() == 0) {
+            return null;
+        }
+        String line = this.partial.toString();
+        this.reset();
+        return line;
+    }
+
+    /**
+     * Forgets the line left open, when a message can't go on.
+     */
+    void reset() {
+        this.partial.setLength(0);
+        if (this.partial.capacity() > Lines.FRAGMENT) {
+            this.partial.trimToSize();  //non trattengo la memoria di una riga enorme
+        }
+    }
+
+}
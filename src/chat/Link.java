@@ -0,0 +1,52 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.function.BooleanSupplier;
+
+/**
+ * This interface is a connection that can be opened again when it drops,
+ * so that a Chat can resume its session instead of ending.
+ *
+ * @author Amedeo
+ */
+interface Link {
+
+    /**
+     * @return the input stream of the current connection
+     * @throws IOException if the connection is not open
+     */
+    InputStream input() throws IOException;
+
+    /**
+     * @return the output stream of the current connection
+     * @throws IOException if the connection is not open
+     */
+    OutputStream output() throws IOException;
+
+    /**
+     * @return the address of the other side
+     */
+    InetAddress peer();
+
+    /**
+     * @return the address of this side of the connection
+     */
+    InetAddress local();
+
+    /**
+     * Closes the current connection, unblocking whoever is using it.
+     */
+    void drop();
+
+    /**
+     * Opens a new connection, retrying until it succeeds or gives up.
+     *
+     * @param cancelled tells whether to stop trying
+     * @return true if a new connection is open
+     */
+    boolean reopen(BooleanSupplier cancelled);
+
+}
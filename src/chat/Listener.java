@@ -0,0 +1,284 @@
+package chat;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class tells a server where to listen: an address, and the number
+ * of acceptors sharing it. With more than one acceptor every one of them
+ * has its own listening socket bound to the same port with SO_REUSEPORT,
+ * and the kernel spreads the new connections among them: a storm of
+ * reconnections is not accepted by a single thread.
+ * Listeners are configured through system properties:
+ *   chat.listen     comma separated list of [HOST:]PORT[/ACCEPTORS]
+ *                   (all the interfaces on Server.PORT by default)
+ *   chat.acceptors  acceptors of the listeners that don't say (1)
+ *   chat.backlog    connections waiting to be accepted, per socket
+ *                   (0 for the default of the JDK)
+ *   chat.rcvbuf     receive buffer of the connections, in KB (0 for the
+ *                   default of the system)
+ *   chat.sndbuf     send buffer of the connections, in KB (same)
+ * Where SO_REUSEPORT is not available (before Java 9, or on systems that
+ * don't have it) the acceptors of a listener share a single socket.
+ *
+ * @author Amedeo
+ */
+final class Listener {
+
+    private static final int ACCEPTORS = Integer.getInteger("chat.acceptors", 1);
+    private static final int BACKLOG = Integer.getInteger("chat.backlog", 0);
+    private static final int RECEIVE_BUFFER = 1024 * Integer.getInteger("chat.rcvbuf", 0);
+    private static final int SEND_BUFFER = 1024 * Integer.getInteger("chat.sndbuf", 0);
+
+    private static final SocketOption<Boolean> REUSE_PORT = Listener.reusePort();   //null se il JDK non lo conosce
+
+    private final InetSocketAddress address;
+    private final int acceptors;
+
+    /**
+     * Creates a listener.
+     *
+     * @param address the address to bind
+     * @param acceptors the number of acceptors
+     */
+    Listener(InetSocketAddress address, int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("A listener needs at least one acceptor");
+        }
+        this.address = address;
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Creates a listener on every interface, with the configured acceptors.
+     *
+     * @param port the port
+     * @return the listener
+     */
+    static Listener on(int port) {
+        return new Listener(new InetSocketAddress(port), Listener.ACCEPTORS);
+    }
+
+    /**
+     * Reads the listeners from "chat.listen".
+     *
+     * @return the listeners, at least one
+     * @throws IllegalArgumentException if the property is not valid
+     */
+    static List<Listener> configured() {
+        String property = System.getProperty("chat.listen");
+        if (property == null) {
+            return Arrays.asList(Listener.on(Server.PORT));
+        }
+        ArrayList<Listener> listeners = new ArrayList<>();
+        for (String entry : property.split(",")) {
+            entry = entry.trim();
+            int slash = entry.indexOf('/');
+            int acceptors = slash < 0 ? Listener.ACCEPTORS : Integer.parseInt(entry.substring(slash + 1));
+            listeners.add(new Listener(Listener.address(slash < 0 ? entry : entry.substring(0, slash), null), acceptors));
+        }
+        return listeners;
+    }
+
+    /**
+     * Parses an address written as [HOST:]PORT; IPv6 hosts go in square
+     * brackets.
+     *
+     * @param text the address
+     * @param host the host if the text doesn't have one (null for every interface)
+     * @return the address, resolved
+     * @throws IllegalArgumentException if the address is not valid
+     */
+    static InetSocketAddress address(String text, String host) {
+        int colon = text.lastIndexOf(':');
+        if (colon >= 0 && text.indexOf(']', colon) < 0) {   //i due punti non sono di un indirizzo IPv6
+            host = text.substring(0, colon);
+            text = text.substring(colon + 1);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+        }
+        int port = Integer.parseInt(text);
+        return host == null || host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Binds a single blocking socket, whatever the acceptors.
+     *
+     * @return the socket
+     * @throws IOException if it can't be bound
+     */
+    ServerSocket socket() throws IOException {
+        return this.socket(false);
+    }
+
+    /**
+     * Binds a blocking socket for every acceptor.
+     *
+     * @return the sockets, the same one repeated if SO_REUSEPORT is not available
+     * @throws IOException if they can't be bound (the ones already bound are closed)
+     */
+    ServerSocket[] sockets() throws IOException {
+        ServerSocket[] sockets = new ServerSocket[this.acceptors];
+        try {
+            sockets[0] = this.socket(this.acceptors > 1);
+            boolean shared = this.acceptors > 1 && !Listener.reusable(sockets[0]);
+            for (int i = 1; i < sockets.length; i++) {
+                sockets[i] = shared ? sockets[0] : this.socket(true);
+            }
+        } catch (IOException ioe) {
+            for (ServerSocket ssock : sockets) {
+                if (ssock != null) {
+                    ssock.close();
+                }
+            }
+            throw ioe;
+        }
+        return sockets;
+    }
+
+    /**
+     * Binds a non-blocking channel for every acceptor.
+     *
+     * @return the channels, the same one repeated if SO_REUSEPORT is not available
+     * @throws IOException if they can't be bound (the ones already bound are closed)
+     */
+    ServerSocketChannel[] channels() throws IOException {
+        ServerSocketChannel[] channels = new ServerSocketChannel[this.acceptors];
+        try {
+            channels[0] = this.channel(this.acceptors > 1);
+            boolean shared = this.acceptors > 1 && !Listener.reusable(channels[0]);
+            for (int i = 1; i < channels.length; i++) {
+                channels[i] = shared ? channels[0] : this.channel(true);
+            }
+        } catch (IOException ioe) {
+            for (ServerSocketChannel ssock : channels) {
+                if (ssock != null) {
+                    ssock.close();
+                }
+            }
+            throw ioe;
+        }
+        return channels;
+    }
+
+    /**
+     * Applies the configured buffers to an accepted connection.
+     *
+     * @param sock the connection
+     * @throws IOException if the buffers can't be set
+     */
+    static void accepted(Socket sock) throws IOException {
+        if (Listener.SEND_BUFFER > 0) {
+            sock.setSendBufferSize(Listener.SEND_BUFFER);   //quello di ricezione viene dal socket in ascolto
+        }
+    }
+
+    /**
+     * Same as above, for the connections of a NioServer.
+     *
+     * @param sock the connection
+     * @throws IOException if the buffers can't be set
+     */
+    static void accepted(SocketChannel sock) throws IOException {
+        if (Listener.SEND_BUFFER > 0) {
+            sock.setOption(StandardSocketOptions.SO_SNDBUF, Listener.SEND_BUFFER);
+        }
+    }
+
+    //socket bloccante, con SO_REUSEPORT se richiesto e disponibile
+    private ServerSocket socket(boolean reuse) throws IOException {
+        ServerSocket ssock = new ServerSocket();
+        try {
+            if (Listener.RECEIVE_BUFFER > 0) {  //prima del bind, per la window scaling
+                ssock.setReceiveBufferSize(Listener.RECEIVE_BUFFER);
+            }
+            if (reuse && Listener.reusable(ssock)) {
+                Listener.invoke(ssock, "setOption", Listener.REUSE_PORT, true);
+            }
+            ssock.bind(this.address, Listener.BACKLOG);
+        } catch (IOException ioe) {
+            ssock.close();
+            throw ioe;
+        }
+        return ssock;
+    }
+
+    //canale non bloccante, con SO_REUSEPORT se richiesto e disponibile
+    private ServerSocketChannel channel(boolean reuse) throws IOException {
+        ServerSocketChannel ssock = ServerSocketChannel.open();
+        try {
+            if (Listener.RECEIVE_BUFFER > 0) {  //prima del bind, per la window scaling
+                ssock.setOption(StandardSocketOptions.SO_RCVBUF, Listener.RECEIVE_BUFFER);
+            }
+            if (reuse && Listener.reusable(ssock)) {
+                ssock.setOption(Listener.REUSE_PORT, true);
+            }
+            ssock.bind(this.address, Listener.BACKLOG);
+            ssock.configureBlocking(false);
+        } catch (IOException ioe) {
+            ssock.close();
+            throw ioe;
+        }
+        return ssock;
+    }
+
+    //SO_REUSEPORT, se il JDK lo conosce (Java 9+)
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    //se un canale supporta SO_REUSEPORT
+    private static boolean reusable(ServerSocketChannel ssock) {
+        return Listener.REUSE_PORT != null && ssock.supportedOptions().contains(Listener.REUSE_PORT);
+    }
+
+    //se un socket bloccante supporta SO_REUSEPORT (ServerSocket ha le opzioni da Java 9)
+    private static boolean reusable(ServerSocket ssock) throws IOException {
+        if (Listener.REUSE_PORT == null) {
+            return false;
+        }
+        Object options = Listener.invoke(ssock, "supportedOptions");
+        return options instanceof Set && ((Set<?>) options).contains(Listener.REUSE_PORT);
+    }
+
+    //chiama un metodo di ServerSocket che potrebbe non esistere (null se non esiste)
+    private static Object invoke(ServerSocket ssock, String name, Object... arguments) throws IOException {
+        try {
+            Class<?>[] types = arguments.length == 0 ? new Class<?>[0] : new Class<?>[]{SocketOption.class, Object.class};
+            Method method = ServerSocket.class.getMethod(name, types);
+            return method.invoke(ssock, arguments);
+        } catch (InvocationTargetException ite) {
+            if (ite.getCause() instanceof IOException) {
+                throw (IOException) ite.getCause();
+            }
+            return null;
+        } catch (ReflectiveOperationException roe) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.address.getHostString() + ":" + this.address.getPort()
+                + (this.acceptors > 1 ? "/" + this.acceptors : "");
+    }
+
+}
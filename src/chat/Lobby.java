@@ -0,0 +1,144 @@
+package chat;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class connects every peer of a multi-client server, keeping its
+ * rooms. Everybody starts in the room called DEFAULT, and moves with
+ * /join and /leave; rooms are created by the first member that joins them
+ * and forgotten when the last one leaves (DEFAULT is always there).
+ * A member that can't keep up with a room has its messages dropped or is
+ * disconnected, as chosen with the "chat.slow" system property ("drop",
+ * the default, or "disconnect"): either way, nobody else waits for it.
+ * Who is online, in any room, is told to everybody by the Presence.
+ *
+ * @author Amedeo
+ */
+final class Lobby {
+
+    /**
+     * The room everybody starts from
+     */
+    static final String DEFAULT = "lobby";
+
+    /**
+     * Somebody who can receive relayed lines.
+     */
+    interface Member {
+
+        /**
+         * Delivers a message written by another member, or an update about
+         * presence. It may be called by any thread and must not block.
+         *
+         * @param message the message
+         * @return false if the member's queue is full and the message was not taken
+         */
+        boolean deliver(Room.Message message);
+
+        /**
+         * Drops the member's connection. It may be called by any thread.
+         */
+        void disconnect();
+    }
+
+    private final ConcurrentHashMap<String, Room> rooms;    //stanze per nome
+    private final CipherEngine shared;  //cifratura dei frame condivisi (null se ogni connessione cifra da se')
+    private final boolean disconnect;   //politica per chi e' troppo lento
+    private final Presence presence;    //chi e' online, e con quale status
+
+    Lobby() {
+        this.rooms = new ConcurrentHashMap<>();
+        this.rooms.put(Lobby.DEFAULT, new Room(Lobby.DEFAULT, this));
+
+        CipherEngine engine = CipherEngine.configured(true);
+        this.shared = engine.shareable() ? engine : null;
+
+        String policy = System.getProperty("chat.slow", "drop");
+        if (!policy.equals("drop") && !policy.equals("disconnect")) {
+            throw new IllegalArgumentException("Unknown slow consumer policy " + policy);
+        }
+        this.disconnect = policy.equals("disconnect");
+        this.presence = new Presence(this);
+    }
+
+    /**
+     * Puts a new member in the DEFAULT room.
+     *
+     * @param member the member
+     * @return the room
+     */
+    Room join(Member member) {
+        return this.join(Lobby.DEFAULT, member);
+    }
+
+    /**
+     * Puts a member in a room, creating it if needed.
+     *
+     * @param name the name of the room
+     * @param member the member
+     * @return the room
+     */
+    Room join(String name, Member member) {
+        //sul lock del nodo della mappa: nessuno puo' eliminare la stanza nel frattempo
+        return this.rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key, this);
+            }
+            room.add(member);
+            return room;
+        });
+    }
+
+    /**
+     * Removes a member from a room, forgetting the room if it's left empty.
+     *
+     * @param room the room
+     * @param member the member
+     */
+    void leave(Room room, Member member) {
+        this.rooms.computeIfPresent(room.name(), (key, current) -> {
+            current.remove(member);
+            return current.size() > 0 || key.equals(Lobby.DEFAULT) ? current : null;
+        });
+    }
+
+    /**
+     * @return the names of the rooms, with how many members each
+     */
+    String list() {
+        StringBuilder list = new StringBuilder("Rooms:");
+        for (Room room : this.rooms.values()) {
+            list.append('\n').append(room.name()).append(" (").append(room.size()).append(')');
+        }
+        return list.toString();
+    }
+
+    /**
+     * @return who is online in every room, with its status
+     */
+    Presence presence() {
+        return this.presence;
+    }
+
+    /**
+     * @return the cipher that can encrypt a frame once for every member, or null
+     */
+    CipherEngine shared() {
+        return this.shared;
+    }
+
+    /**
+     * Applies the slow consumer policy to a member whose queue is full.
+     *
+     * @param member the member
+     */
+    void slow(Member member) {
+        if (this.disconnect) {
+            Metrics.SLOW_DISCONNECTED.increment();
+            member.disconnect();
+        } else {
+            Metrics.SLOW_DROPPED.increment();
+        }
+    }
+
+}
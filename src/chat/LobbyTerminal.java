@@ -0,0 +1,129 @@
+package chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.regex.Pattern;
+
+/**
+ * This class is the Terminal of a Chat run by a multi-client server:
+ * there's no user at the keyboard, so what the peer says is relayed to its
+ * room and what the room says is sent to the peer. Changes of name and
+ * status go to the Presence, which sends its updates the same way.
+ *
+ * @author Amedeo
+ */
+final class LobbyTerminal implements Terminal, Lobby.Member {
+
+    private static final int MAX_MAILBOX = 1024;    //righe in attesa conservate al massimo
+
+    private static final Pattern COLOR = Pattern.compile("\u001B\\[[0-9;]*m");  //sequenze di colorazione
+
+    private static final Room.Message CLOSED = new Room.Message(Frame.TEXT, "(closed)", null);  //messaggio fittizio di chiusura
+
+    private final Lobby lobby;
+    private volatile Room room; //stanza attuale
+    private final ArrayBlockingQueue<Room.Message> mailbox; //messaggi altrui in attesa di essere inviati
+    private boolean control;    //se l'ultimo messaggio letto e' un frame CONTROL, settato a true (solo per la Chat)
+    private String name;    //nome remoto (solo per la Chat)
+
+    LobbyTerminal(Lobby lobby) {
+        this.lobby = lobby;
+        this.mailbox = new ArrayBlockingQueue<>(LobbyTerminal.MAX_MAILBOX);
+        this.name = "???";
+        this.room = this.lobby.join(this);
+        this.lobby.presence().join(this, this.name);
+    }
+
+    @Override
+    public String readLine(String prompt) {
+        try {
+            Room.Message message = this.mailbox.take(); //attendo che qualcuno dica qualcosa
+            if (message == LobbyTerminal.CLOSED) {
+                return null;
+            }
+            this.control = message.type() == Frame.CONTROL;
+            return message.line();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public boolean control() {
+        return this.control;
+    }
+
+    @Override
+    public boolean shared() {
+        return true;
+    }
+
+    @Override
+    public void changed(String notice, String name, Status status) {
+        if (!name.equals(this.name)) {  //un nuovo nome lo annuncio alla stanza, uno status no
+            this.name = name;
+            this.show(notice);
+        }
+        this.lobby.presence().update(this, name, status);
+    }
+
+    @Override
+    public void show(String line) {
+        //i colori servono solo al terminale locale
+        this.room.broadcast(this, COLOR.matcher(line).replaceAll(""));
+    }
+
+    @Override
+    public void command(String line) {
+        if (line.startsWith("/join")) {
+            String name = line.length() > 5 ? line.substring(6).trim() : "";
+            if (name.isEmpty()) {
+                this.reply("~*Sytax Error*~");
+            } else {
+                this.move(name);
+            }
+
+        } else if (line.equals("/leave")) {
+            this.move(Lobby.DEFAULT);
+
+        } else if (line.equals("/rooms")) {
+            this.reply(this.lobby.list());
+        }
+    }
+
+    //entro nella nuova stanza prima di lasciare la vecchia: nessun messaggio va perso nel mezzo
+    private void move(String name) {
+        Room old = this.room;
+        if (!old.name().equals(name)) {
+            this.room = this.lobby.join(name, this);
+            this.lobby.leave(old, this);
+        }
+        this.reply("You are in " + name);
+    }
+
+    //risposta del server, solo per questo peer
+    private void reply(String line) {
+        this.mailbox.offer(new Room.Message(Frame.TEXT, line, null));
+    }
+
+    @Override
+    public boolean deliver(Room.Message message) {
+        return this.mailbox.offer(message);
+    }
+
+    @Override
+    public void disconnect() {
+        this.close();   //la Chat, svegliata, chiude la connessione
+    }
+
+    /**
+     * Leaves the room and wakes up the Chat waiting for a line.
+     */
+    void close() {
+        this.lobby.leave(this.room, this);
+        this.lobby.presence().leave(this);
+        this.mailbox.clear();
+        this.mailbox.offer(LobbyTerminal.CLOSED);
+    }
+
+}
@@ -0,0 +1,206 @@
+package chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class collects the runtime statistics of the whole process: how long
+ * frames take to be received and sent, how long every command takes, how
+ * fast files move and how long connections take to be established.
+ * Everything is published as the MBean "chat:type=Metrics" and shown by
+ * the /stats command.
+ * Recording never locks nor allocates, so it can be done on the hot path.
+ *
+ * @author Amedeo
+ */
+final class Metrics implements MetricsMBean {
+
+    static final LatencyHistogram RECEIVE = new LatencyHistogram("receive");    //decodifica e decifratura di un frame
+    static final LatencyHistogram SEND = new LatencyHistogram("send");  //smistamento e accodamento di un messaggio
+    static final LatencyHistogram WRITE = new LatencyHistogram("write");    //cifratura e scrittura di un frame
+
+    static final LatencyHistogram TEXT = new LatencyHistogram("menu text");
+    static final LatencyHistogram STATUS = new LatencyHistogram("menu status");
+    static final LatencyHistogram OTHER = new LatencyHistogram("menu other");   //frame o comandi non riconosciuti
+
+    //comandi ricevuti, cercati per prefisso
+    private static final String[] COMMANDS = {"/help", "/close", "/name", "/file", "/stats", "/join", "/leave", "/rooms"};
+    private static final LatencyHistogram[] COMMAND = new LatencyHistogram[COMMANDS.length];
+
+    static final LatencyHistogram FILE_SEND = new LatencyHistogram("file send");
+    static final LatencyHistogram FILE_RECEIVE = new LatencyHistogram("file receive");
+    static final LongAdder FILE_BYTES_SENT = new LongAdder();
+    static final LongAdder FILE_BYTES_RECEIVED = new LongAdder();
+
+    static final LongAdder COMPRESSION_SAVED = new LongAdder();    //byte risparmiati comprimendo
+    static final LongAdder INCOMPRESSIBLE = new LongAdder();   //payload lasciati com'erano
+
+    static final LatencyHistogram FANOUT = new LatencyHistogram("room fan-out");   //consegna di un messaggio a tutta la stanza
+    static final LongAdder SLOW_DROPPED = new LongAdder();  //messaggi scartati per chi e' troppo lento
+    static final LongAdder SLOW_DISCONNECTED = new LongAdder(); //membri scollegati perche' troppo lenti
+
+    static final LongAdder BUFFERS_LEASED = new LongAdder();   //buffer prestati da BufferPool
+    static final LongAdder BUFFERS_RELEASED = new LongAdder(); //buffer restituiti
+    static final LongAdder BUFFERS_ALLOCATED = new LongAdder();    //buffer allocati perche' il pool era vuoto
+    static final LongAdder BUFFERS_LEAKED = new LongAdder();   //buffer raccolti senza essere restituiti
+
+    static final LongAdder PINGS = new LongAdder();    //PING inviati a chi taceva
+    static final LongAdder TIMED_OUT = new LongAdder();    //connessioni chiuse perche' mute
+
+    static final LatencyHistogram ACCEPT = new LatencyHistogram("accept");
+    static final LatencyHistogram CONNECT = new LatencyHistogram("connect");
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            COMMAND[i] = new LatencyHistogram("menu " + COMMANDS[i]);
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(Metrics.INSTANCE, new ObjectName("chat:type=Metrics"));
+        } catch (JMException jme) {
+            System.err.println("Couldn't register metrics");
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Finds the histogram of a received command, without allocating.
+     *
+     * @param line the command
+     * @return the histogram of its branch
+     */
+    static LatencyHistogram command(String line) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (line.startsWith(COMMANDS[i])) {
+                return COMMAND[i];
+            }
+        }
+        return Metrics.OTHER;
+    }
+
+    /**
+     * @return every histogram and counter, one per line
+     */
+    static String summary() {
+        StringBuilder summary = new StringBuilder("Statistics:");
+        for (LatencyHistogram histogram : Metrics.histograms()) {
+            if (histogram.count() > 0) {    //solo quello che e' successo davvero
+                summary.append('\n').append(histogram);
+            }
+        }
+        if (FILE_SEND.count() > 0) {
+            summary.append("\nfile sent      ").append(FileTransfer.report(FILE_BYTES_SENT.sum(), FILE_SEND.total()));
+        }
+        if (FILE_RECEIVE.count() > 0) {
+            summary.append("\nfile received  ").append(FileTransfer.report(FILE_BYTES_RECEIVED.sum(), FILE_RECEIVE.total()));
+        }
+        if (COMPRESSION_SAVED.sum() > 0 || INCOMPRESSIBLE.sum() > 0) {
+            summary.append("\ncompression    ").append(COMPRESSION_SAVED.sum()).append(" bytes saved, ")
+                    .append(INCOMPRESSIBLE.sum()).append(" payloads incompressible");
+        }
+        if (SLOW_DROPPED.sum() > 0 || SLOW_DISCONNECTED.sum() > 0) {
+            summary.append("\nslow members   ").append(SLOW_DROPPED.sum()).append(" messages dropped, ")
+                    .append(SLOW_DISCONNECTED.sum()).append(" members disconnected");
+        }
+        if (PINGS.sum() > 0 || TIMED_OUT.sum() > 0) {
+            summary.append("\nheartbeats     ").append(PINGS.sum()).append(" pings sent, ")
+                    .append(TIMED_OUT.sum()).append(" connections timed out");
+        }
+        if (BUFFERS_LEASED.sum() > 0) {
+            summary.append("\nbuffer pool    ").append(BUFFERS_LEASED.sum()).append(" leased, ")
+                    .append(BUFFERS_ALLOCATED.sum()).append(" allocated, ")
+                    .append(BUFFERS_LEASED.sum() - BUFFERS_RELEASED.sum()).append(" outstanding, ")
+                    .append(BUFFERS_LEAKED.sum()).append(" leaked");
+        }
+        return summary.toString();
+    }
+
+    private static LatencyHistogram[] histograms() {
+        LatencyHistogram[] fixed = {RECEIVE, SEND, WRITE, TEXT, STATUS};
+        LatencyHistogram[] tail = {OTHER, FILE_SEND, FILE_RECEIVE, FANOUT, ACCEPT, CONNECT};
+        LatencyHistogram[] all = new LatencyHistogram[fixed.length + COMMAND.length + tail.length];
+        System.arraycopy(fixed, 0, all, 0, fixed.length);
+        System.arraycopy(COMMAND, 0, all, fixed.length, COMMAND.length);
+        System.arraycopy(tail, 0, all, fixed.length + COMMAND.length, tail.length);
+        return all;
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return RECEIVE.count();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return WRITE.count();
+    }
+
+    @Override
+    public long getFileBytesSent() {
+        return FILE_BYTES_SENT.sum();
+    }
+
+    @Override
+    public long getFileBytesReceived() {
+        return FILE_BYTES_RECEIVED.sum();
+    }
+
+    @Override
+    public long getConnections() {
+        return ACCEPT.count() + CONNECT.count();
+    }
+
+    @Override
+    public long getSlowDropped() {
+        return SLOW_DROPPED.sum();
+    }
+
+    @Override
+    public long getBuffersOutstanding() {
+        return BUFFERS_LEASED.sum() - BUFFERS_RELEASED.sum();
+    }
+
+    @Override
+    public long getBuffersLeaked() {
+        return BUFFERS_LEAKED.sum();
+    }
+
+    @Override
+    public double getReceiveP99Micros() {
+        return RECEIVE.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getSendP99Micros() {
+        return SEND.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public String getSummary() {
+        return Metrics.summary();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : Metrics.histograms()) {
+            histogram.reset();
+        }
+        FILE_BYTES_SENT.reset();
+        FILE_BYTES_RECEIVED.reset();
+        COMPRESSION_SAVED.reset();
+        INCOMPRESSIBLE.reset();
+        SLOW_DROPPED.reset();
+        SLOW_DISCONNECTED.reset();
+        BUFFERS_ALLOCATED.reset();  //prestati e restituiti no: la differenza e' quanti sono fuori
+        BUFFERS_LEAKED.reset();
+        PINGS.reset();
+        TIMED_OUT.reset();
+    }
+
+}
@@ -0,0 +1,70 @@
+package chat;
+
+/**
+ * Management interface of the chat Metrics, published as "chat:type=Metrics".
+ *
+ * @author Amedeo
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return the number of frames received
+     */
+    long getFramesReceived();
+
+    /**
+     * @return the number of messages sent
+     */
+    long getMessagesSent();
+
+    /**
+     * @return the number of file bytes sent
+     */
+    long getFileBytesSent();
+
+    /**
+     * @return the number of file bytes received
+     */
+    long getFileBytesReceived();
+
+    /**
+     * @return the number of connections accepted or established
+     */
+    long getConnections();
+
+    /**
+     * @return the number of room messages dropped because a member was too slow
+     */
+    long getSlowDropped();
+
+    /**
+     * @return the number of pooled buffers leased and not given back yet
+     */
+    long getBuffersOutstanding();
+
+    /**
+     * @return the number of pooled buffers collected without being given back
+     */
+    long getBuffersLeaked();
+
+    /**
+     * @return the 99th percentile of the time spent handling a received frame, in microseconds
+     */
+    double getReceiveP99Micros();
+
+    /**
+     * @return the 99th percentile of the time spent sending a message, in microseconds
+     */
+    double getSendP99Micros();
+
+    /**
+     * @return every histogram and counter, one per line
+     */
+    String getSummary();
+
+    /**
+     * Clears every histogram and counter, except the buffers leased and
+     * given back: their difference is the number of buffers still out.
+     */
+    void reset();
+}
@@ -0,0 +1,170 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class lets many clients chat through the same server process.
+ * Connections are non-blocking and spread over a small, fixed number of
+ * event loops; every connection is served by its own NioSession, which
+ * its client can take back for a while if the connection drops.
+ * The server can listen on several addresses (see Listener), and the
+ * acceptors of every listener are spread over the loops as well.
+ *
+ * @author Amedeo
+ */
+final class NioServer {
+
+    private static final long MIN_PAUSE = 10;   //attesa dopo un errore di accept, in millisecondi
+    private static final long MAX_PAUSE = 1000; //raddoppia ad ogni errore consecutivo, fino a qui
+
+    private final List<Listener> listeners; //dove ascoltare
+    private final List<Acceptor> acceptors; //un socket in ascolto ciascuno
+    private final EventLoop[] loops;    //cicli tra cui distribuire le connessioni
+    private final Lobby lobby;  //partecipanti alla chat
+    private final Sessions sessions;    //sessioni cadute, in attesa dei loro client
+
+    //accetta le connessioni di un socket in ascolto, sul thread di un ciclo
+    private final class Acceptor implements EventLoop.Handler {
+
+        private final ServerSocketChannel ssock;
+        private final EventLoop loop;   //ciclo che accetta
+        private int next;   //prossimo ciclo a cui assegnare una connessione
+        private long pause; //attesa dopo il prossimo errore di accept
+
+        private Acceptor(ServerSocketChannel ssock, int index) {
+            this.ssock = ssock;
+            this.loop = NioServer.this.loops[index];
+            this.next = index;  //ogni acceptor parte dal suo ciclo
+            this.pause = NioServer.MIN_PAUSE;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel sock;
+            long start = System.nanoTime();
+            while ((sock = this.accept(key)) != null) { //accetto tutte le connessioni in attesa
+                this.pause = NioServer.MIN_PAUSE;
+                EventLoop loop = NioServer.this.loops[this.next];
+                this.next = (this.next + 1) % NioServer.this.loops.length;
+
+                NioSession session = new NioSession(loop, sock, NioServer.this.lobby, NioServer.this.sessions);
+                loop.execute(() -> {
+                    try {
+                        session.open();
+                        Metrics.ACCEPT.since(start);    //connessione pronta a servire
+                    } catch (IOException ioe) {
+                        session.close();
+                    }
+                });
+            }
+        }
+
+        //accetta una connessione; dopo un errore smette di accettare per un po', invece di chiudere il socket
+        private SocketChannel accept(SelectionKey key) throws IOException {
+            try {
+                return this.ssock.accept();
+            } catch (ClosedChannelException cce) {  //nessuno accettera' piu' da qui
+                throw cce;
+            } catch (IOException ioe) {
+                if (!this.ssock.isOpen()) {
+                    throw ioe;
+                }
+                System.err.println("Couldn't accept connection");
+                key.interestOps(0); //un errore che persiste (troppi file aperti) non deve diventare un ciclo a vuoto
+                this.loop.schedule(this.pause, TimeUnit.MILLISECONDS, () -> {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                });
+                this.pause = Math.min(2 * this.pause, NioServer.MAX_PAUSE);
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.ssock.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close listening socket");
+            }
+        }
+    }
+
+    /**
+     * Binds the listening sockets; nothing is served until start() is called.
+     *
+     * @param listeners where to listen
+     * @param threads the number of event loops
+     * @throws IOException if a socket can't be bound (the ones already bound are closed)
+     */
+    NioServer(List<Listener> listeners, int threads) throws IOException {
+        this.listeners = listeners;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            this.loops[i] = new EventLoop("chat-loop-" + i);
+        }
+        this.lobby = new Lobby();
+        this.sessions = new Sessions();
+
+        this.acceptors = new ArrayList<>();
+        try {
+            for (Listener listener : listeners) {
+                for (ServerSocketChannel ssock : listener.channels()) {
+                    this.acceptors.add(new Acceptor(ssock, this.acceptors.size() % threads));
+                }
+            }
+        } catch (IOException ioe) {
+            this.close();
+            throw ioe;
+        }
+    }
+
+    void start() {
+        for (EventLoop loop : this.loops) {
+            loop.start();
+        }
+        for (Acceptor acceptor : this.acceptors) {
+            acceptor.loop.execute(() -> {
+                try {
+                    acceptor.loop.register(acceptor.ssock, SelectionKey.OP_ACCEPT, acceptor);
+                } catch (IOException ioe) {
+                    System.err.println("Couldn't create listening socket");
+                }
+            });
+        }
+        System.out.println("Listening on " + this.listeners + " with " + this.loops.length + " event loops...");
+    }
+
+    //chiude i socket in ascolto
+    private void close() {
+        for (Acceptor acceptor : this.acceptors) {
+            acceptor.close();
+        }
+    }
+
+    /**
+     * Stops every loop, closing all the connections, and waits for them.
+     */
+    void shutdown() {
+        for (EventLoop loop : this.loops) {
+            loop.shutdown();
+        }
+        for (EventLoop loop : this.loops) {
+            try {
+                loop.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.close();
+    }
+
+}
@@ -0,0 +1,706 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is the server side of one connection of a NioServer.
+ * It speaks the same protocol as Chat, but as a state machine driven by
+ * its EventLoop: it never blocks, and it only keeps the bytes that
+ * did not make a whole frame yet.
+ * Whatever the peer says is relayed to the other members of its room,
+ * and whatever they say is sent to the peer right away: the messages of
+ * the room are queued without locks, up to MAX_OUTPUT buffers, and their
+ * frames are shared with the other members whenever the cipher allows it.
+ * If the client asked for a session token, a dropped connection doesn't
+ * end the session: it stays in its room, remembering the last messages,
+ * until the client comes back with the token or the grace period is over
+ * (see Sessions).
+ *
+ * @author Amedeo
+ */
+final class NioSession implements EventLoop.Handler, Lobby.Member {
+
+    private static final int MAX_OUTPUT = 1024; //buffer in attesa di scrittura al massimo
+    private static final int GATHER = 64;   //buffer scritti con una sola chiamata al massimo
+    private static final int SEED_TIMEOUT = 30; //secondi di attesa del seme del client, se il cifrario lo chiede
+
+    private static final CommandRegistry<NioSession> COMMANDS = NioSession.commands();
+
+    private final EventLoop loop;   //ciclo che serve la connessione
+    private SocketChannel channel;  //connessione non bloccante
+    private final Lobby lobby;  //altri partecipanti
+    private final Sessions sessions;    //sessioni cadute, in attesa dei loro client
+    private Room room;  //stanza attuale
+    private SelectionKey key;   //chiave di registrazione sul selettore
+
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder;
+    private CipherEngine cipher;    //cifratura dei payload
+    private Compression compression;    //compressione dei payload (null se disabilitata)
+    private final Frame frame;  //ultimo frame ricevuto
+    private final Arguments arguments;  //ultimo comando ricevuto, diviso
+    private ByteBuffer input;   //byte letti e non ancora consumati
+
+    private final ArrayDeque<ByteBuffer> output;    //byte in attesa di essere scritti
+    private final ByteBuffer[] gather;  //i primi buffer di output, per la scrittura
+    private final ConcurrentLinkedQueue<Room.Message> inbox;    //messaggi della stanza, non ancora in output
+    private final AtomicInteger queued; //buffer in inbox e in output
+    private final AtomicBoolean draining;   //se lo svuotamento di inbox e' gia' in programma, settato a true
+    private final Heartbeat heartbeat;  //controlla che il client ci sia ancora
+    private volatile boolean evicted;   //se la Lobby ha chiesto di scollegarla, settato a true
+
+    private String name;    //nome remoto
+    private Status status;  //status remoto
+
+    private final Downloads downloads;  //file in ricezione, a blocchi tra i messaggi
+    private final Lines lines;  //righe del messaggio in arrivo, inoltrate senza attendere il resto
+
+    private String token;   //token per riprendere la sessione (null se il client non l'ha chiesto)
+    private String[] replay;    //ultimi frame TEXT inviati, per chi riprende la sessione
+    private boolean[] continued;    //quali di questi hanno il seguito nel frame successivo (MORE)
+    private long sent;  //frame TEXT inviati da quando il client ha il token
+    private long received;  //frame TEXT ricevuti dal client
+    private long skip;  //frame TEXT che il client ripete dopo la ripresa, ma erano gia' arrivati
+    private TimerWheel.Timeout expiry;  //fine dell'attesa del client, mentre la sessione e' parcheggiata
+
+    private boolean over;   //se la connessione e' terminata (la sessione puo' aspettarne un'altra), settato a true
+    private boolean ended;  //se la sessione e' terminata, settato a true
+
+    NioSession(EventLoop loop, SocketChannel channel, Lobby lobby, Sessions sessions) {
+        this.loop = loop;
+        this.channel = channel;
+        this.lobby = lobby;
+        this.sessions = sessions;
+
+        this.decoder = new FrameDecoder(Frame.MAX_PAYLOAD);
+        this.encoder = new FrameEncoder();
+        this.cipher = CipherEngine.configured(true);
+        this.compression = Compression.configured();
+        this.frame = new Frame();
+        this.arguments = new Arguments();
+        this.input = BufferPool.lease(Frame.HEADER + FileTransfer.CHUNK);  //diretto: il socket ci legge senza copie
+
+        this.output = new ArrayDeque<>();
+        this.gather = new ByteBuffer[NioSession.GATHER];
+        this.inbox = new ConcurrentLinkedQueue<>();
+        this.queued = new AtomicInteger();
+        this.draining = new AtomicBoolean();
+        this.heartbeat = new Heartbeat(loop.timers(), () -> {
+            this.enqueue(Frame.CONTROL, Heartbeat.PING);
+            this.flush();
+        }, this::close);
+
+        this.name = "???";
+        this.status = Status.AVAILABLE;
+        this.lines = new Lines();
+        this.downloads = Downloads.uploads(null, null, this::control, this::received); //niente stream aggiuntivi: un thread per file
+
+        this.over = false;
+        this.ended = false;
+    }
+
+    /**
+     * Registers the session on its loop and sends the welcome message,
+     * after the SEED frame. If the cipher needs a seed, the rest waits for
+     * the seed of the client: nothing can be ciphered before.
+     * It must be called on the loop thread.
+     *
+     * @throws IOException if the channel can't be registered
+     */
+    void open() throws IOException {
+        this.channel.configureBlocking(false);
+        this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);    //i frame sono gia' raggruppati da flush()
+        Listener.accepted(this.channel);
+        this.key = this.loop.register(this.channel, SelectionKey.OP_READ, this);
+
+        ByteBuffer seed = this.cipher.seed();
+        ByteBuffer data = BufferPool.lease(Frame.HEADER + (seed != null ? seed.remaining() : 0));
+        int start = FrameEncoder.begin(data, Frame.SEED, (byte) 0);
+        FrameEncoder.end(seed != null ? data.put(seed) : data, start);  //ne' compresso ne' cifrato
+        data.flip();
+        this.queued.incrementAndGet();
+        this.output.offer(data);
+        if (seed == null) { //si puo' gia' cifrare
+            this.welcome();
+            return;
+        }
+        this.flush();
+        this.loop.schedule(NioSession.SEED_TIMEOUT, TimeUnit.SECONDS, () -> {
+            if (!this.cipher.ready()) { //chi non manda il seme non potra' mai leggere ne' scrivere
+                this.close();
+            }
+        });
+    }
+
+    //entra nella lobby e saluta, ora che si puo' cifrare
+    private void welcome() {
+        this.room = this.lobby.join(this);
+        this.lobby.presence().join(this, this.name);
+
+        //come Chat: annuncio la compressione, e il server saluta per primo
+        if (this.compression != null) {
+            this.enqueue(Frame.CONTROL, Compression.HELLO);
+        }
+        this.enqueue(Frame.TEXT, "Welcome! What would you like to do?\n" + String.join("\n", Chat.HELP));
+        this.flush();
+        this.heartbeat.start();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            this.read();
+        }
+        if (!over && key.isValid() && key.isWritable()) {
+            this.flush();
+        }
+    }
+
+    @Override
+    public boolean deliver(Room.Message message) {
+        if (this.evicted) { //sta per essere chiusa: scarto senza avvisare di nuovo
+            return true;
+        }
+        if (this.queued.incrementAndGet() > NioSession.MAX_OUTPUT) {    //peer troppo lento: decide la Lobby
+            this.queued.decrementAndGet();
+            return false;
+        }
+        this.inbox.offer(message);
+        if (this.draining.compareAndSet(false, true)) { //un solo task per tanti messaggi
+            this.loop.execute(this::drain);
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        this.evicted = true;
+        this.loop.execute(this::end);
+    }
+
+    //sposta i messaggi della stanza (e della presenza) in output, sul thread del ciclo
+    private void drain() {
+        this.draining.set(false);
+        Room.Message message;
+        while (!ended && (message = this.inbox.poll()) != null) {
+            if (message.type() == Frame.TEXT) {
+                this.record(message.line());
+            }
+            if (over) { //connessione caduta: il client ricevera' i TEXT riprendendo la sessione, e la presenza da capo
+                this.queued.decrementAndGet();
+                continue;
+            }
+            ByteBuffer data = message.frame();  //lo stesso frame per tutta la stanza...
+            if (data == null) {
+                data = this.encode(message.type(), message.line()); //...o cifrato solo per questa connessione
+                if (data == null) {
+                    return;
+                }
+            }
+            this.output.offer(data);
+        }
+        if (!over) {
+            this.flush();
+        }
+    }
+
+    /**
+     * Drops the connection. If the client has a token the session waits
+     * for it to come back, otherwise it ends.
+     */
+    @Override
+    public void close() {
+        if (over) {
+            return;
+        }
+        if (this.token != null) {
+            this.park();
+        } else {
+            this.end();
+        }
+    }
+
+    //la connessione e' caduta: la sessione resta nella stanza, e aspetta il client per GRACE secondi
+    private void park() {
+        this.drop();
+        this.sessions.park(this.token, this);
+        this.expiry = this.loop.schedule(Sessions.GRACE, TimeUnit.SECONDS, () -> {
+            if (this.sessions.expire(this.token, this)) {   //nessuno l'ha ripresa
+                this.end();
+            }
+        });
+    }
+
+    //chiude la connessione, tenendo la sessione
+    private void drop() {
+        this.over = true;
+        this.heartbeat.stop();
+        this.key.cancel();
+        NioSession.close(this.channel);
+        this.closeFile();
+        this.queued.addAndGet(-this.output.size()); //quanto non e' stato scritto e' in replay
+        this.release(); //la nuova connessione portera' i suoi buffer
+    }
+
+    //termina la sessione
+    private void end() {
+        if (ended) {
+            return;
+        }
+        this.ended = true;
+        this.over = true;
+        this.heartbeat.stop();
+        if (this.token != null) {
+            this.sessions.ended(this.token, this);
+        }
+        if (this.room != null) {    //la registrazione puo' essere fallita prima
+            this.lobby.leave(this.room, this);
+            this.lobby.presence().leave(this);
+        }
+
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        NioSession.close(this.channel);
+        this.closeFile();
+        this.release();
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close connection socket");
+        }
+    }
+
+    //restituisce al pool i buffer della connessione
+    private void release() {
+        for (ByteBuffer buffer : this.output) {
+            BufferPool.release(buffer);
+        }
+        this.output.clear();
+        if (this.input != null) {
+            BufferPool.release(this.input);
+            this.input = null;
+        }
+    }
+
+    private void read() throws IOException {
+        if (this.channel.read(this.input) == -1) {  //il remoto ha chiuso
+            this.close();
+            return;
+        }
+        this.process();
+    }
+
+    //consuma i frame completi in input
+    private void process() throws IOException {
+        this.input.flip();
+        long arrived = System.nanoTime();
+        while (!over && this.decoder.decode(this.input, this.frame)) {
+            this.heartbeat.received();
+            if (this.frame.type == Frame.SEED) {    //in chiaro, per il cifrario: ora si puo' salutare
+                this.cipher.seeded(this.frame.payload);
+                if (this.room == null) {    //non ancora salutato
+                    this.welcome();
+                }
+                continue;
+            }
+            this.cipher.decrypt(this.frame.header, this.frame.payload);
+            if (this.compression != null) {
+                this.frame.payload = this.compression.decompress(this.frame);
+            } else if (this.frame.is(Frame.COMPRESSED)) {
+                throw new ProtocolException("Compressed frame, but compression is disabled");
+            }
+            Metrics.RECEIVE.since(arrived);
+            arrived = System.nanoTime();
+            this.onFrame();
+        }
+
+        if (!over) {
+            int required = this.decoder.required(this.input);
+            if (required > this.input.capacity()) { //frame piu' grande del buffer: lo allargo
+                ByteBuffer larger = BufferPool.lease(required);
+                larger.put(this.input);
+                BufferPool.release(this.input);
+                this.input = larger;
+            } else {
+                this.input.compact();   //conservo il frame incompleto
+            }
+            this.flush();
+        }
+    }
+
+    private void onFrame() throws IOException {
+        long start = System.nanoTime();
+        LatencyHistogram branch;
+
+        switch (this.frame.type) {
+            case Frame.TEXT:
+                if (this.skip > 0) {    //arrivato prima che la connessione cadesse: gia' inoltrato
+                    this.skip--;
+                    branch = Metrics.OTHER;
+                    break;
+                }
+                this.received++;
+                for (String temp : this.lines.feed(Chat.text(this.frame.payload), this.frame.is(Frame.MORE))) {
+                    this.room.broadcast(this, this.prompt() + temp);
+                }
+                branch = Metrics.TEXT;
+                break;
+
+            case Frame.COMMAND:
+                String line = Chat.text(this.frame.payload);
+                this.execute(line);
+                branch = Metrics.command(line);
+                break;
+
+            case Frame.STATUS:
+                this.status = Chat.text(this.frame.payload).equalsIgnoreCase("BUSY") ? Status.BUSY : Status.AVAILABLE;
+                this.lobby.presence().update(this, this.name, this.status); //tutti lo sapranno, senza un messaggio a testa
+                branch = Metrics.STATUS;
+                break;
+
+            case Frame.FILE_CHUNK:
+                this.onChunk();
+                branch = Metrics.command("/file");
+                break;
+
+            case Frame.CONTROL:
+                String control = Chat.text(this.frame.payload);
+                if (Sessions.isSession(control)) {
+                    this.session(control);
+                } else if (this.compression != null && Compression.isHello(control)) {
+                    this.compression.enable();
+                } else if (control.equals(Heartbeat.PING)) {
+                    this.enqueue(Frame.CONTROL, Heartbeat.PONG);
+                }
+                branch = Metrics.OTHER;
+                break;
+
+            default:    //frame non atteso: lo ignoro
+                branch = Metrics.OTHER;
+                break;
+        }
+
+        branch.since(start);
+    }
+
+    private void execute(String line) {
+        CommandRegistry.Handler<NioSession> handler = NioSession.COMMANDS.find(this.arguments.parse(line));
+        if (handler != null) {
+            handler.run(this, this.arguments);
+        }
+    }
+
+    //comandi ricevuti, condivisi da tutte le sessioni
+    private static CommandRegistry<NioSession> commands() {
+        CommandRegistry<NioSession> commands = new CommandRegistry<>();
+        commands.register("/help", (session, arguments) -> session.enqueue(Frame.TEXT, String.join("\n", Chat.HELP)));
+        commands.register("/close", (session, arguments) -> {
+            String rest = session.lines.rest();  //l'ultima riga di una pipe puo' non avere l'a capo
+            if (rest != null) {
+                session.room.broadcast(session, session.prompt() + rest);
+            }
+            session.end();
+        });
+        commands.register("/stats", (session, arguments) -> session.enqueue(Frame.TEXT, Metrics.summary()));
+
+        commands.register("/name", (session, arguments) -> {
+            String old = session.name;
+            session.name = arguments.rest().length() > 0 ? arguments.rest().toString() : "???";
+            session.room.broadcast(session, old + " changed its name in " + session.name);
+            session.lobby.presence().update(session, session.name, session.status);
+        });
+
+        commands.register("/join", (session, arguments) -> {
+            if (arguments.count() == 0) {
+                session.enqueue(Frame.TEXT, "~*Sytax Error*~");
+            } else {
+                session.move(arguments.rest().toString().trim());
+            }
+        });
+        commands.register("/leave", (session, arguments) -> session.move(Lobby.DEFAULT));
+        commands.register("/rooms", (session, arguments) -> session.enqueue(Frame.TEXT, session.lobby.list()));
+
+        commands.register("/file", (session, arguments) -> {
+            session.downloads.announced(arguments.rest().toString().trim());   //i blocchi arriveranno come FILE_CHUNK
+        });
+        return commands;
+    }
+
+    //il client chiede una sessione nuova, o di riprendere la sua
+    private void session(String control) {
+        String token = Sessions.token(control);
+        long received = Sessions.count(control);
+        long sent = Sessions.sent(control);
+        NioSession parked = token == null || received < 0 ? null : this.sessions.take(token);
+        if (parked != null) {
+            this.handOver(parked, received, sent);
+            return;
+        }
+        if (this.token == null) {   //anche se il token e' scaduto: il client se ne accorge dal token diverso
+            this.token = this.sessions.token();
+            this.sessions.connected(this.token, this);
+            this.replay = new String[Sessions.REPLAY];
+            this.continued = new boolean[Sessions.REPLAY];
+            this.received = Math.max(this.received, sent);  //conto come il client, che non ricomincia da capo
+        }
+        this.enqueue(Frame.CONTROL, Sessions.session(this.token, this.sent));
+    }
+
+    //passa la connessione, con i byte non ancora consumati, alla sessione ripresa
+    private void handOver(NioSession parked, long received, long sent) {
+        this.over = true;
+        this.ended = true;
+        this.heartbeat.stop();
+        this.lobby.leave(this.room, this);
+        this.lobby.presence().leave(this);
+        this.key.cancel();
+
+        ByteBuffer rest = BufferPool.lease(Math.max(this.input.remaining(), Frame.HEADER + FileTransfer.CHUNK));
+        rest.put(this.input);
+        BufferPool.release(this.input);
+        this.input = null;
+        SocketChannel channel = this.channel;
+        CipherEngine cipher = this.cipher;  //il client continua con lo stesso stato
+        Compression compression = this.compression;
+        ArrayDeque<ByteBuffer> output = this.output;
+        parked.loop.execute(() -> {
+            if (parked.ended) { //terminata nel frattempo: il client riprovera'
+                BufferPool.release(rest);
+                NioSession.close(channel);
+                return;
+            }
+            if (!parked.over) { //il client se n'e' accorto prima di me: la vecchia connessione e' ancora aperta
+                parked.drop();
+            }
+            parked.sessions.expire(parked.token, parked);   //parcheggiata nel frattempo: non la prende nessun altro
+            parked.resume(channel, cipher, compression, rest, output, received, sent);
+        });
+    }
+
+    //riprende la sessione sulla nuova connessione, inviando i frame TEXT dopo i primi received;
+    //di quelli che il client ripete, dopo i primi sent, salto quelli gia' arrivati
+    private void resume(SocketChannel channel, CipherEngine cipher, Compression compression,
+            ByteBuffer input, ArrayDeque<ByteBuffer> output, long received, long sent) {
+        this.channel = channel;
+        this.cipher = cipher;
+        this.compression = compression;
+        this.input = input;
+        this.over = false;
+        this.sessions.connected(this.token, this);
+        this.skip = Math.max(0, this.received - sent);
+        if (sent < 0 || sent > this.received) { //persi per strada: il messaggio interrotto non continuera'
+            this.lines.reset();
+            this.received = Math.max(this.received, sent);
+        }
+        if (this.expiry != null) {
+            this.expiry.cancel();
+            this.expiry = null;
+        }
+        try {
+            this.key = this.loop.register(channel, SelectionKey.OP_READ, this);
+        } catch (IOException ioe) {
+            this.close();   //il client riprovera'
+            return;
+        }
+        this.heartbeat.start();
+
+        this.lobby.presence().refresh(this); //la presenza persa nel frattempo non e' in replay
+        this.queued.addAndGet(output.size());   //quanto la connessione aveva gia' in coda va per primo
+        this.output.addAll(output);
+        long first = Math.min(Math.max(received, this.sent - Sessions.REPLAY), this.sent); //i piu' vecchi sono persi
+        this.enqueue(Frame.CONTROL, Sessions.session(this.token, first));
+        for (long i = first; i < this.sent && !over; i++) {
+            int slot = (int) (i % Sessions.REPLAY);
+            ByteBuffer data = this.encode(Frame.TEXT, this.continued[slot] ? Frame.MORE : 0, this.replay[slot]);
+            if (data != null) {
+                this.queued.incrementAndGet();
+                this.output.offer(data);
+            }
+        }
+
+        try {
+            this.process(); //i frame arrivati dopo la richiesta
+        } catch (IOException | RuntimeException e) {
+            this.close();
+        }
+    }
+
+    //ricorda i frame TEXT di un messaggio inviato, se il client potra' riprendere la sessione
+    private void record(String text) {
+        if (this.token != null) {
+            int start = 0;
+            do {    //un frame per frammento, come li conta il client
+                int end = Lines.fragment(text, start);
+                int slot = (int) (this.sent++ % Sessions.REPLAY);
+                this.replay[slot] = end - start == text.length() ? text : text.substring(start, end);
+                this.continued[slot] = end < text.length();
+                start = end;
+            } while (start < text.length());
+        }
+    }
+
+    //entro nella nuova stanza prima di lasciare la vecchia: nessun messaggio va perso nel mezzo
+    private void move(String name) {
+        Room old = this.room;
+        if (!old.name().equals(name)) {
+            this.room = this.lobby.join(name, this);
+            this.lobby.leave(old, this);
+        }
+        this.enqueue(Frame.TEXT, "You are in " + name);
+    }
+
+    private void onChunk() {
+        try {
+            this.downloads.chunk(this.frame);   //copiato per il thread del trasferimento: il disco non ferma il ciclo
+        } catch (ProtocolException pe) {
+            this.enqueue(Frame.TEXT, "Couldn't receive file (" + pe.getMessage() + "): send it again to resume");
+        }
+    }
+
+    //esito di un file ricevuto, dal thread del suo trasferimento
+    private void received(PartialFile file, IOException error) {
+        this.loop.execute(() -> {
+            if (this.ended) {
+                return;
+            }
+            if (error != null) {    //solo questo file e' perso: la conversazione continua
+                this.enqueue(Frame.TEXT, "Couldn't receive file (" + error.getMessage() + "): send it again to resume");
+            } else {
+                Metrics.FILE_RECEIVE.since(file.started());
+                Metrics.FILE_BYTES_RECEIVED.add(file.received());
+                this.room.broadcast(this, this.prompt() + file.file().getName() + " received");
+            }
+            if (!over) {
+                this.flush();
+            }
+        });
+    }
+
+    //frame CONTROL dei file in arrivo: le risposte alle offerte possono arrivare da un altro thread
+    private void control(String text) {
+        if (this.loop.inLoop()) {   //parte con quanto sta leggendo
+            this.enqueue(Frame.CONTROL, text);
+            return;
+        }
+        this.loop.execute(() -> {
+            if (!this.ended) {
+                this.enqueue(Frame.CONTROL, text);
+                this.flush();
+            }
+        });
+    }
+
+    private void closeFile() {
+        this.downloads.close(); //quanto verificato resta per riprendere
+    }
+
+    private void enqueue(byte type, String text) {
+        if (type == Frame.TEXT) {
+            this.record(text);
+        }
+        if (over) { //il client lo ricevera' riprendendo la sessione
+            return;
+        }
+        ByteBuffer data = this.encode(type, text);
+        if (data != null) {
+            this.queued.incrementAndGet();
+            this.output.offer(data);
+        }
+    }
+
+    //codifica e cifra un messaggio per questa connessione, in piu' frame TEXT se e' lungo
+    //(null se la sessione e' caduta): i frame sono in un solo buffer, nulla si inserisce tra loro
+    private ByteBuffer encode(byte type, String text) {
+        int frames = type == Frame.TEXT ? Lines.fragments(text) : 1;
+        if (frames == 1) {
+            return this.encode(type, (byte) 0, text);
+        }
+        ByteBuffer data = BufferPool.lease(frames * (Frame.HEADER + this.cipher.overhead()) + 3 * text.length());
+        try {
+            for (int start = 0, end; start < text.length(); start = end) {
+                end = Lines.fragment(text, start);
+                this.seal(data, type, end < text.length() ? Frame.MORE : 0, text.substring(start, end));
+            }
+        } catch (IOException ioe) {
+            BufferPool.release(data);
+            System.err.println("Couldn't encrypt frame");
+            this.close();
+            return null;
+        }
+        data.flip();
+        return data;
+    }
+
+    //codifica e cifra un frame per questa connessione (null se la sessione e' caduta)
+    private ByteBuffer encode(byte type, byte flags, String text) {
+        ByteBuffer data = BufferPool.lease(FrameEncoder.size(text) + this.cipher.overhead()); //restituito quando e' scritto
+        try {
+            this.seal(data, type, flags, text);
+        } catch (IOException ioe) {
+            BufferPool.release(data);
+            System.err.println("Couldn't encrypt frame");
+            this.close();
+            return null;
+        }
+        data.flip();
+        return data;
+    }
+
+    private void seal(ByteBuffer data, byte type, byte flags, CharSequence text) throws IOException {
+        ByteBuffer payload = this.encoder.text(data, type, flags, text);
+        FrameEncoder.seal(data, this.compression == null ? payload : this.compression.compress(payload), this.cipher);
+    }
+
+    //scrive quanto e' in output, piu' buffer per ogni chiamata
+    private void flush() {
+        try {
+            while (!this.output.isEmpty()) {
+                int count = 0;
+                long pending = 0;
+                for (ByteBuffer buffer : this.output) {
+                    this.gather[count++] = buffer;
+                    pending += buffer.remaining();
+                    if (count == NioSession.GATHER) {
+                        break;
+                    }
+                }
+                long written = this.channel.write(this.gather, 0, count);
+                Arrays.fill(this.gather, 0, count, null);
+
+                ByteBuffer head;
+                while ((head = this.output.peek()) != null && !head.hasRemaining()) {
+                    this.output.poll();
+                    this.queued.decrementAndGet();
+                    BufferPool.release(head);   //i frame condivisi della stanza non sono del pool
+                }
+                if (written < pending) {    //socket pieno: riprovero' quando sara' scrivibile
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ioe) {
+            this.close();
+        }
+    }
+
+    private String prompt() {
+        return this.status == Status.BUSY ? this.name + " (Busy)> " : this.name + "> ";
+    }
+
+}
@@ -0,0 +1,30 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class leaves the payloads as they are.
+ *
+ * @author Amedeo
+ */
+final class NoCipher implements CipherEngine {
+
+    @Override
+    public int overhead() {
+        return 0;
+    }
+
+    @Override
+    public boolean shareable() {
+        return true;
+    }
+
+    @Override
+    public void encrypt(int header, ByteBuffer data) {
+    }
+
+    @Override
+    public void decrypt(int header, ByteBuffer data) {
+    }
+
+}
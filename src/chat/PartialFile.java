@@ -0,0 +1,378 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * This class is the receiving side of a file transfer. The content is
+ * written on NAME.part and, after every verified chunk, the number of
+ * bytes verified so far is written on NAME.part.state together with the
+ * transfer id: if the transfer is interrupted, a new offer of the same
+ * file continues from there.
+ * When the transfer is complete the file gets its name, or a numbered
+ * variant of it if the name is already taken.
+ * Two transfers of the same name at once (from two clients of a
+ * multi-client server) never share the partial file: the second one uses
+ * NAME.N.part, and can't be resumed.
+ * A delta (see Delta) is rebuilt on the partial file the same way, chunk
+ * after chunk, taking the blocks it copies from the basis.
+ *
+ * @author Amedeo
+ */
+final class PartialFile {
+
+    private static final Set<File> OPEN = ConcurrentHashMap.newKeySet();  //file parziali in uso, in tutto il processo
+
+    private final File directory;
+    private final String name;
+    private final File part;    //contenuto ricevuto finora
+    private final File state;   //id, dimensione e byte verificati
+
+    private final long id;
+    private final long size;
+    private final long resumed; //byte gia' presenti all'apertura
+    private final long started; //istante dell'apertura, in nanosecondi
+    private long offset;    //byte verificati
+    private long reused;    //byte presi dalla base di un delta
+
+    private final RandomAccessFile data;
+    private final FileChannel content;
+    private final FileChannel progress;
+    private final ByteBuffer mark;  //byte verificati, pronti per essere scritti sullo stato
+    private final CRC32 crc;
+    private File target;    //nome definitivo, una volta completato
+    private boolean released;   //se il file parziale non e' piu' in uso, settato a true
+
+    /**
+     * Opens (or creates) the partial file of a transfer.
+     *
+     * @param directory where to save the file
+     * @param name the name of the file
+     * @param id the transfer id
+     * @param size the size of the whole file
+     * @throws IOException if the files can't be opened
+     */
+    PartialFile(File directory, String name, long id, long size) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.part = PartialFile.claim(directory, name);
+        this.state = new File(this.part.getPath() + ".state");
+        this.id = id;
+        this.size = size;
+
+        this.offset = this.previous();  //riprendo da dove ero arrivato, se e' lo stesso trasferimento
+        this.resumed = this.offset;
+        this.started = System.nanoTime();
+
+        try {
+            this.data = new RandomAccessFile(this.part, "rw");
+        } catch (IOException ioe) {
+            this.release();
+            throw ioe;
+        }
+        try {
+            this.data.setLength(size);  //prealloco il file
+            this.content = this.data.getChannel();
+
+            this.progress = new RandomAccessFile(this.state, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(3 * Long.BYTES);
+            header.putLong(id).putLong(size).putLong(this.offset).flip();
+            this.progress.write(header, 0);
+        } catch (IOException ioe) {
+            this.data.close();
+            this.release();
+            throw ioe;
+        }
+
+        this.mark = ByteBuffer.allocate(Long.BYTES);
+        this.crc = new CRC32();
+    }
+
+    //byte verificati da un tentativo precedente dello stesso trasferimento
+    private long previous() {
+        if (!this.part.isFile() || !this.state.isFile()) {
+            return 0;
+        }
+        try (RandomAccessFile previous = new RandomAccessFile(this.state, "r")) {
+            long oldId = previous.readLong();
+            long oldSize = previous.readLong();
+            long verified = previous.readLong();
+            return oldId == this.id && oldSize == this.size && verified >= 0 && verified <= this.size ? verified : 0;
+        } catch (IOException ioe) {    //stato illeggibile: ricomincio
+            return 0;
+        }
+    }
+
+    long offset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the bytes that were already there when the transfer was offered
+     */
+    long resumed() {
+        return this.resumed;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the transfer was offered
+     */
+    long started() {
+        return this.started;
+    }
+
+    /**
+     * @return the bytes received by this attempt
+     */
+    long received() {
+        return this.offset - this.resumed;
+    }
+
+    /**
+     * @return the bytes of this attempt taken from the basis of a delta
+     */
+    long reused() {
+        return this.reused;
+    }
+
+    /**
+     * @return the received file, or null if the transfer is not complete
+     */
+    File file() {
+        return this.target;
+    }
+
+    /**
+     * Verifies a chunk and writes it after the verified part.
+     *
+     * @param chunk the content followed by its CRC32
+     * @throws IOException if the chunk is corrupted or can't be written
+     */
+    void write(ByteBuffer chunk) throws IOException {
+        this.verified(this.write(chunk, this.offset, this.crc));
+    }
+
+    /**
+     * Verifies a chunk and writes it at the given position, without
+     * moving the verified part: it can be called by many threads at once,
+     * each one with its own CRC32.
+     *
+     * @param chunk the content followed by its CRC32
+     * @param position where the content goes
+     * @param crc reused to compute the checksum
+     * @return the position after the content
+     * @throws IOException if the chunk is corrupted or can't be written
+     */
+    long write(ByteBuffer chunk, long position, CRC32 crc) throws IOException {
+        PartialFile.verify(chunk, position, crc);
+        if (position + chunk.remaining() > this.size) {
+            throw new ProtocolException("File chunk beyond the end of the file");
+        }
+        while (chunk.hasRemaining()) {
+            position += this.content.write(chunk, position);    //scrittura posizionale: sicura tra thread
+        }
+        return position;
+    }
+
+    /**
+     * Verifies a chunk of a delta and rebuilds its part of the file after
+     * the verified part.
+     *
+     * @param chunk the COPY and LITERAL operations followed by their CRC32
+     * @param basis the basis of the delta
+     * @param block the size of its blocks
+     * @throws IOException if the chunk is corrupted, or the files can't be
+     * read or written
+     */
+    void rebuild(ByteBuffer chunk, FileChannel basis, int block) throws IOException {
+        PartialFile.verify(chunk, this.offset, this.crc);
+        long position = this.offset;
+        try {
+            while (chunk.hasRemaining()) {
+                byte operation = chunk.get();
+                if (operation == Delta.COPY) {  //blocchi che ho gia'
+                    long from = (long) chunk.getInt() * block;
+                    long length = (long) chunk.getInt() * block;
+                    if (from < 0 || length < 0 || from + length > basis.size() || position + length > this.size) {
+                        throw new ProtocolException("Copy beyond the end of the file");
+                    }
+                    basis.position(from);
+                    for (long copied = 0; copied < length;) {
+                        copied += this.content.transferFrom(basis, position + copied, length - copied);
+                    }
+                    position += length;
+                    this.reused += length;
+                } else if (operation == Delta.LITERAL) {    //byte nuovi
+                    int length = chunk.getInt();
+                    if (length < 0 || length > chunk.remaining() || position + length > this.size) {
+                        throw new ProtocolException("Literal beyond the end of the file");
+                    }
+                    ByteBuffer literal = chunk.duplicate();
+                    literal.limit(literal.position() + length);
+                    chunk.position(literal.limit());
+                    while (literal.hasRemaining()) {
+                        position += this.content.write(literal, position);
+                    }
+                } else {
+                    throw new ProtocolException("Unknown delta operation " + operation);
+                }
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new ProtocolException("Truncated delta operation");
+        }
+        this.verified(position);
+    }
+
+    /**
+     * Checks the whole file against the digest of the sender, before
+     * complete(): a delta rebuilt from the wrong blocks is noticed here.
+     *
+     * @param digest the SHA-256 of the file
+     * @throws IOException if the digest doesn't match (the partial file
+     * is dropped) or the file can't be read
+     */
+    void check(byte[] digest) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException("SHA-256 not available", nsae);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK);
+        for (long position = 0; position < this.offset; buffer.clear()) {
+            buffer.limit((int) Math.min(buffer.capacity(), this.offset - position));
+            int read = this.content.read(buffer, position);
+            if (read == -1) {
+                break;
+            }
+            position += read;
+            buffer.flip();
+            sha.update(buffer);
+        }
+        if (!Arrays.equals(sha.digest(), digest)) {
+            this.closeFiles();
+            this.release();
+            if (!(this.part.delete() & this.state.delete())) {  //non si riprende da byte sbagliati
+                System.err.println("Couldn't delete " + this.part);
+            }
+            throw new ProtocolException("Rebuilt file doesn't match the one sent");
+        }
+    }
+
+    //controlla il CRC32 in coda ad un blocco, e lo toglie
+    private static void verify(ByteBuffer chunk, long position, CRC32 crc) throws ProtocolException {
+        if (chunk.remaining() < Integer.BYTES) {
+            throw new ProtocolException("File chunk without checksum");
+        }
+        int expected = chunk.getInt(chunk.limit() - Integer.BYTES);
+        chunk.limit(chunk.limit() - Integer.BYTES);
+
+        int start = chunk.position();
+        crc.reset();
+        crc.update(chunk);
+        if ((int) crc.getValue() != expected) {
+            throw new ProtocolException("Corrupted file chunk at " + position);
+        }
+        chunk.position(start);
+    }
+
+    /**
+     * Moves the verified part forward, so that an interrupted transfer
+     * resumes from there.
+     *
+     * @param offset the bytes verified, from the beginning of the file
+     * @throws IOException if the state can't be written
+     */
+    void verified(long offset) throws IOException {
+        this.offset = offset;
+        this.mark.clear();
+        this.mark.putLong(this.offset).flip();
+        this.progress.write(this.mark, 2 * Long.BYTES); //da qui riprendero' se la connessione cade
+    }
+
+    /**
+     * Gives the file its final name and forgets the transfer.
+     *
+     * @return the received file
+     * @throws IOException if the file is not complete or can't be renamed
+     */
+    File complete() throws IOException {
+        this.closeFiles();
+        if (this.offset != this.size) {
+            this.release();
+            throw new ProtocolException("Expected " + this.size + " bytes, received " + this.offset);
+        }
+
+        try {
+            synchronized (PartialFile.OPEN) {   //due trasferimenti completati insieme non scelgono lo stesso nome
+                File target = PartialFile.unique(this.directory, this.name);
+                Files.move(this.part.toPath(), target.toPath());
+                this.target = target;
+            }
+            if (!this.state.delete()) {
+                System.err.println("Couldn't delete " + this.state);
+            }
+        } finally {
+            this.release(); //solo dopo lo spostamento: prima un altro lo riaprirebbe
+        }
+        return this.target;
+    }
+
+    /**
+     * Closes the files, keeping them for a later resumption.
+     */
+    void close() {
+        this.closeFiles();
+        this.release();
+    }
+
+    private void closeFiles() {
+        try {
+            this.content.close();
+            this.progress.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close file");
+        }
+    }
+
+    //NAME.part, o NAME.N.part se un altro trasferimento lo sta gia' usando
+    private static File claim(File directory, String name) {
+        File part = new File(directory, name + ".part");
+        for (int i = 1; !PartialFile.OPEN.add(part.getAbsoluteFile()); i++) {
+            part = new File(directory, name + "." + i + ".part");
+        }
+        return part;
+    }
+
+    private void release() {
+        if (!this.released) {
+            this.released = true;
+            PartialFile.OPEN.remove(this.part.getAbsoluteFile());
+        }
+    }
+
+    //il nome richiesto se e' libero, altrimenti "nome (N).estensione"
+    static File unique(File directory, String name) {
+        File target = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+}
@@ -0,0 +1,139 @@
+package chat;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * This class is the Terminal of a chat used as a data pipe, like
+ * "tail -f log | java chat.Client pipe": whatever arrives on the standard
+ * input is sent, and the messages of the peer are written on the standard
+ * output, without prompts nor colors. Everything else (status changes,
+ * transfers, errors) goes to the standard error.
+ * The input is read in large blocks: every block, cut at its last line
+ * break, travels as a single message of many lines. A line longer than a
+ * block, and the last line if the input doesn't end with a line break,
+ * travel flagged as MORE: the receiver writes them back without adding
+ * line breaks of its own. Carriage returns are data like any other byte,
+ * so a CRLF input comes out as it went in.
+ *
+ * @author Amedeo
+ */
+final class PipeTerminal implements Terminal {
+
+    private static final int BLOCK = 64 * 1024; //byte letti al massimo per messaggio
+
+    private final InputStream input;
+    private final Writer output;
+    private final byte[] buffer;    //byte letti e non ancora inviati
+    private int length; //byte validi in buffer
+    private boolean more;   //l'ultimo testo letto e' una riga tagliata: continua nel prossimo
+
+    PipeTerminal() {
+        this(System.in);
+    }
+
+    PipeTerminal(InputStream input) {
+        this.input = input;
+        //bufferizzato: svuotato una volta per messaggio, non per riga; in UTF-8 come il payload
+        this.output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), PipeTerminal.BLOCK);
+        this.buffer = new byte[PipeTerminal.BLOCK];
+        this.length = 0;
+    }
+
+    @Override
+    public String readLine(String prompt) {
+        this.more = false;
+        try {
+            while (true) {
+                int end = this.lastLineBreak();
+                if (end >= 0) { //tutte le righe complete, in un solo messaggio
+                    return this.take(end, end + 1);
+                }
+                if (this.length == this.buffer.length) {    //riga piu' lunga di un blocco: la invio a pezzi
+                    int lead = this.length - 1;
+                    while (lead > 0 && (this.buffer[lead] & 0xC0) == 0x80) {    //inizio dell'ultimo carattere
+                        lead--;
+                    }
+                    //se e' di piu' byte potrebbe essere incompleto: lo tengo per il prossimo pezzo
+                    int cut = (this.buffer[lead] & 0x80) != 0 && lead > 0 ? lead : this.length;
+                    this.more = true;
+                    return this.take(cut, cut);
+                }
+
+                int read = this.input.read(this.buffer, this.length, this.buffer.length - this.length);
+                if (read == -1) {   //input terminato: invio quanto resta, senza a capo
+                    this.more = this.length > 0;
+                    return this.length > 0 ? this.take(this.length, this.length) : null;
+                }
+                this.length += read;
+            }
+        } catch (IOException ioe) {
+            System.err.println("Couldn't read from standard input");
+            return null;
+        }
+    }
+
+    //ultimo a capo in buffer (-1 se non ce ne sono)
+    private int lastLineBreak() {
+        for (int i = this.length - 1; i >= 0; i--) {
+            if (this.buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //testo fino a end, scartando i byte fino a next (i \r restano: sono dati)
+    private String take(int end, int next) {
+        String text = new String(this.buffer, 0, end, StandardCharsets.UTF_8);
+        System.arraycopy(this.buffer, next, this.buffer, 0, this.length - next);
+        this.length -= next;
+        return text;
+    }
+
+    @Override
+    public boolean more() {
+        return this.more;
+    }
+
+    @Override
+    public void show(String line) {
+        System.err.println(line);
+    }
+
+    @Override
+    public void message(String prompt, List<String> lines) {
+        try {
+            for (String line : lines) {
+                this.output.write(line);
+                this.output.write('\n');
+            }
+            this.output.flush();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't write on standard output");
+        }
+    }
+
+    @Override
+    public void unfinished(String prompt, String line) {
+        try {
+            this.output.write(line);    //era l'ultima riga, senza a capo
+            this.output.flush();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't write on standard output");
+        }
+    }
+
+    @Override
+    public boolean interactive() {
+        return false;
+    }
+
+}
@@ -0,0 +1,218 @@
+package chat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class tells every member of a multi-client server who is online,
+ * with which name and Status, without flooding anybody.
+ * Changes are not sent right away: the first one opens a window of
+ * "chat.presence" milliseconds (250 by default), and when it closes all
+ * the changes of the window are published together as a new version,
+ * keeping only the last one of every member. A member that got the
+ * previous version receives only the changes (a delta); a newcomer, or a
+ * member that missed something, receives the whole state (a snapshot).
+ * Both are CONTROL frames: one frame per version, shared by all the
+ * members up to date, so publishing costs the same as relaying a line.
+ *
+ * <pre>
+ * PRESENCE FROM TO      (delta from version FROM)   or
+ * PRESENCE SNAPSHOT TO  (whole state)
+ * ID STATUS NAME        (one line per member: online, with its status)
+ * ID GONE               (one line per member gone, in deltas only)
+ * </pre>
+ *
+ * @author Amedeo
+ */
+final class Presence {
+
+    /**
+     * First word of the CONTROL frames about presence
+     */
+    static final String PRESENCE = "PRESENCE";
+
+    /**
+     * Second word of the snapshots
+     */
+    static final String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * Status of the members gone
+     */
+    static final String GONE = "GONE";
+
+    private static final long DEBOUNCE = Long.getLong("chat.presence", 250);   //millisecondi in cui raccolgo i cambiamenti
+
+    //stato di un membro (status null se e' uscito)
+    private static final class State {
+
+        private final long id;  //identificativo, fisso finche' resta collegato
+        private final String name;
+        private final Status status;
+
+        private State(long id, String name, Status status) {
+            this.id = id;
+            this.name = name;
+            this.status = status;
+        }
+
+        private void append(StringBuilder text) {
+            text.append('\n').append(this.id).append(' ');
+            if (this.status == null) {
+                text.append(Presence.GONE);
+            } else {
+                text.append(this.status.name()).append(' ').append(this.name);
+            }
+        }
+    }
+
+    private final Lobby lobby;  //per i frame condivisi e la politica dei lenti
+    private final AtomicLong ids;   //ultimo identificativo assegnato
+    private final ConcurrentHashMap<Lobby.Member, State> states;    //stato pubblicato di chi e' online
+    private final ConcurrentHashMap<Lobby.Member, State> pending;   //cambiamenti non ancora pubblicati
+    private final ConcurrentHashMap<Lobby.Member, Long> seen;   //iscritti, con l'ultima versione ricevuta (-1: nessuna)
+    private final ScheduledExecutorService timer;   //pubblica alla fine di ogni finestra
+    private final AtomicBoolean scheduled;  //se la pubblicazione e' gia' in programma, settato a true
+    private long version;   //ultima versione pubblicata (solo per il timer)
+
+    Presence(Lobby lobby) {
+        this.lobby = lobby;
+        this.ids = new AtomicLong();
+        this.states = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.seen = new ConcurrentHashMap<>();
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduled = new AtomicBoolean();
+        this.version = 0;
+    }
+
+    /**
+     * A new member is online: it will get a snapshot, and everybody else
+     * will know about it.
+     *
+     * @param member the member
+     * @param name its name
+     */
+    void join(Lobby.Member member, String name) {
+        this.seen.put(member, -1L);
+        this.update(member, name, Status.AVAILABLE);
+    }
+
+    /**
+     * A member changed its name or its status.
+     *
+     * @param member the member
+     * @param name its name
+     * @param status its status
+     */
+    void update(Lobby.Member member, String name, Status status) {
+        String line = name.replace('\n', ' ').replace('\r', ' ');  //un nome per riga
+        //chi e' gia' uscito non torna online per un cambiamento arrivato in ritardo
+        this.pending.compute(member, (key, old) -> this.seen.containsKey(key) ? new State(this.id(key, old), line, status) : old);
+        this.schedule();
+    }
+
+    /**
+     * A member is gone.
+     *
+     * @param member the member
+     */
+    void leave(Lobby.Member member) {
+        this.seen.remove(member);
+        this.pending.compute(member, (key, old) -> new State(this.id(key, old), null, null));
+        this.schedule();
+    }
+
+    /**
+     * A member lost some deltas (it was offline for a while): it will get
+     * a snapshot.
+     *
+     * @param member the member
+     */
+    void refresh(Lobby.Member member) {
+        if (this.seen.replace(member, -1L) != null) {
+            this.schedule();
+        }
+    }
+
+    //identificativo del membro: quello che ha gia', o uno nuovo
+    private long id(Lobby.Member member, State pending) {
+        State state = pending != null ? pending : this.states.get(member);
+        return state != null ? state.id : this.ids.incrementAndGet();
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {    //una sola pubblicazione per finestra
+            this.timer.schedule(this::publish, Presence.DEBOUNCE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //pubblica i cambiamenti della finestra, sul thread del timer
+    private void publish() {
+        this.scheduled.set(false);  //i cambiamenti da qui in poi aprono una nuova finestra
+
+        long from = this.version;
+        StringBuilder delta = new StringBuilder();
+        for (Lobby.Member member : this.pending.keySet()) {
+            State state = this.pending.remove(member);
+            State old = state.status == null ? this.states.remove(member) : this.states.put(member, state);
+            if (state.status != null || old != null) {  //entrato e uscito nella stessa finestra: nessuno lo sa
+                state.append(delta);
+            }
+        }
+        if (delta.length() > 0) {
+            this.version++;
+        }
+
+        Room.Message changes = new Room.Message(Frame.CONTROL,
+                Presence.PRESENCE + " " + from + " " + this.version + delta, this.lobby.shared());
+        Room.Message snapshot = null;
+        for (Map.Entry<Lobby.Member, Long> entry : this.seen.entrySet()) {
+            long last = entry.getValue();
+            if (last == this.version) { //gia' aggiornato
+                continue;
+            }
+            Room.Message message = changes;
+            if (last != from) { //nuovo, o ha perso qualcosa
+                if (snapshot == null) {
+                    snapshot = this.snapshot();
+                }
+                message = snapshot;
+            }
+            Lobby.Member member = entry.getKey();
+            if (member.deliver(message)) {
+                this.seen.replace(member, last, this.version);  //a meno che nel frattempo non sia uscito
+            } else {    //restera' indietro, e ricevera' un'istantanea
+                this.lobby.slow(member);
+            }
+        }
+    }
+
+    private Room.Message snapshot() {
+        StringBuilder text = new StringBuilder(Presence.PRESENCE + " " + Presence.SNAPSHOT + " " + this.version);
+        for (State state : this.states.values()) {
+            state.append(text);
+        }
+        return new Room.Message(Frame.CONTROL, text.toString(), this.lobby.shared());
+    }
+
+    /**
+     * Tells whether a CONTROL frame is about presence.
+     *
+     * @param text the text of the frame
+     * @return true if it is
+     */
+    static boolean isPresence(String text) {
+        return text.startsWith(Presence.PRESENCE + " ");
+    }
+
+}
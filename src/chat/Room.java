@@ -0,0 +1,147 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class is a room of a multi-client server: whatever a member says
+ * is relayed to all the other members of the same room.
+ * Members are kept in a copy-on-write list, so relaying never locks: a
+ * message is built once and handed to every member, which queues it
+ * without blocking. A member that can't keep up is handled by the Lobby,
+ * according to its slow consumer policy.
+ *
+ * @author Amedeo
+ */
+final class Room {
+
+    /**
+     * A relayed line, or a CONTROL frame sent to many members. Its frame is
+     * encoded and ciphered at most once, by the first member that asks for
+     * it, and then shared by all of them: every member gets its own
+     * read-only view of the same bytes.
+     */
+    static final class Message {
+
+        private final byte type;    //TEXT o CONTROL
+        private final String line;
+        private final CipherEngine shared;  //cifratura comune a tutte le connessioni (null se non c'e')
+        private volatile ByteBuffer frame;  //frame codificato, costruito alla prima richiesta
+
+        Message(byte type, String line, CipherEngine shared) {
+            this.type = type;
+            this.line = line;
+            this.shared = shared;
+        }
+
+        /**
+         * @return the type of the frame, TEXT or CONTROL
+         */
+        byte type() {
+            return this.type;
+        }
+
+        /**
+         * @return the line, already prefixed with the author, or the text of the CONTROL frame
+         */
+        String line() {
+            return this.line;
+        }
+
+        /**
+         * Returns the frame carrying the line (the frames, if the line is
+         * long), as a read-only view with its own position. Only
+         * connections whose cipher is shareable() may send it.
+         *
+         * @return the frame, or null if the configured cipher can't be shared
+         */
+        ByteBuffer frame() {
+            if (this.shared == null) {
+                return null;
+            }
+            ByteBuffer frame = this.frame;
+            if (frame == null) {
+                synchronized (this) {
+                    frame = this.frame;
+                    if (frame == null) {
+                        frame = this.encode();
+                        this.frame = frame;
+                    }
+                }
+            }
+            return frame.duplicate();
+        }
+
+        //una riga lunga va in piu' frame TEXT (vedi Lines), uno dopo l'altro nello stesso buffer
+        private ByteBuffer encode() {
+            int frames = this.type == Frame.TEXT ? Lines.fragments(this.line) : 1;
+            byte[][] texts = new byte[frames][];
+            int size = 0;
+            for (int i = 0, start = 0; i < frames; i++) {
+                int end = this.type == Frame.TEXT ? Lines.fragment(this.line, start) : this.line.length();
+                texts[i] = (frames == 1 ? this.line : this.line.substring(start, end)).getBytes(StandardCharsets.UTF_8);
+                size += Frame.HEADER + texts[i].length;
+                start = end;
+            }
+            ByteBuffer data = ByteBuffer.allocate(size);
+            for (int i = 0; i < frames; i++) {
+                int start = FrameEncoder.begin(data, this.type, i < frames - 1 ? Frame.MORE : 0);
+                data.put(texts[i]);
+                try {
+                    FrameEncoder.seal(data, FrameEncoder.end(data, start), this.shared);
+                } catch (IOException ioe) { //i cifrari condivisibili non falliscono mai
+                    throw new IllegalStateException(ioe);
+                }
+            }
+            data.flip();
+            return data.asReadOnlyBuffer();
+        }
+    }
+
+    private final String name;
+    private final Lobby lobby;  //gestore delle stanze
+    private final CopyOnWriteArrayList<Lobby.Member> members;  //iscritti (letti molto piu' spesso che modificati)
+
+    Room(String name, Lobby lobby) {
+        this.name = name;
+        this.lobby = lobby;
+        this.members = new CopyOnWriteArrayList<>();
+    }
+
+    String name() {
+        return this.name;
+    }
+
+    //chiamati dalla Lobby, che tiene traccia delle stanze vuote
+    void add(Lobby.Member member) {
+        this.members.add(member);
+    }
+
+    void remove(Lobby.Member member) {
+        this.members.remove(member);
+    }
+
+    int size() {
+        return this.members.size();
+    }
+
+    /**
+     * Relays the line to everybody in the room but its author.
+     *
+     * @param from the author
+     * @param line the line to relay
+     */
+    void broadcast(Lobby.Member from, String line) {
+        long start = System.nanoTime();
+        Message message = new Message(Frame.TEXT, line, this.lobby.shared());
+        for (Lobby.Member member : this.members) {
+            if (member != from && !member.deliver(message)) {
+                this.lobby.slow(member);
+            }
+        }
+        Metrics.FANOUT.since(start);
+    }
+
+}
@@ -3,6 +3,8 @@ package chat;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
@@ -11,38 +13,49 @@ import java.net.SocketTimeoutException;
  * This class lets you create the server side of a point-to-point chat.
  * There's no actual difference between the client and the server, but
  * the connection method.
+ * A client that says nothing for a while after connecting speaks the
+ * old text protocol: the chat falls back on it (see LegacyChat).
  * 
  * @author Amedeo
  */
 public class Server {
     
     /**
-     * This is the server IP. It will be used by the Client
+     * This is the server IP. It will be used by the Client, unless
+     * "chat.server" says otherwise
      */
     public static final String IP = "192.168.56.101";   //IP del server
 
     /**
-     * This is the server listening port. It will be used by the Client
+     * This is the server listening port. It will be used by the Client, and
+     * by the server unless "chat.listen" says otherwise (see Listener)
      */
     public static final int PORT = 3939;    //porta di ascolto del server
     
     private ServerSocket ssock; //socket che attendera' connessioni
     private Socket sock;    //socket della connessione avvenuta
+    private PushbackInputStream input;  //input della connessione: il primo byte dice il protocollo del client
     private boolean link;   //se il collegamento e' andato a buon fine sara' impostata a true
     
-    private Server(){
+    private Server(boolean pipe){
         this.link = false;  //verra' settata true se e solo se andra' TUTTO a buon fine
+        PrintStream messages = pipe ? System.err : System.out;  //lo standard output di una pipe e' per i dati
         
         try {
-            //istanzio il socket in ascolto e imposto un timeout di 10 secondi
-            this.ssock = new ServerSocket(Server.PORT);
+            //istanzio il socket in ascolto (il primo configurato) e imposto un timeout di 10 secondi
+            this.ssock = Listener.configured().get(0).socket();
             this.ssock.setSoTimeout(10000);
             
-            System.out.println("Listening...");
+            messages.println("Listening...");
             
             //attendo una connessione
+            long start = System.nanoTime();
             this.sock = this.ssock.accept();    
-            System.out.println("Linked!");
+            this.sock.setTcpNoDelay(true);  //i frame sono gia' raggruppati dal FrameWriter
+            Listener.accepted(this.sock);
+            this.input = new PushbackInputStream(this.sock.getInputStream());
+            Metrics.ACCEPT.since(start);
+            messages.println("Linked!");
             
             //tutto andato a buon fine
             this.link = true;
@@ -81,12 +94,7 @@ public class Server {
     }
     
     private InputStream getInputStream(){
-        try {
-            return sock.getInputStream();
-        } catch (IOException ioe) {
-            System.err.println("Input Socket is not linked");
-        }
-        return null;
+        return this.input;
     }
     
     private OutputStream getOutputStream(){
@@ -101,17 +109,63 @@ public class Server {
     /**
      * It will create a new Server instance, check if it went well, and eventually
      * start the chat, terminating it afterwards.
+     * With "nio [THREADS]" as arguments it will instead serve many clients at
+     * once, relaying their messages to each other, until the process is killed.
+     * "threads [MAX]" does the same, running a Chat per connection on its own
+     * (virtual, if available) thread, up to MAX connections.
+     * "pipe" runs the point-to-point chat as a data pipe (see PipeTerminal).
+     * Addresses, acceptors and socket buffers are configured through system
+     * properties (see Listener); the point-to-point chat listens on the
+     * first address only.
      * 
      * @param args
      */
     public static void main(String[] args){
         
-        Server server = new Server();
+        if(args.length > 0 && args[0].equals("nio")){
+            //numero di cicli: di default uno per processore
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            try {
+                NioServer nio = new NioServer(Listener.configured(), threads);
+                Runtime.getRuntime().addShutdownHook(new Thread(nio::shutdown));
+                nio.start();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't create listening socket");
+            }
+            return;
+        }
+        
+        if(args.length > 0 && args[0].equals("threads")){
+            //numero massimo di connessioni contemporanee
+            int max = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+            try {
+                ThreadServer threads = new ThreadServer(Listener.configured(), max);
+                Runtime.getRuntime().addShutdownHook(new Thread(threads::shutdown));
+                threads.serve();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't create listening socket");
+            }
+            return;
+        }
+        
+        boolean pipe = args.length > 0 && args[0].equals("pipe");
+        Server server = new Server(pipe);
         
         //se la connessione esiste senza problemi
         if(server.isLinked()){
-            //inizio la chat
-            new Chat(server.getInputStream(), server.getOutputStream(), true);
+            //inizio la chat, nel protocollo del client
+            Terminal terminal = pipe ? new PipeTerminal() : new ConsoleTerminal();
+            boolean legacy;
+            try {
+                legacy = LegacyChat.server(server.sock, server.input);
+            } catch (IOException ioe) {
+                legacy = false; //la chat se ne accorgera'
+            }
+            if(legacy){
+                new LegacyChat(server.getInputStream(), server.getOutputStream(), true, terminal);
+            } else {
+                new Chat(server.getInputStream(), server.getOutputStream(), true, terminal, HistoryLog.open("server"), server.sock.getLocalAddress(), server.sock.getInetAddress());
+            }
         }
         
         //chiudo il server
@@ -0,0 +1,184 @@
+package chat;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class lets a client that lost its connection to a NioServer get
+ * its session back, with the messages it missed.
+ * A client asks for a session with a CONTROL frame "SESSION", and the
+ * server answers "SESSION TOKEN FIRST". From then on, both count the TEXT
+ * frames the server sends: the server keeps the last REPLAY of them.
+ * When the connection drops, the session stays parked for GRACE seconds,
+ * still collecting the messages of its room. A new connection asking for
+ * "SESSION TOKEN RECEIVED SENT" gets the session back: the server answers
+ * "SESSION TOKEN FIRST" and sends again the frames from FIRST on (FIRST is
+ * more than RECEIVED if some of them are not kept anymore).
+ * The other way round, the client sends again the messages it wasn't sure
+ * were sent, whole: SENT counts the TEXT frames it sent before them, so
+ * the server skips the ones it had already received, and the message cut
+ * by the drop goes on from where it was.
+ * The client may notice the drop before the server does: a session whose
+ * connection is still open is taken back as well, and its old connection
+ * is closed.
+ * A token the server doesn't know gets a new session instead.
+ *
+ * @author Amedeo
+ */
+final class Sessions {
+
+    /**
+     * Text of the CONTROL frames about sessions
+     */
+    static final String SESSION = "SESSION";
+
+    /**
+     * TEXT frames kept for every session
+     */
+    static final int REPLAY = Math.max(1, Integer.getInteger("chat.replay", 256));
+
+    /**
+     * Seconds a dropped session waits for its client
+     */
+    static final int GRACE = Integer.getInteger("chat.grace", 60);
+
+    private final ConcurrentHashMap<String, NioSession> parked; //sessioni in attesa del loro client
+    private final ConcurrentHashMap<String, NioSession> connected;  //sessioni con la loro connessione, forse gia' caduta
+    private final SecureRandom random;
+
+    Sessions() {
+        this.parked = new ConcurrentHashMap<>();
+        this.connected = new ConcurrentHashMap<>();
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * @return a new token, impossible to guess
+     */
+    String token() {
+        byte[] bytes = new byte[16];
+        this.random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Notes that a session has a connection, new or resumed.
+     *
+     * @param token the token of the session
+     * @param session the session
+     */
+    void connected(String token, NioSession session) {
+        this.connected.put(token, session);
+    }
+
+    void park(String token, NioSession session) {
+        this.connected.remove(token, session);
+        this.parked.put(token, session);
+    }
+
+    /**
+     * Takes a session back: only one connection can get it. If it's not
+     * parked yet, its connection is still open: the caller must close it.
+     *
+     * @param token the token of the session
+     * @return the session, or null if it's unknown or expired
+     */
+    NioSession take(String token) {
+        NioSession session = this.parked.remove(token);
+        return session != null ? session : this.connected.remove(token);
+    }
+
+    /**
+     * Forgets a session that has ended.
+     *
+     * @param token the token of the session
+     * @param session the session
+     */
+    void ended(String token, NioSession session) {
+        this.connected.remove(token, session);
+    }
+
+    /**
+     * Forgets a parked session whose grace period is over.
+     *
+     * @param token the token of the session
+     * @param session the session
+     * @return false if a client has taken it back in the meantime
+     */
+    boolean expire(String token, NioSession session) {
+        return this.parked.remove(token, session);
+    }
+
+    /**
+     * Tells whether a CONTROL frame is about sessions.
+     *
+     * @param text the text of the frame
+     * @return true if it is
+     */
+    static boolean isSession(String text) {
+        return text.equals(Sessions.SESSION) || text.startsWith(Sessions.SESSION + " ");
+    }
+
+    /**
+     * Builds a request (from the client) or an answer (from the server).
+     *
+     * @param token the token
+     * @param count the TEXT frames received (request) or the first one sent again (answer)
+     * @return the text of the CONTROL frame
+     */
+    static String session(String token, long count) {
+        return Sessions.SESSION + " " + token + " " + count;
+    }
+
+    /**
+     * Builds the request to resume a session.
+     *
+     * @param token the token
+     * @param received the TEXT frames received
+     * @param sent the TEXT frames sent before the ones that will be sent again
+     * @return the text of the CONTROL frame
+     */
+    static String session(String token, long received, long sent) {
+        return Sessions.session(token, received) + " " + sent;
+    }
+
+    /**
+     * @param text a CONTROL frame about sessions
+     * @return its token, or null if it asks for a new session
+     */
+    static String token(String text) {
+        String[] parts = text.split(" ");
+        return parts.length == 3 || parts.length == 4 ? parts[1] : null;
+    }
+
+    /**
+     * @param text a CONTROL frame about sessions, with a token
+     * @return its count of TEXT frames, or -1 if it's not valid
+     */
+    static long count(String text) {
+        try {
+            return Math.max(-1, Long.parseLong(text.split(" ")[2]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param text a request to resume a session
+     * @return the TEXT frames the client sent before the ones it sends
+     * again, or -1 if the request doesn't say
+     */
+    static long sent(String text) {
+        try {
+            String[] parts = text.split(" ");
+            return parts.length == 4 ? Math.max(-1, Long.parseLong(parts[3])) : -1;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+}
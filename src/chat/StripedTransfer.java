@@ -0,0 +1,306 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class moves the content of a file over more TCP connections at
+ * once, so that a single stream doesn't limit the throughput on long,
+ * fast links. The receiver listens on an ephemeral port, the sender opens
+ * one connection per stripe: the file is split in as many contiguous
+ * ranges, each read and written with positional I/O by its own thread.
+ * Every connection carries a FILE_CHUNK with the transfer id, the token of
+ * the transfer and its range, then the range as checksummed chunks, just
+ * like FileTransfer does, compressed if the connection is.
+ * The receiver listens only on the local address of the connection and
+ * accepts only the remote address of the connection; the token is drawn
+ * at random for every transfer and sent in the answer, so that nobody else
+ * sharing that address can write in the file.
+ * More streams are used with the "chat.streams" system property, by the
+ * files of a chat (see Uploads and Downloads) whenever both addresses of
+ * the connection are known: point-to-point chats and the clients of
+ * "Server threads". The clients of "Server nio" never stripe, since its
+ * event loop accepts no other connections, and neither do deltas, which
+ * travel on the connection.
+ *
+ * @author Amedeo
+ */
+final class StripedTransfer {
+
+    /**
+     * Streams asked for by the sender
+     */
+    static final int STREAMS = Integer.getInteger("chat.streams", 1);
+
+    private static final int MAX_STREAMS = 16;  //stream aggiuntivi al massimo
+    private static final long MIN_STRIPE = 16L * FileTransfer.CHUNK; //sotto questa dimensione non conviene
+    private static final int TIMEOUT = 30000;   //millisecondi di attesa delle connessioni
+    private static final int BUFFER = 4 * 1024 * 1024;  //buffer dei socket, per i collegamenti lunghi
+
+    private static final SecureRandom RANDOM = new SecureRandom();   //per i token dei trasferimenti
+
+    private StripedTransfer() {
+    }
+
+    /**
+     * @return a new token, to be presented by the sender on every stream
+     */
+    static long token() {
+        return StripedTransfer.RANDOM.nextLong();
+    }
+
+    /**
+     * Decides how many streams to use.
+     *
+     * @param wanted the streams asked for by the sender
+     * @param remaining the bytes still to send
+     * @return the streams to use, 1 if the connection alone is enough
+     */
+    static int streams(int wanted, long remaining) {
+        long stripes = Math.min(Math.min(wanted, MAX_STREAMS), remaining / MIN_STRIPE);
+        return (int) Math.max(1, stripes);
+    }
+
+    /**
+     * Opens the socket the sender will connect to.
+     *
+     * @param local the address of this side of the connection
+     * @return the socket, or null if it can't be opened (the connection will be used)
+     */
+    static ServerSocket listen(InetAddress local) {
+        try {
+            ServerSocket ssock = new ServerSocket();
+            ssock.setReceiveBufferSize(StripedTransfer.BUFFER); //prima del bind, per la window scaling
+            ssock.bind(new InetSocketAddress(local, 0));
+            ssock.setSoTimeout(StripedTransfer.TIMEOUT);
+            return ssock;
+        } catch (IOException ioe) {
+            System.err.println("Couldn't create listening socket");
+            return null;
+        }
+    }
+
+    /**
+     * Sends the content from the given offset over the given number of streams.
+     *
+     * @param file the file
+     * @param id the transfer id
+     * @param token the token in the answer of the receiver
+     * @param from the first byte to send
+     * @param size the size of the file
+     * @param host the receiver
+     * @param port where the receiver is listening
+     * @param streams how many streams
+     * @param compress true if the chunks should be compressed (the receiver can inflate)
+     * @throws IOException if a stripe fails
+     */
+    static void send(FileChannel file, long id, long token, long from, long size, InetAddress host, int port, int streams,
+            boolean compress) throws IOException {
+        Stripe[] stripes = new Stripe[streams];
+        for (int i = 0; i < streams; i++) {
+            long start = StripedTransfer.bound(from, size, streams, i);
+            long end = StripedTransfer.bound(from, size, streams, i + 1);
+            stripes[i] = new Stripe("chat-stripe-" + i, () -> {
+                try (Socket sock = new Socket()) {
+                    sock.setSendBufferSize(StripedTransfer.BUFFER);
+                    sock.setTcpNoDelay(true);   //l'ultimo blocco parte subito
+                    sock.setSoTimeout(StripedTransfer.TIMEOUT);
+                    sock.connect(new InetSocketAddress(host, port), StripedTransfer.TIMEOUT);
+                    Compression compression = new Compression();
+                    if (compress) {
+                        compression.enable();
+                    }
+                    CipherEngine cipher = CipherEngine.configured(false);
+                    FrameWriter writer = new FrameWriter(sock.getOutputStream(), cipher, compression);
+                    writer.seed();
+                    new FrameReader(sock.getInputStream(), cipher).seed();  //il ricevente non invia altro
+
+                    //intestazione: trasferimento, token e intervallo
+                    writer.begin(Frame.FILE_CHUNK, (byte) 0, 4 * Long.BYTES).putLong(id).putLong(token).putLong(start).putLong(end);
+                    writer.end();
+                    FileTransfer.chunks(file, writer, start, end, new CRC32());
+                    writer.flush();
+                    sock.shutdownOutput();
+
+                    //attendo che il ricevente chiuda: ha verificato tutto l'intervallo
+                    if (sock.getInputStream().read() != -1) {
+                        throw new ProtocolException("Unexpected data on a stripe");
+                    }
+                }
+            });
+        }
+        StripedTransfer.run(stripes);
+    }
+
+    /**
+     * Receives the content from the verified part of the file up to its
+     * end, over the given number of streams. When it returns, the whole
+     * file is verified.
+     *
+     * @param ssock the socket returned by listen(), closed when done
+     * @param peer the address of the sender: connections from elsewhere are closed
+     * @param token the token in the answer
+     * @param file the partial file
+     * @param id the transfer id
+     * @param size the size of the file
+     * @param streams how many streams
+     * @throws IOException if a stripe fails
+     */
+    static void receive(ServerSocket ssock, InetAddress peer, long token, PartialFile file, long id, long size, int streams) throws IOException {
+        long from = file.offset();
+        boolean[] claimed = new boolean[streams];   //intervalli gia' ricevuti (protetti dal lock dell'array)
+
+        Stripe[] stripes = new Stripe[streams];
+        IOException refused = null; //connessione mai arrivata
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(StripedTransfer.TIMEOUT);
+        try {
+            for (int i = 0; i < streams; i++) {
+                Socket sock = StripedTransfer.accept(ssock, peer, deadline);
+                stripes[i] = new Stripe("chat-stripe-" + i, () -> {
+                    try (Socket link = sock) {
+                        link.setSoTimeout(StripedTransfer.TIMEOUT);
+                        CipherEngine cipher = CipherEngine.configured(true);
+                        new FrameWriter(link.getOutputStream(), cipher).seed();    //anche chi solo riceve
+                        FrameReader reader = new FrameReader(link.getInputStream(), cipher, new Compression());
+                        Frame frame = new Frame();
+
+                        FileTransfer.next(reader, frame);
+                        if (frame.payload.getLong() != id || frame.payload.getLong() != token) {
+                            throw new ProtocolException("Stripe of another transfer");
+                        }
+                        long start = frame.payload.getLong();
+                        long end = frame.payload.getLong();
+                        int index = StripedTransfer.index(from, size, streams, start, end);
+                        synchronized (claimed) {
+                            if (index < 0 || claimed[index]) {
+                                throw new ProtocolException("Unexpected stripe " + start + "-" + end);
+                            }
+                            claimed[index] = true;
+                        }
+
+                        CRC32 crc = new CRC32();
+                        long position = start;
+                        do {
+                            FileTransfer.next(reader, frame);
+                            position = file.write(frame.payload, position, crc);
+                        } while (!frame.is(Frame.LAST));
+                        if (position != end) {
+                            throw new ProtocolException("Stripe ended at " + position + " instead of " + end);
+                        }
+                    }   //chiudendo, confermo al mittente
+                });
+                stripes[i].start();
+            }
+        } catch (IOException ioe) {
+            refused = ioe;
+        } finally {
+            ssock.close();
+        }
+
+        StripedTransfer.run(stripes);   //attendo comunque gli intervalli gia' avviati
+        if (refused != null) {
+            throw refused;
+        }
+        file.verified(size);    //tutti gli intervalli sono arrivati e verificati
+    }
+
+    //attende la prossima connessione del mittente, chiudendo quelle arrivate da altri indirizzi
+    private static Socket accept(ServerSocket ssock, InetAddress peer, long deadline) throws IOException {
+        while (true) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {    //chi si connette di continuo non prolunga l'attesa
+                throw new SocketTimeoutException("No stripe from " + peer.getHostAddress());
+            }
+            ssock.setSoTimeout((int) left);
+            Socket sock = ssock.accept();
+            if (sock.getInetAddress().equals(peer)) {
+                return sock;
+            }
+            System.err.println("Refused stripe from " + sock.getInetAddress().getHostAddress());
+            sock.close();
+        }
+    }
+
+    //inizio dell'intervallo i-esimo (la fine e' l'inizio del successivo), allineato ai blocchi
+    private static long bound(long from, long size, int streams, int i) {
+        if (i == streams) {
+            return size;
+        }
+        long stripe = (size - from) / streams;
+        return Math.min(size, from + (stripe * i) / FileTransfer.CHUNK * FileTransfer.CHUNK);
+    }
+
+    private static int index(long from, long size, int streams, long start, long end) {
+        for (int i = 0; i < streams; i++) {
+            if (StripedTransfer.bound(from, size, streams, i) == start && StripedTransfer.bound(from, size, streams, i + 1) == end) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //avvia (se serve) e attende tutti gli intervalli, rilanciando il primo errore
+    private static void run(Stripe[] stripes) throws IOException {
+        for (Stripe stripe : stripes) {
+            if (stripe != null && stripe.getState() == Thread.State.NEW) {
+                stripe.start();
+            }
+        }
+        IOException failure = null;
+        for (Stripe stripe : stripes) {
+            if (stripe == null) {
+                continue;
+            }
+            try {
+                stripe.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while moving a file", ie);
+            }
+            if (failure == null) {
+                failure = stripe.failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    //un lavoro che puo' fallire con un'IOException
+    private interface Work {
+
+        void run() throws IOException;
+    }
+
+    //thread che muove un intervallo, ricordandosi l'eventuale errore
+    private static final class Stripe extends Thread {
+
+        private final Work work;
+        private volatile IOException failure;
+
+        private Stripe(String name, Work work) {
+            super(name);
+            this.work = work;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.work.run();
+            } catch (IOException ioe) {
+                this.failure = ioe;
+            }
+        }
+    }
+
+}
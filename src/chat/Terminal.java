@@ -0,0 +1,118 @@
+package chat;
+
+import java.util.List;
+
+/**
+ * This interface is what Chat uses to talk with its local user:
+ * it reads what has to be sent and shows what has been received.
+ *
+ * @author Amedeo
+ */
+interface Terminal {
+
+    /**
+     * Shows the prompt and waits for the next line to send.
+     *
+     * @param prompt the local prompt
+     * @return the line, or null if there's nothing more to send
+     */
+    String readLine(String prompt);
+
+    /**
+     * Shows a line to the local user.
+     *
+     * @param line the line, already prefixed with its prompt
+     */
+    void show(String line);
+
+    /**
+     * Shows a message received from the peer. By default every line is
+     * shown with its prompt.
+     *
+     * @param prompt the prompt of the peer
+     * @param lines the lines of the message
+     */
+    default void message(String prompt, List<String> lines) {
+        for (String line : lines) {
+            this.show(prompt + line);
+        }
+    }
+
+    /**
+     * Shows the line left open by a message of the peer that never ended,
+     * because the peer closed the chat in the middle of it (like the last
+     * line of a pipe without a line break). By default it's shown as any
+     * other line.
+     *
+     * @param prompt the prompt of the peer
+     * @param line the line left open
+     */
+    default void unfinished(String prompt, String line) {
+        this.show(prompt + line);
+    }
+
+    /**
+     * Tells whether a person is typing. If not, what is read is data: it's
+     * sent as it is (never as a command, nor saved in the history) and
+     * prompts have no colors.
+     *
+     * @return true by default
+     */
+    default boolean interactive() {
+        return true;
+    }
+
+    /**
+     * Tells whether the last line returned by readLine() must be sent as a
+     * CONTROL frame instead of a message, like the updates about presence
+     * of multi-client servers.
+     *
+     * @return false by default
+     */
+    default boolean control() {
+        return false;
+    }
+
+    /**
+     * Tells whether the last line returned by readLine() is cut and goes on
+     * in the next one, like a piece of a line longer than the buffer of a
+     * pipe: it's sent flagged as MORE, so the peer joins the two.
+     *
+     * @return false by default
+     */
+    default boolean more() {
+        return false;
+    }
+
+    /**
+     * Tells whether the peer is a client of a multi-client server, that
+     * anybody can be: its files are kept apart and limited in size (see
+     * Downloads.uploads()).
+     *
+     * @return false by default
+     */
+    default boolean shared() {
+        return false;
+    }
+
+    /**
+     * Tells that the peer changed its name or its status. By default the
+     * notice is shown.
+     *
+     * @param notice the line describing the change, already prefixed with its prompt
+     * @param name the name of the peer
+     * @param status the status of the peer
+     */
+    default void changed(String notice, String name, Status status) {
+        this.show(notice);
+    }
+
+    /**
+     * Handles a command received from the peer that Chat doesn't know,
+     * like the ones about rooms. By default it's ignored.
+     *
+     * @param line the command
+     */
+    default void command(String line) {
+    }
+}
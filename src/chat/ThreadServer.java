@@ -0,0 +1,233 @@
+package chat;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class lets many clients chat through the same server process,
+ * running a plain blocking Chat for every connection on its own thread.
+ * Threads are virtual when the JVM supports them, and so are the threads
+ * every Chat starts (see newThread()): thousands of connections don't
+ * need thousands of platform threads.
+ * The server can listen on several addresses (see Listener); every
+ * acceptor has a thread of its own.
+ *
+ * @author Amedeo
+ */
+final class ThreadServer {
+
+    private static final ThreadFactory FACTORY = ThreadServer.factory();   //crea i thread delle connessioni e delle loro chat
+
+    private static final long MIN_PAUSE = 10;   //attesa dopo un errore di accept, in millisecondi
+    private static final long MAX_PAUSE = 1000; //raddoppia ad ogni errore consecutivo, fino a qui
+    private static final int REFUSE_TIMEOUT = 5000; //millisecondi di attesa del client rifiutato
+
+    private final List<Listener> listeners; //dove ascoltare
+    private final ServerSocket[] sockets;   //socket in ascolto, uno per acceptor
+    private final Semaphore slots;  //connessioni ancora accettabili
+    private final ExecutorService threads;  //un thread per connessione
+    private final Lobby lobby;  //partecipanti alla chat
+    private final Map<Socket, LobbyTerminal> links;    //connessioni attive
+
+    private volatile boolean over;  //se il server e' stato chiuso, settato a true
+
+    /**
+     * Binds the listening sockets; nothing is served until serve() is called.
+     *
+     * @param listeners where to listen
+     * @param max the maximum number of concurrent connections
+     * @throws IOException if a socket can't be bound (the ones already bound are closed)
+     */
+    ThreadServer(List<Listener> listeners, int max) throws IOException {
+        ArrayList<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (Listener listener : listeners) {
+                sockets.addAll(Arrays.asList(listener.sockets()));
+            }
+        } catch (IOException ioe) {
+            for (ServerSocket ssock : sockets) {
+                ssock.close();
+            }
+            throw ioe;
+        }
+        this.listeners = listeners;
+        this.sockets = sockets.toArray(new ServerSocket[0]);
+        this.slots = new Semaphore(max);
+        this.threads = ThreadServer.newExecutor();
+        this.lobby = new Lobby();
+        this.links = new ConcurrentHashMap<>();
+        this.over = false;
+    }
+
+    //thread virtuali se disponibili (Java 21+), altrimenti thread normali
+    private static ThreadFactory factory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            return Thread::new;
+        }
+    }
+
+    //un thread per connessione, dalla stessa fabbrica
+    private static ExecutorService newExecutor() {
+        try {
+            Method executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) executor.invoke(null, ThreadServer.FACTORY);
+        } catch (ReflectiveOperationException roe) {
+            return Executors.newCachedThreadPool(ThreadServer.FACTORY);
+        }
+    }
+
+    /**
+     * Creates a thread, not started yet, the same way as the threads of
+     * the connections: virtual when the JVM supports them.
+     *
+     * @param task what the thread runs
+     * @param name the name of the thread
+     * @return the thread
+     */
+    static Thread newThread(Runnable task, String name) {
+        Thread thread = ThreadServer.FACTORY.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Accepts connections until shutdown() is called: the first acceptor
+     * runs on the calling thread, the others on threads of their own.
+     */
+    void serve() {
+        System.out.println("Listening on " + this.listeners + "...");
+
+        for (int i = 1; i < this.sockets.length; i++) {
+            ServerSocket ssock = this.sockets[i];
+            new Thread(() -> this.accept(ssock), "chat-acceptor-" + i).start();
+        }
+        this.accept(this.sockets[0]);
+    }
+
+    //accetta le connessioni di un socket in ascolto
+    private void accept(ServerSocket ssock) {
+        long pause = ThreadServer.MIN_PAUSE;
+        while (!over) {
+            Socket sock;
+            long start = System.nanoTime();
+            try {
+                sock = ssock.accept();
+                pause = ThreadServer.MIN_PAUSE;
+            } catch (IOException ioe) {
+                if (over || ssock.isClosed()) { //nessuno accettera' piu' da qui
+                    return;
+                }
+                System.err.println("Couldn't accept connection");
+                try {   //un errore che persiste (troppi file aperti) non deve diventare un ciclo a vuoto
+                    Thread.sleep(pause);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                pause = Math.min(2 * pause, ThreadServer.MAX_PAUSE);
+                continue;
+            }
+
+            if (!this.slots.tryAcquire()) { //troppe connessioni: rifiuto
+                ThreadServer.newThread(() -> this.refuse(sock), "chat-refuse").start();    //il cifrario puo' dover attendere il client
+                continue;
+            }
+
+            LobbyTerminal terminal = new LobbyTerminal(this.lobby);
+            this.links.put(sock, terminal);
+            this.threads.execute(() -> {
+                Metrics.ACCEPT.since(start);    //connessione pronta a servire
+                try {
+                    sock.setTcpNoDelay(true);   //i frame sono gia' raggruppati dal FrameWriter
+                    Listener.accepted(sock);
+                    //una conversazione per indirizzo remoto
+                    HistoryLog history = HistoryLog.open(sock.getInetAddress().getHostAddress());
+                    new Chat(sock.getInputStream(), sock.getOutputStream(), true, terminal, history, sock.getLocalAddress(), sock.getInetAddress());
+                } catch (IOException ioe) {
+                    System.err.println("Connection socket is not linked");
+                } finally {
+                    this.release(sock);
+                }
+            });
+        }
+    }
+
+    private void refuse(Socket sock) {
+        try {
+            sock.setSoTimeout(ThreadServer.REFUSE_TIMEOUT);
+            CipherEngine cipher = CipherEngine.configured(true);
+            FrameWriter out = new FrameWriter(sock.getOutputStream(), cipher);
+            out.seed();
+            new FrameReader(sock.getInputStream(), cipher).seed();
+            out.text(Frame.TEXT, "Too many connections, try again later");
+            out.flush();
+        } catch (IOException ioe) { //se ne andra' comunque
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close connection socket");
+            }
+        }
+    }
+
+    private void release(Socket sock) {
+        LobbyTerminal terminal = this.links.remove(sock);
+        if (terminal != null) {
+            terminal.close();
+        }
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close connection socket");
+        }
+        this.slots.release();
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits for their chats to end.
+     */
+    void shutdown() {
+        this.over = true;
+        for (ServerSocket ssock : this.sockets) {
+            try {
+                ssock.close();
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close listening socket");
+            }
+        }
+
+        for (Map.Entry<Socket, LobbyTerminal> link : this.links.entrySet()) {
+            link.getValue().close();    //sveglio chi aspetta di inviare...
+            try {
+                link.getKey().close();  //...e chi aspetta di ricevere
+            } catch (IOException ioe) {
+                System.err.println("Couldn't close connection socket");
+            }
+        }
+
+        this.threads.shutdown();
+        try {
+            if (!this.threads.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.err.println("Some chats didn't terminate");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package chat;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs tasks after a delay, for as many connections as needed:
+ * a hashed timer wheel. Time is divided in ticks of TICK milliseconds, and
+ * every timeout goes in the slot of the tick it expires in, modulo SLOTS;
+ * timeouts farther than a whole turn wait for as many turns in the same
+ * slot. Scheduling and cancelling cost the same however many timeouts are
+ * pending, and every tick looks only at its own slot: nothing is sorted.
+ * The price is precision, a timeout runs up to a tick late.
+ * Timeouts can be scheduled and cancelled by any thread, but a wheel is
+ * advanced, and its tasks run, by a single thread: an EventLoop advances
+ * its own, and start() gives a wheel a thread of its own.
+ *
+ * @author Amedeo
+ */
+final class TimerWheel {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);    //durata di un tick
+    private static final int SLOTS = 512;   //caselle: un giro dura SLOTS * TICK (51.2 secondi)
+
+    /**
+     * A task waiting in the wheel.
+     */
+    static final class Timeout {
+
+        private final long deadline;    //istante di scadenza, in nanosecondi
+        private final Runnable task;
+        private final AtomicBoolean done;   //se e' stato eseguito o annullato, settato a true
+        private long rounds;    //giri che mancano (solo per il thread della ruota)
+        private Timeout next;   //successivo nella stessa casella (solo per il thread della ruota)
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+            this.done = new AtomicBoolean();
+        }
+
+        /**
+         * Cancels the task, if it hasn't run yet. The timeout leaves the
+         * wheel the next time its slot is looked at.
+         *
+         * @return false if the task has already run, or was already cancelled
+         */
+        boolean cancel() {
+            return this.done.compareAndSet(false, true);
+        }
+    }
+
+    private final long start;   //istante del tick 0
+    private final Timeout[] slots;  //liste di timeout per casella (solo per il thread della ruota)
+    private final ConcurrentLinkedQueue<Timeout> incoming;  //timeout non ancora messi nella loro casella
+    private long tick;  //prossimo tick da guardare (solo per il thread della ruota)
+    private int size;   //timeout nelle caselle (solo per il thread della ruota)
+
+    TimerWheel() {
+        this.start = System.nanoTime();
+        this.slots = new Timeout[TimerWheel.SLOTS];
+        this.incoming = new ConcurrentLinkedQueue<>();
+        this.tick = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Gives the wheel a daemon thread that advances it.
+     *
+     * @param name the name of the thread
+     * @return the wheel itself
+     */
+    TimerWheel start(String name) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                long wait = this.advance();
+                LockSupport.parkNanos(wait < 0 ? TimerWheel.TICK : wait);   //da vuota guardo comunque ogni tick
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Schedules a task. It may be called by any thread.
+     *
+     * @param delay the delay
+     * @param unit the unit of the delay
+     * @param task the task, run by the thread of the wheel
+     * @return the timeout, to cancel it
+     */
+    Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        Timeout timeout = new Timeout(System.nanoTime() + unit.toNanos(delay), task);
+        this.incoming.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the tasks that are due. It must be called by the thread of the
+     * wheel, often enough: at least once every tick while something is
+     * pending.
+     *
+     * @return the nanoseconds until the next tick, or -1 if nothing is pending
+     */
+    long advance() {
+        long now = System.nanoTime();
+        long current = (now - this.start) / TimerWheel.TICK;
+        if (this.size == 0 && this.tick < current) {    //niente nelle caselle: salto i tick passati
+            this.tick = current;
+        }
+        while (this.tick <= current) {
+            this.transfer();
+            this.expire(this.slots[(int) (this.tick & (TimerWheel.SLOTS - 1))]);
+            this.tick++;
+        }
+        if (this.size == 0 && this.incoming.isEmpty()) {
+            return -1;
+        }
+        return this.start + this.tick * TimerWheel.TICK - now;
+    }
+
+    //mette i nuovi timeout nelle loro caselle
+    private void transfer() {
+        Timeout timeout;
+        while ((timeout = this.incoming.poll()) != null) {
+            if (timeout.done.get()) {   //annullato prima ancora di entrare
+                continue;
+            }
+            long due = (timeout.deadline - this.start + TimerWheel.TICK - 1) / TimerWheel.TICK;   //primo tick dopo la scadenza
+            due = Math.max(due, this.tick); //gia' scaduto: al tick attuale
+            timeout.rounds = (due - this.tick) / TimerWheel.SLOTS;
+            int slot = (int) (due & (TimerWheel.SLOTS - 1));
+            timeout.next = this.slots[slot];
+            this.slots[slot] = timeout;
+            this.size++;
+        }
+    }
+
+    //esegue i timeout scaduti della casella, e toglie quelli annullati
+    private void expire(Timeout head) {
+        Timeout previous = null;
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            boolean due = timeout.rounds == 0;
+            if (due || timeout.done.get()) {    //lascia la ruota
+                if (previous == null) {
+                    this.slots[(int) (this.tick & (TimerWheel.SLOTS - 1))] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                this.size--;
+                if (due && timeout.done.compareAndSet(false, true)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException re) {
+                        System.err.println("Task failed: " + re);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+}
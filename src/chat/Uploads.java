@@ -0,0 +1,449 @@
+package chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * This class is the sending side of the file transfers of a connection:
+ * instead of sending a whole file at once, the writer asks for one chunk
+ * at a time, in between the messages, so a large file doesn't freeze the
+ * conversation.
+ * Every file has a channel of its own, and sends only as many bytes as
+ * its receiver granted (see FileTransfer): files that are waiting for
+ * credits, or for the answer to their offer, don't hold the others back.
+ * Ready files take turns, one chunk each.
+ * A file is offered with its digest, computed by a thread of its own, and
+ * offers leave in the order the files were started. If the receiver sends
+ * the signature of a basis before its answer, the chunks carry a delta
+ * (see Delta); if it answers PRESENT nothing is sent at all.
+ * The writer owns the instance; answers and credits are handed over by
+ * the reader through answer() and grant(), which wake the writer up.
+ *
+ * @author Amedeo
+ */
+final class Uploads {
+
+    /**
+     * Messages the writer sends in a row, while chunks are ready, before
+     * it sends one chunk: "chat.weight" (16 by default)
+     */
+    static final int WEIGHT = Math.max(1, Integer.getInteger("chat.weight", 16));
+
+    private static final long ANSWER_TIMEOUT = TimeUnit.SECONDS.toNanos(30);    //attesa massima della risposta ad un'offerta
+    private static final int CHANNELS = 256;
+
+    /**
+     * What happens to a file.
+     */
+    interface Report {
+
+        /**
+         * Called on the writer thread when a transfer ends.
+         *
+         * @param path the file
+         * @param bytes the bytes of the file sent
+         * @param reused the bytes the receiver already had: from an
+         * interrupted attempt, from a basis, or the whole file
+         * @param started the System.nanoTime() of the start
+         * @param error why the transfer failed, or null if it succeeded
+         */
+        void ended(File path, long bytes, long reused, long started, String error);
+    }
+
+    //un file in uscita
+    private static final class Upload {
+
+        private final File path;
+        private final FileInputStream input;
+        private final FileChannel content;
+        private final long size;
+        private final long id;
+        private final byte channel;
+        private final long started;
+        private final FutureTask<byte[]> digest;    //calcolato in background, prima dell'offerta
+        private long offered;   //istante dell'offerta (0 finche' non e' inviata)
+        private long offset;    //prossimo byte da inviare (-1 finche' non arriva la risposta)
+        private long from;  //byte del ricevente prima dell'inizio
+        private FutureTask<Void> stripes;   //invio sugli stream aggiuntivi (null se si usa la connessione)
+        private Delta.Signature basis;  //firma della base del ricevente (null se non ne ha)
+        private Delta.Encoder delta;    //invio come delta (null se si invia tutto il file)
+
+        private Upload(File path, byte channel) throws IOException {
+            this.path = path;
+            this.input = new FileInputStream(path);
+            this.content = this.input.getChannel();
+            this.size = this.content.size();
+            this.id = FileTransfer.id(path, this.size);
+            this.channel = channel;
+            this.started = System.nanoTime();
+            this.digest = new FutureTask<>(() -> Delta.digest(path));
+            this.offset = -1;
+        }
+    }
+
+    private final InetAddress peer; //indirizzo del ricevente, per gli stream aggiuntivi (null se sconosciuto)
+    private final Runnable wake;    //sveglia il writer
+    private final Report report;
+    private final ArrayDeque<Upload> pending;   //in attesa del digest, nell'ordine in cui vanno offerti
+    private final ArrayDeque<Upload> active;    //offerti, nell'ordine dei turni
+    private final AtomicLongArray credits;  //byte concessi dal ricevente, per canale
+    private final ConcurrentLinkedQueue<String> answers;    //risposte alle offerte, dal reader
+    private final CRC32 crc;
+    private int next;   //prossimo canale da assegnare
+
+    /**
+     * Creates the sending side of a connection.
+     *
+     * @param peer the address of the receiver, for more streams (null if unknown)
+     * @param wake wakes the writer up: it must not block
+     * @param report what happens to the files
+     */
+    Uploads(InetAddress peer, Runnable wake, Report report) {
+        this.peer = peer;
+        this.wake = wake;
+        this.report = report;
+        this.pending = new ArrayDeque<>();
+        this.active = new ArrayDeque<>();
+        this.credits = new AtomicLongArray(Uploads.CHANNELS);
+        this.answers = new ConcurrentLinkedQueue<>();
+        this.crc = new CRC32();
+        this.next = Frame.FIRST_BULK;
+    }
+
+    /**
+     * Starts a file on a channel of its own: it's offered, after the
+     * files started before, as soon as its digest is ready. If the file
+     * can't be read the transfer ends at once.
+     *
+     * @param path the file
+     */
+    void start(File path) {
+        byte channel = this.channel();
+        if (channel == 0) {
+            this.report.ended(path, 0, 0, System.nanoTime(), "too many files at once");
+            return;
+        }
+        Upload upload;
+        try {
+            upload = new Upload(path, channel);
+        } catch (IOException ioe) {
+            this.report.ended(path, 0, 0, System.nanoTime(), "couldn't open file");
+            return;
+        }
+        this.credits.set(channel & 0xFF, 0);    //il ricevente concede la finestra dopo la risposta
+        this.pending.offer(upload);
+        if (upload.size < Delta.MIN_SIZE) { //si legge in un attimo
+            upload.digest.run();
+        } else {
+            Thread digester = new Thread(() -> {
+                upload.digest.run();
+                this.wake.run();
+            }, "chat-digest");
+            digester.setDaemon(true);
+            digester.start();
+        }
+    }
+
+    /**
+     * Hands over the answer to an offer, or the signature of a basis that
+     * comes before it. Called by the reader.
+     *
+     * @param text the text of the CONTROL frame
+     */
+    void answer(String text) {
+        this.answers.offer(text);
+        this.wake.run();
+    }
+
+    /**
+     * Hands over the bytes granted on a channel. Called by the reader.
+     *
+     * @param text the text of the CONTROL frame
+     */
+    void grant(String text) {
+        String[] fields = text.split(" ");
+        try {
+            this.credits.addAndGet(Integer.parseInt(fields[1]) & 0xFF, Long.parseLong(fields[2]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {    //lo ignoro
+            return;
+        }
+        this.wake.run();
+    }
+
+    /**
+     * Applies the answers received, and ends the offers that got none.
+     *
+     * @param writer the frame writer of the connection
+     */
+    void update(FrameWriter writer) {
+        String answer;
+        while ((answer = this.answers.poll()) != null) {
+            if (Delta.isBlocks(answer)) {
+                this.blocks(answer);
+                continue;
+            }
+            for (Upload upload : this.active) {
+                FileTransfer.Answer answered = FileTransfer.answered(answer, upload.id);
+                if (answered != null && upload.offset < 0) {    //le risposte ad offerte precedenti vengono scartate
+                    this.answered(upload, answered, writer.compressing());
+                    break;
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        for (Iterator<Upload> i = this.active.iterator(); i.hasNext();) {
+            Upload upload = i.next();
+            if (upload.offset < 0 && now - upload.offered > Uploads.ANSWER_TIMEOUT) {
+                i.remove();
+                this.end(upload, "no answer to the offer of the file");
+            }
+        }
+    }
+
+    /**
+     * @return true if a file can be offered, or send a chunk, now
+     */
+    boolean ready() {
+        if (!this.pending.isEmpty() && this.pending.peek().digest.isDone()) {
+            return true;
+        }
+        for (Upload upload : this.active) {
+            if (this.ready(upload)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a file is waiting for its digest, an answer, credits
+     * or its streams: the writer must not wait forever
+     */
+    boolean waiting() {
+        return !this.pending.isEmpty() || !this.active.isEmpty();
+    }
+
+    /**
+     * Sends the next offer, if its digest is ready, or one chunk of the
+     * next ready file, and lets the others go first next time.
+     *
+     * @param writer the frame writer of the connection
+     * @throws IOException if the stream can't be written: every transfer ends
+     */
+    void next(FrameWriter writer) throws IOException {
+        if (!this.pending.isEmpty() && this.pending.peek().digest.isDone()) {
+            this.offer(this.pending.poll(), writer);
+            return;
+        }
+        for (int turns = this.active.size(); turns > 0; turns--) {
+            Upload upload = this.active.poll();
+            if (!this.ready(upload)) {
+                this.active.offer(upload);
+                continue;
+            }
+
+            int payload;
+            try {
+                try {
+                    payload = this.chunk(upload, writer);
+                } catch (ProtocolException pe) {    //il file e' cambiato: chiudo con un ultimo blocco vuoto, che il ricevente rifiutera'
+                    FileTransfer.chunk(upload.content, writer, upload.channel, upload.size, upload.size, this.crc);
+                    this.end(upload, pe.getMessage());
+                    return;
+                }
+            } catch (IOException ioe) {
+                this.active.offer(upload);
+                this.abort("connection lost");
+                throw ioe;
+            }
+            this.credits.addAndGet(upload.channel & 0xFF, -payload);
+            if (upload.offset == upload.size) { //era l'ultimo
+                this.end(upload, this.striped(upload));
+            } else {
+                this.active.offer(upload);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Ends every transfer in progress: the receiver keeps what it verified,
+     * and the file can be sent again to resume.
+     *
+     * @param reason why
+     */
+    void abort(String reason) {
+        Upload upload;
+        while ((upload = this.pending.poll()) != null) {
+            this.end(upload, reason);
+        }
+        while ((upload = this.active.poll()) != null) {
+            this.end(upload, reason);
+        }
+    }
+
+    //l'offerta, con il digest se si e' riusciti a calcolarlo
+    private void offer(Upload upload, FrameWriter writer) throws IOException {
+        byte[] digest;
+        try {
+            digest = upload.digest.get();
+        } catch (ExecutionException ee) {   //senza digest arriva tutto il file
+            digest = null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            digest = null;
+        }
+        upload.offered = System.nanoTime();
+        this.active.offer(upload);
+        try {
+            FileTransfer.offer(writer, upload.channel, upload.size, upload.id, this.peer == null ? 1 : StripedTransfer.STREAMS, digest);
+        } catch (IOException ioe) {
+            this.abort("connection lost");
+            throw ioe;
+        }
+    }
+
+    //il prossimo blocco, del file o del delta (la dimensione del payload)
+    private int chunk(Upload upload, FrameWriter writer) throws IOException {
+        if (upload.delta != null) {
+            int payload = upload.delta.next(writer, upload.channel, this.crc);  //prepara tutto prima di iniziare il frame
+            upload.offset = upload.delta.offset();
+            return payload;
+        }
+        int sent;
+        try {
+            sent = FileTransfer.chunk(upload.content, writer, upload.channel, upload.offset, upload.size, this.crc);
+        } catch (ProtocolException pe) {
+            writer.cancel();
+            throw pe;
+        }
+        upload.offset += sent;
+        return FileTransfer.payload(sent);
+    }
+
+    private boolean ready(Upload upload) {
+        if (upload.offset < 0 || upload.stripes != null && !upload.stripes.isDone()) {
+            return false;
+        }
+        int length = upload.delta != null ? FileTransfer.CHUNK : (int) Math.min(FileTransfer.CHUNK, upload.size - upload.offset);
+        return this.credits.get(upload.channel & 0xFF) >= FileTransfer.payload(length);
+    }
+
+    //la firma della base del ricevente, che precede la risposta
+    private void blocks(String text) {
+        String[] fields = text.split(" ");
+        for (Upload upload : this.active) {
+            if (upload.offset < 0 && fields.length > 1 && fields[1].equals(Long.toHexString(upload.id))) {
+                try {
+                    if (upload.basis == null) {
+                        upload.basis = Delta.Signature.first(text);
+                    } else {
+                        upload.basis.add(text);
+                    }
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) { //firma inutilizzabile: il delta sara' tutto LITERAL
+                    upload.basis = Delta.Signature.empty();
+                }
+                return;
+            }
+        }
+    }
+
+    //la risposta del ricevente: da dove iniziare, e su quanti stream
+    private void answered(Upload upload, FileTransfer.Answer answer, boolean compressing) {
+        if (answer.offset == FileTransfer.PRESENT) {    //ce l'ha gia': non invio nulla
+            this.active.remove(upload);
+            upload.from = upload.size;
+            this.end(upload, null);
+            return;
+        }
+        if (answer.offset < 0) {    //rifiutato: non invio altro
+            this.active.remove(upload);
+            this.end(upload, "refused");
+            return;
+        }
+        if (answer.offset > upload.size) {
+            this.active.remove(upload);
+            this.end(upload, "asked to resume at " + answer.offset + " of " + upload.size + " bytes");
+            return;
+        }
+        upload.from = answer.offset;
+        upload.offset = answer.offset;
+        if (upload.basis != null && answer.offset == 0) {   //il ricevente ha una base: invio il delta, sempre sulla connessione
+            upload.delta = new Delta.Encoder(upload.content, upload.size, upload.basis.complete() ? upload.basis : Delta.Signature.empty());
+            upload.from = 0;
+        } else if (answer.streams > 1 && this.peer != null) {  //il contenuto viaggia sugli stream aggiuntivi
+            upload.stripes = new FutureTask<>(() -> {
+                try {
+                    StripedTransfer.send(upload.content, upload.id, answer.token, answer.offset, upload.size, this.peer, answer.port, answer.streams, compressing);
+                } finally {
+                    this.wake.run();    //la connessione chiude comunque il trasferimento
+                }
+                return null;
+            });
+            upload.offset = upload.size;    //solo l'ultimo blocco, vuoto
+            Thread sender = new Thread(upload.stripes, "chat-stripes");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    //esito dell'invio sugli stream aggiuntivi (null se e' andato bene, o non c'era)
+    private String striped(Upload upload) {
+        if (upload.stripes == null) {
+            return null;
+        }
+        try {
+            upload.stripes.get();
+            return null;
+        } catch (ExecutionException ee) {
+            return ee.getCause().getMessage();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return "interrupted";
+        }
+    }
+
+    private void end(Upload upload, String error) {
+        try {
+            upload.input.close();
+        } catch (IOException ioe) {
+            System.err.println("Couldn't close file");
+        }
+        long reused = upload.delta != null ? upload.delta.reused() : Math.max(upload.from, 0);
+        long sent = error == null ? upload.size - reused : 0;
+        this.report.ended(upload.path, sent, reused, upload.started, error);
+    }
+
+    //un canale libero, a turno per non riusare subito quello appena chiuso (0 se sono tutti occupati)
+    private byte channel() {
+        for (int tries = Frame.FIRST_BULK; tries < Uploads.CHANNELS; tries++) {
+            int channel = this.next;
+            this.next = channel + 1 < Uploads.CHANNELS ? channel + 1 : Frame.FIRST_BULK;
+            boolean busy = false;
+            for (Upload upload : this.pending) {
+                busy |= (upload.channel & 0xFF) == channel;
+            }
+            for (Upload upload : this.active) {
+                busy |= (upload.channel & 0xFF) == channel;
+            }
+            if (!busy) {
+                return (byte) channel;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,134 @@
+package chat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Frames encrypted with AES-GCM are read back only as they were sent:
+ * changed, replayed, reordered or moved to another connection, they
+ * don't decrypt.
+ *
+ * @author Amedeo
+ */
+public class AesGcmCipherTest {
+
+    private static final String KEY = "test passphrase";
+    private static final int HEADER = 0x02010001;  //versione, tipo, flag e canale
+
+    private AesGcmCipher client;
+    private AesGcmCipher server;
+
+    @Before
+    public void setUp() throws IOException {
+        this.client = new AesGcmCipher(KEY, false);
+        this.server = new AesGcmCipher(KEY, true);
+        AesGcmCipherTest.exchange(this.client, this.server);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (String text : new String[]{"first", "second", ""}) {
+            ByteBuffer sealed = this.seal(this.client, text);
+            assertNotEquals(text, AesGcmCipherTest.text(sealed.duplicate()));
+            this.server.decrypt(HEADER, sealed);
+            assertEquals(text, AesGcmCipherTest.text(sealed));
+        }
+        ByteBuffer answer = this.seal(this.server, "answer");   //l'altra direzione ha la sua chiave
+        this.client.decrypt(HEADER, answer);
+        assertEquals("answer", AesGcmCipherTest.text(answer));
+    }
+
+    @Test
+    public void testTamperedPayload() throws IOException {
+        ByteBuffer sealed = this.seal(this.client, "hello");
+        sealed.put(1, (byte) (sealed.get(1) ^ 1));
+        AesGcmCipherTest.refused(this.server, HEADER, sealed);
+    }
+
+    @Test
+    public void testTamperedHeader() throws IOException {
+        ByteBuffer sealed = this.seal(this.client, "hello");
+        AesGcmCipherTest.refused(this.server, HEADER ^ 0x00040000, sealed);   //flag MORE aggiunto
+    }
+
+    @Test
+    public void testReplayedFrame() throws IOException {
+        ByteBuffer sealed = this.seal(this.client, "hello");
+        ByteBuffer copy = ByteBuffer.allocate(sealed.remaining()).put(sealed.duplicate());
+        copy.flip();
+        this.server.decrypt(HEADER, sealed);
+        AesGcmCipherTest.refused(this.server, HEADER, copy);
+    }
+
+    @Test
+    public void testReorderedFrames() throws IOException {
+        this.seal(this.client, "first");
+        ByteBuffer second = this.seal(this.client, "second");
+        AesGcmCipherTest.refused(this.server, HEADER, second);
+    }
+
+    @Test
+    public void testFrameOfAnotherConnection() throws IOException {
+        ByteBuffer recorded = this.seal(this.client, "hello");
+
+        AesGcmCipher client = new AesGcmCipher(KEY, false);
+        AesGcmCipher server = new AesGcmCipher(KEY, true);
+        AesGcmCipherTest.exchange(client, server);
+        AesGcmCipherTest.refused(server, HEADER, recorded); //stessa passphrase, altri byte casuali
+    }
+
+    @Test
+    public void testReflectedFrame() throws IOException {
+        ByteBuffer sealed = this.seal(this.client, "hello");
+        AesGcmCipherTest.refused(this.client, HEADER, sealed);   //rimandato al mittente
+    }
+
+    @Test
+    public void testEmptySeed() throws IOException {
+        AesGcmCipher cipher = new AesGcmCipher(KEY, true);
+        try {
+            cipher.seeded(ByteBuffer.allocate(0));
+            fail("Accepted a peer without random bytes");
+        } catch (ProtocolException pe) {
+            assertFalse(cipher.ready());
+        }
+    }
+
+    //come all'apertura di una connessione: ciascuno riceve i byte casuali dell'altro
+    private static void exchange(AesGcmCipher client, AesGcmCipher server) throws IOException {
+        ByteBuffer fromClient = client.seed();
+        ByteBuffer fromServer = server.seed();
+        server.seeded(fromClient);
+        client.seeded(fromServer);
+    }
+
+    private ByteBuffer seal(AesGcmCipher cipher, String text) throws IOException {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer data = ByteBuffer.allocate(plain.length + cipher.overhead());
+        data.put(plain).flip();
+        cipher.encrypt(HEADER, data);
+        return data;
+    }
+
+    private static String text(ByteBuffer data) {
+        return StandardCharsets.UTF_8.decode(data).toString();
+    }
+
+    private static void refused(AesGcmCipher cipher, int header, ByteBuffer data) {
+        try {
+            cipher.decrypt(header, data);
+            fail("Decrypted a frame that wasn't sent this way");
+        } catch (IOException ioe) {
+            //atteso
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A file is rebuilt from a delta against a basis of the receiver: the
+ * blocks it shares with the basis are copied, the rest travels, and a
+ * delta against the wrong basis is noticed.
+ *
+ * @author Amedeo
+ */
+public class DeltaTest {
+
+    private static final long ID = 42;
+    private static final byte CHANNEL = Frame.FIRST_BULK;
+
+    private File directory;
+    private byte[] basis;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("delta").toFile();
+        this.basis = new byte[1024 * 1024];
+        new Random(1).nextBytes(this.basis);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testEditedFile() throws IOException {
+        byte[] file = new byte[this.basis.length + 100];    //100 byte inseriti, ed uno cambiato
+        System.arraycopy(this.basis, 0, file, 0, 300000);
+        for (int i = 300000; i < 300100; i++) {
+            file[i] = (byte) i;
+        }
+        System.arraycopy(this.basis, 300000, file, 300100, this.basis.length - 300000);
+        file[900000] ^= 1;
+
+        PartialFile rebuilt = this.rebuild(this.basis, file, Delta.digest(this.write("new.bin", file)));
+        assertArrayEquals(file, Files.readAllBytes(rebuilt.file().toPath()));
+        assertTrue("Too few bytes reused: " + rebuilt.reused(), rebuilt.reused() > file.length * 9L / 10);
+    }
+
+    @Test
+    public void testUnrelatedFile() throws IOException {
+        byte[] file = new byte[200000];
+        new Random(3).nextBytes(file);
+
+        PartialFile rebuilt = this.rebuild(this.basis, file, Delta.digest(this.write("new.bin", file)));
+        assertArrayEquals(file, Files.readAllBytes(rebuilt.file().toPath()));
+        assertEquals(0, rebuilt.reused());  //tutto LITERAL
+    }
+
+    @Test
+    public void testWrongDigest() throws IOException {
+        byte[] file = this.basis.clone();
+        file[0] ^= 1;
+        byte[] digest = Delta.digest(this.write("other.bin", this.basis));  //non e' il file inviato
+        try {
+            this.rebuild(this.basis, file, digest);
+            fail("A file that doesn't match its digest was completed");
+        } catch (ProtocolException pe) {
+            assertFalse(new File(this.directory, "received.bin.part").exists());    //non si riprende da byte sbagliati
+        }
+    }
+
+    @Test
+    public void testBasis() throws IOException {
+        byte[] digest = Delta.digest(this.write("copy.bin", this.basis));
+        assertEquals("copy.bin", Delta.basis(this.directory, "renamed.bin", this.basis.length, digest).getName());
+        this.write("renamed.bin", new byte[Delta.MIN_SIZE]);
+        assertEquals("renamed.bin", Delta.basis(this.directory, "renamed.bin", this.basis.length, digest).getName());
+        assertNull(Delta.basis(this.directory, "renamed.bin", Delta.MIN_SIZE - 1, digest));
+    }
+
+    //invia il file come delta contro la base, e lo ricostruisce come farebbe Downloads
+    private PartialFile rebuild(byte[] basis, byte[] file, byte[] digest) throws IOException {
+        File basisPath = this.write("basis.bin", basis);
+        File filePath = this.write("sent.bin", file);
+        try (FileChannel base = new RandomAccessFile(basisPath, "r").getChannel();
+                FileChannel content = new RandomAccessFile(filePath, "r").getChannel()) {
+            //il ricevente invia la firma, il mittente la ricompone
+            List<String> texts = Delta.Signature.of(base).texts(ID);
+            Delta.Signature signature = Delta.Signature.first(texts.get(0));
+            for (String text : texts.subList(1, texts.size())) {
+                signature.add(text);
+            }
+            assertTrue(signature.complete());
+
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            FrameWriter writer = new FrameWriter(wire, new NoCipher());
+            Delta.Encoder encoder = new Delta.Encoder(content, file.length, signature);
+            CRC32 crc = new CRC32();
+            do {
+                encoder.next(writer, CHANNEL, crc);
+            } while (encoder.offset() < file.length);
+            writer.flush();
+
+            FrameReader reader = new FrameReader(new ByteArrayInputStream(wire.toByteArray()), new NoCipher());
+            PartialFile received = new PartialFile(this.directory, "received.bin", ID, file.length);
+            Frame frame = new Frame();
+            do {
+                assertTrue(reader.read(frame));
+                received.rebuild(frame.payload, base, signature.block);
+            } while (!frame.is(Frame.LAST));
+            received.check(digest);
+            received.complete();
+            return received;
+        }
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(this.directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+}
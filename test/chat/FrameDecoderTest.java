@@ -0,0 +1,110 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Decoding frames that are complete, cut short, too long or not frames
+ * at all.
+ *
+ * @author Amedeo
+ */
+public class FrameDecoderTest {
+
+    private static final int MAX = 1024;
+
+    private final FrameDecoder decoder = new FrameDecoder(MAX);
+    private final Frame frame = new Frame();
+
+    @Test
+    public void testCompleteFrames() throws ProtocolException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        FrameDecoderTest.frame(in, Frame.TEXT, Frame.MORE, "hello");
+        FrameDecoderTest.frame(in, Frame.COMMAND, (byte) 0, "/close");
+        in.flip();
+
+        assertTrue(this.decoder.decode(in, this.frame));
+        assertEquals(Frame.TEXT, this.frame.type);
+        assertTrue(this.frame.is(Frame.MORE));
+        assertEquals("hello", StandardCharsets.UTF_8.decode(this.frame.payload).toString());
+
+        assertTrue(this.decoder.decode(in, this.frame));
+        assertEquals(Frame.COMMAND, this.frame.type);
+        assertEquals("/close", StandardCharsets.UTF_8.decode(this.frame.payload).toString());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testTruncatedHeader() throws ProtocolException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        FrameDecoderTest.frame(in, Frame.TEXT, (byte) 0, "hello");
+        in.flip().limit(Frame.HEADER - 3);
+
+        assertEquals(Frame.HEADER, this.decoder.required(in));
+        assertFalse(this.decoder.decode(in, this.frame));
+        assertEquals(0, in.position()); //attende il resto senza consumare nulla
+    }
+
+    @Test
+    public void testTruncatedPayload() throws ProtocolException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        FrameDecoderTest.frame(in, Frame.TEXT, (byte) 0, "hello");
+        in.flip().limit(Frame.HEADER + 2);
+
+        assertEquals(Frame.HEADER + 5, this.decoder.required(in));
+        assertFalse(this.decoder.decode(in, this.frame));
+        assertEquals(0, in.position());
+
+        in.limit(Frame.HEADER + 5); //arriva il resto
+        assertTrue(this.decoder.decode(in, this.frame));
+        assertEquals(5, this.frame.payload.remaining());
+    }
+
+    @Test
+    public void testOversizedHeader() {
+        ByteBuffer in = ByteBuffer.allocate(Frame.HEADER);
+        in.put(Frame.VERSION).put(Frame.TEXT).put((byte) 0).put(Frame.CHAT_CHANNEL).putInt(MAX + 1).flip();
+        FrameDecoderTest.refused(this.decoder, in, "Frame too long");
+    }
+
+    @Test
+    public void testNegativeLength() {
+        ByteBuffer in = ByteBuffer.allocate(Frame.HEADER);
+        in.put(Frame.VERSION).put(Frame.TEXT).put((byte) 0).put(Frame.CHAT_CHANNEL).putInt(-1).flip();
+        FrameDecoderTest.refused(this.decoder, in, "Frame too long");
+    }
+
+    @Test
+    public void testOldVersion() {
+        ByteBuffer in = ByteBuffer.allocate(Frame.HEADER);
+        in.put((byte) 1).put(Frame.TEXT).put((byte) 0).put(Frame.CHAT_CHANNEL).putInt(0).flip();
+        FrameDecoderTest.refused(this.decoder, in, "Unsupported frame version");
+    }
+
+    @Test
+    public void testOldTextProtocol() {
+        ByteBuffer in = ByteBuffer.wrap("hi\n".getBytes(StandardCharsets.US_ASCII));  //piu' corto di un header
+        FrameDecoderTest.refused(this.decoder, in, "Not a frame");
+    }
+
+    private static void frame(ByteBuffer out, byte type, byte flags, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        out.put(Frame.VERSION).put(type).put(flags).put(Frame.channel(type)).putInt(payload.length).put(payload);
+    }
+
+    private static void refused(FrameDecoder decoder, ByteBuffer in, String reason) {
+        try {
+            decoder.decode(in, new Frame());
+            fail("Decoded an invalid frame");
+        } catch (ProtocolException pe) {
+            assertTrue(pe.getMessage(), pe.getMessage().startsWith(reason));
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resuming an interrupted transfer, and rejecting the chunks whose CRC32
+ * doesn't match.
+ *
+ * @author Amedeo
+ */
+public class PartialFileTest {
+
+    private static final int SIZE = 3 * FileTransfer.CHUNK;
+
+    private File directory;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("partial").toFile();
+        this.content = new byte[SIZE];
+        new Random(42).nextBytes(this.content);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testResumeFromTheVerifiedPart() throws IOException {
+        PartialFile first = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        assertEquals(0, first.offset());
+        first.write(this.chunk(0));
+        first.close();  //la connessione cade dopo il primo blocco
+
+        PartialFile second = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        assertEquals(FileTransfer.CHUNK, second.offset());
+        assertEquals(FileTransfer.CHUNK, second.resumed());
+        second.write(this.chunk(1));
+        second.write(this.chunk(2));
+        assertEquals(2 * FileTransfer.CHUNK, second.received());
+        File received = second.complete();
+
+        assertEquals("data.bin", received.getName());
+        assertArrayEquals(this.content, Files.readAllBytes(received.toPath()));
+        assertFalse(new File(this.directory, "data.bin.part").exists());
+        assertFalse(new File(this.directory, "data.bin.part.state").exists());
+    }
+
+    @Test
+    public void testAnotherTransferStartsOver() throws IOException {
+        PartialFile first = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        first.write(this.chunk(0));
+        first.close();
+
+        PartialFile other = new PartialFile(this.directory, "data.bin", 8, SIZE);   //altro id: altro file
+        assertEquals(0, other.offset());
+        other.close();
+    }
+
+    @Test
+    public void testCorruptedChunkIsRejected() throws IOException {
+        PartialFile file = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        file.write(this.chunk(0));
+        ByteBuffer corrupted = this.chunk(1);
+        corrupted.put(10, (byte) (corrupted.get(10) ^ 1));
+        try {
+            file.write(corrupted);
+            fail("A corrupted chunk was accepted");
+        } catch (ProtocolException pe) {
+            assertEquals(FileTransfer.CHUNK, file.offset());    //il verificato resta
+        }
+        file.close();
+
+        PartialFile resumed = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        assertEquals(FileTransfer.CHUNK, resumed.offset());
+        resumed.close();
+    }
+
+    @Test
+    public void testChunkWithoutChecksumIsRejected() throws IOException {
+        PartialFile file = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        try {
+            file.write(ByteBuffer.allocate(2));
+            fail("A chunk without checksum was accepted");
+        } catch (ProtocolException pe) {
+            assertEquals(0, file.offset());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testIncompleteFileIsNotCompleted() throws IOException {
+        PartialFile file = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        file.write(this.chunk(0));
+        try {
+            file.complete();
+            fail("An incomplete file was completed");
+        } catch (ProtocolException pe) {
+            assertNull(file.file());
+        }
+        assertTrue(new File(this.directory, "data.bin.part").exists()); //si puo' ancora riprendere
+    }
+
+    @Test
+    public void testTakenNameGetsANumber() throws IOException {
+        Files.write(new File(this.directory, "data.bin").toPath(), new byte[1]);
+        PartialFile file = new PartialFile(this.directory, "data.bin", 7, SIZE);
+        for (int i = 0; i < 3; i++) {
+            file.write(this.chunk(i));
+        }
+        assertEquals("data (1).bin", file.complete().getName());
+    }
+
+    //il blocco i-esimo del contenuto, seguito dal suo CRC32
+    private ByteBuffer chunk(int i) {
+        byte[] data = Arrays.copyOfRange(this.content, i * FileTransfer.CHUNK, (i + 1) * FileTransfer.CHUNK);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer chunk = ByteBuffer.allocate(data.length + Integer.BYTES);
+        chunk.put(data).putInt((int) crc.getValue()).flip();
+        return chunk;
+    }
+
+}
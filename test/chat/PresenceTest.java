@@ -0,0 +1,162 @@
+package chat;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Presence publishes the changes of a window together: up to date
+ * members get a delta, newcomers and members left behind a snapshot.
+ *
+ * @author Amedeo
+ */
+public class PresenceTest {
+
+    private static final long WAIT = 5; //secondi di attesa di una pubblicazione
+    private static final long QUIET = 3 * Long.getLong("chat.presence", 250);  //millisecondi senza pubblicazioni
+
+    private Presence presence;
+
+    //un membro che tiene quanto riceve (o lo rifiuta, come una coda piena)
+    private static final class Member implements Lobby.Member {
+
+        private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private volatile boolean full;
+
+        @Override
+        public boolean deliver(Room.Message message) {
+            return !this.full && this.received.offer(message.line());
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        private String next() throws InterruptedException {
+            String next = this.received.poll(WAIT, TimeUnit.SECONDS);
+            if (next == null) {
+                throw new AssertionError("Nothing published");
+            }
+            return next;
+        }
+
+        private String none() throws InterruptedException {
+            return this.received.poll(QUIET, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.presence = new Lobby().presence();
+    }
+
+    @Test
+    public void testNewcomerGetsASnapshot() throws InterruptedException {
+        Member alice = new Member();
+        this.presence.join(alice, "alice");
+        assertEquals("PRESENCE SNAPSHOT 1\n1 AVAILABLE alice", alice.next());
+
+        Member bob = new Member();
+        this.presence.join(bob, "bob");
+        assertEquals("PRESENCE 1 2\n2 AVAILABLE bob", alice.next());  //alice era aggiornata: solo il cambiamento
+        PresenceTest.snapshot(bob.next(), 2, "1 AVAILABLE alice", "2 AVAILABLE bob");
+    }
+
+    @Test
+    public void testChangesAndLeaving() throws InterruptedException {
+        Member alice = new Member();
+        Member bob = new Member();
+        this.presence.join(alice, "alice");
+        this.presence.join(bob, "bob");
+        alice.next();
+        bob.next();
+
+        this.presence.update(bob, "robert", Status.BUSY);
+        assertEquals("PRESENCE 1 2\n2 BUSY robert", alice.next());
+        assertEquals("PRESENCE 1 2\n2 BUSY robert", bob.next());
+
+        this.presence.leave(bob);
+        assertEquals("PRESENCE 2 3\n2 GONE", alice.next());
+        assertNull(bob.none()); //uscito: non riceve piu' nulla
+    }
+
+    @Test
+    public void testOnlyTheLastChangeOfAWindow() throws InterruptedException {
+        Member alice = new Member();
+        this.presence.join(alice, "alice");
+        alice.next();
+
+        this.presence.update(alice, "a", Status.BUSY);
+        this.presence.update(alice, "alice", Status.AVAILABLE);
+        assertEquals("PRESENCE 1 2\n1 AVAILABLE alice", alice.next());
+    }
+
+    @Test
+    public void testInAndOutInTheSameWindow() throws InterruptedException {
+        Member alice = new Member();
+        this.presence.join(alice, "alice");
+        alice.next();
+
+        Member ghost = new Member();
+        this.presence.join(ghost, "ghost");
+        this.presence.leave(ghost);
+        assertNull(alice.none());   //nessuno ha saputo che era entrato
+        assertNull(ghost.none());
+    }
+
+    @Test
+    public void testLateChangeOfAMemberGone() throws InterruptedException {
+        Member alice = new Member();
+        Member bob = new Member();
+        this.presence.join(alice, "alice");
+        this.presence.join(bob, "bob");
+        alice.next();
+
+        this.presence.leave(bob);
+        this.presence.update(bob, "bob", Status.BUSY);  //arrivato dopo l'uscita
+        assertEquals("PRESENCE 1 2\n2 GONE", alice.next());
+    }
+
+    @Test
+    public void testMissedDeltaBringsASnapshot() throws InterruptedException {
+        Member alice = new Member();
+        Member bob = new Member();
+        this.presence.join(alice, "alice");
+        this.presence.join(bob, "bob");
+        alice.next();
+        bob.next();
+
+        alice.full = true;  //coda piena: perde il delta
+        this.presence.update(bob, "bob", Status.BUSY);
+        assertEquals("PRESENCE 1 2\n2 BUSY bob", bob.next());
+        assertNull(alice.none());
+
+        alice.full = false;
+        this.presence.update(bob, "bob", Status.AVAILABLE);
+        PresenceTest.snapshot(alice.next(), 3, "1 AVAILABLE alice", "2 AVAILABLE bob");
+        assertEquals("PRESENCE 2 3\n2 AVAILABLE bob", bob.next());
+    }
+
+    @Test
+    public void testRefreshBringsASnapshot() throws InterruptedException {
+        Member alice = new Member();
+        this.presence.join(alice, "alice");
+        alice.next();
+
+        this.presence.refresh(alice);
+        PresenceTest.snapshot(alice.next(), 1, "1 AVAILABLE alice");
+    }
+
+    //le righe di un'istantanea possono arrivare in qualsiasi ordine
+    private static void snapshot(String text, long version, String... lines) {
+        String[] received = text.split("\n");
+        assertEquals("PRESENCE SNAPSHOT " + version, received[0]);
+        assertEquals(new HashSet<>(Arrays.asList(lines)), new HashSet<>(Arrays.asList(received).subList(1, received.length)));
+    }
+
+}